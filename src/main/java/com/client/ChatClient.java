@@ -0,0 +1,338 @@
+package com.client;
+
+import com.domain.MessageType;
+import com.domain.Packet;
+import com.servercore.Pipeline;
+import com.utilities.Adaptor;
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Non blocking connection to a chat server for services written in
+ * Java. Frames are encoded with Adaptor and decoded with Pipeline,
+ * the same code the server uses.
+ * <p>
+ * Connection logs in by itself: it answers GENERATED_ID with LOGIN
+ * and the future returned by connect completes once server sent the
+ * magic number back. Sending never blocks. Frames are encoded on the
+ * calling thread and queued; the I/O thread of the connection copies
+ * every queued frame which fits into one batch buffer of
+ * chat.client.batchBytes and writes it with one call. The future of
+ * a frame completes when its last byte was handed to the socket, with
+ * the sequence number server gives the frame, so DELIVERED receipts
+ * can be matched to it. Futures and the packet listener run on the
+ * I/O thread and must not block.
+ */
+
+@Slf4j
+public class ChatClient implements Closeable {
+
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final Consumer<Packet> packetListener;
+    private final String loginMessage;
+    private final Thread ioThread;
+    private final Pipeline pipeline = new Pipeline();
+    private final Adaptor adaptor = new Adaptor();
+    private final CompletableFuture<ChatClient> loggedIn = new CompletableFuture<>();
+    private final Queue<OutboundFrame> pendingFrames = new ConcurrentLinkedQueue<>();
+    private final Queue<OutboundFrame> framesInFlight = new ArrayDeque<>();
+    private final ByteBuffer batch = ByteBuffer.allocate(ServerConfiguration.CLIENT_BATCH_BYTES);
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private ByteBuffer inbound = ByteBuffer.allocate(Constants.CLIENT_RECEIVE_BUFFER_BYTES);
+    private ByteBuffer outbound;
+    private SelectionKey key;
+    private int dataSequenceNumber;
+    @Getter
+    private volatile int clientId;
+    @Getter
+    private volatile int magicNumber;
+
+    private ChatClient(SocketChannel channel, Selector selector, Consumer<Packet> packetListener, String loginMessage) {
+        this.channel = channel;
+        this.selector = selector;
+        this.packetListener = packetListener;
+        this.loginMessage = loginMessage;
+        this.ioThread = new Thread(this::running, "chat-client-io");
+        this.ioThread.setDaemon(true);
+    }
+
+    /**
+     * Opens a connection and logs in
+     *
+     * @param host of the server
+     * @param port of the server
+     * @param packetListener gets every packet server sends after login
+     * @param loginMessage body of LOGIN, name of a codec in it asks for compressed frames
+     * @return future which completes with the logged in client
+     * @throws IOException if connection can not be opened
+     */
+
+    public static CompletableFuture<ChatClient> connect(String host, int port, Consumer<Packet> packetListener,
+                                                        String loginMessage) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        Selector selector = Selector.open();
+        ChatClient client = new ChatClient(channel, selector, packetListener, loginMessage);
+
+        channel.connect(new InetSocketAddress(host, port));
+        client.key = channel.register(selector, SelectionKey.OP_CONNECT);
+        client.ioThread.start();
+
+        return client.loggedIn;
+    }
+
+    /**
+     * Sends a text message to another client
+     *
+     * @param destinationId id of the recipient
+     * @param message text to send
+     * @return future which completes with sequence number of the frame once it was written
+     */
+
+    public CompletableFuture<Integer> sending(int destinationId, String message) {
+        return sending(Packet.builder().messageType(MessageType.DATA).messageDestinationId(destinationId).
+                messageLength(message.getBytes().length).message(message).build());
+    }
+
+    /**
+     * Sends any packet. Magic number and source id of this connection
+     * are filled in
+     *
+     * @param packet with type, destination, length and message or payload
+     * @return future which completes with sequence number of the frame once it was written,
+     * 0 for frames which are not data frames
+     */
+
+    public CompletableFuture<Integer> sending(Packet packet) {
+        CompletableFuture<Integer> written = new CompletableFuture<>();
+        if (!loggedIn.isDone() || loggedIn.isCompletedExceptionally()) {
+            written.completeExceptionally(new IllegalStateException("Client is not logged in"));
+            return written;
+        }
+
+        packet.setMagicBytes(magicNumber);
+        packet.setMessageSourceId(clientId);
+        queueing(new OutboundFrame(adaptor.getBytesArrayFromPacket(packet), packet.getMessageType().isDataMessage(), written));
+
+        if (!channel.isOpen())
+            failingQueuedFrames(new ClosedChannelException());
+
+        return written;
+    }
+
+    /**
+     * Sends LOGOUT, server answers it and the connection is closed
+     * when the answer arrives
+     *
+     * @return future which completes once LOGOUT was written
+     */
+
+    public CompletableFuture<Integer> loggingOut() {
+        return sending(Packet.builder().messageType(MessageType.LOGOUT).messageDestinationId(Constants.SERVER_SOURCE_ID).
+                messageLength(0).message("").build());
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException exception) {
+            log.error("Error occurred while closing connection of client {}", clientId, exception);
+        }
+        selector.wakeup();
+    }
+
+    private void queueing(OutboundFrame frame) {
+        pendingFrames.add(frame);
+        if (Thread.currentThread() != ioThread && wakeupPending.compareAndSet(false, true))
+            selector.wakeup();
+    }
+
+    private void running() {
+        long loginDeadlineMillis = System.currentTimeMillis() + ServerConfiguration.CLIENT_LOGIN_TIMEOUT_MILLIS;
+
+        try {
+            while (channel.isOpen()) {
+                if (loggedIn.isDone()) {
+                    selector.select();
+                } else if (selector.select(Math.max(1, loginDeadlineMillis - System.currentTimeMillis())) == 0 &&
+                        System.currentTimeMillis() >= loginDeadlineMillis) {
+                    throw new TimeoutException("Server did not answer login in time");
+                }
+
+                wakeupPending.set(false);
+                boolean selected = selector.selectedKeys().remove(key);
+
+                if (selected && key.isValid() && key.isConnectable() && channel.finishConnect())
+                    key.interestOps(SelectionKey.OP_READ);
+
+                if (selected && key.isValid() && key.isReadable())
+                    reading();
+
+                if (key.isValid() && channel.isConnected())
+                    writingQueuedFrames();
+            }
+        } catch (Exception exception) {
+            log.error("Connection of client {} failed", clientId, exception);
+            loggedIn.completeExceptionally(exception);
+        } finally {
+            close();
+            ClosedChannelException closed = new ClosedChannelException();
+            loggedIn.completeExceptionally(closed);
+            failingQueuedFrames(closed);
+            try {
+                selector.close();
+            } catch (IOException exception) {
+                log.error("Error occurred while closing selector of client {}", clientId, exception);
+            }
+        }
+    }
+
+    private void reading() throws IOException {
+        if (channel.read(inbound) < 0) {
+            log.info("Server closed connection of client {}", clientId);
+            close();
+            return;
+        }
+
+        inbound.flip();
+        while (inbound.remaining() >= Constants.START_OF_MESSAGE_INCLUSIVE) {
+            int frameSize = Constants.START_OF_MESSAGE_INCLUSIVE +
+                    inbound.getInt(inbound.position() + Constants.START_OF_MESSAGE_LENGTH_INCLUSIVE);
+
+            if (frameSize > inbound.capacity()) {
+                inbound = ByteBuffer.allocate(frameSize).put(inbound);
+                inbound.flip();
+            }
+            if (inbound.remaining() < frameSize)
+                break;
+
+            byte[] frame = new byte[frameSize];
+            inbound.get(frame);
+            for (Packet packet : pipeline.gettingPackets(frame))
+                handling(packet);
+        }
+        inbound.compact();
+    }
+
+    private void handling(Packet packet) {
+        if (packet.getMessageType() == MessageType.GENERATED_ID && !loggedIn.isDone()) {
+            clientId = packet.getMessageDestinationId();
+            log.info("Server gave id {}, logging in", clientId);
+
+            Packet login = Packet.builder().magicBytes(Constants.NO_MAGIC_BYTES_DEFINED).messageType(MessageType.LOGIN).
+                    messageSourceId(clientId).messageDestinationId(Constants.SERVER_SOURCE_ID).
+                    messageLength(loginMessage.getBytes().length).message(loginMessage).build();
+            queueing(new OutboundFrame(adaptor.getBytesArrayFromPacket(login), false, new CompletableFuture<>()));
+        } else if (packet.getMessageType() == MessageType.LOGIN && !loggedIn.isDone()) {
+            magicNumber = packet.getMagicBytes();
+            log.info("Client {} logged in", clientId);
+            loggedIn.complete(this);
+        } else if (packet.getMessageType() == MessageType.LOGOUT) {
+            log.info("Client {} logged out", clientId);
+            close();
+        } else {
+            try {
+                packetListener.accept(packet);
+            } catch (RuntimeException exception) {
+                log.error("Packet listener of client {} failed", clientId, exception);
+            }
+        }
+    }
+
+    private void writingQueuedFrames() throws IOException {
+        while (true) {
+            if (outbound == null || !outbound.hasRemaining()) {
+                completingWrittenFrames();
+                outbound = fillingBatch();
+
+                if (outbound == null) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+            }
+
+            channel.write(outbound);
+            if (outbound.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    private ByteBuffer fillingBatch() {
+        OutboundFrame frame = pendingFrames.poll();
+        if (frame == null)
+            return null;
+
+        if (frame.bytes.length > batch.capacity()) {
+            numbering(frame);
+            return ByteBuffer.wrap(frame.bytes);
+        }
+
+        batch.clear();
+        do {
+            numbering(frame);
+            batch.put(frame.bytes);
+            frame = pendingFrames.peek();
+        } while (frame != null && frame.bytes.length <= batch.remaining() && pendingFrames.poll() != null);
+
+        batch.flip();
+        return batch;
+    }
+
+    private void numbering(OutboundFrame frame) {
+        frame.sequenceNumber = frame.dataFrame ? ++dataSequenceNumber : 0;
+        framesInFlight.add(frame);
+    }
+
+    private void completingWrittenFrames() {
+        OutboundFrame frame;
+        while ((frame = framesInFlight.poll()) != null)
+            frame.written.complete(frame.sequenceNumber);
+    }
+
+    private void failingQueuedFrames(Exception cause) {
+        OutboundFrame frame;
+        if (Thread.currentThread() == ioThread)
+            while ((frame = framesInFlight.poll()) != null)
+                frame.written.completeExceptionally(cause);
+
+        while ((frame = pendingFrames.poll()) != null)
+            frame.written.completeExceptionally(cause);
+    }
+
+    @RequiredArgsConstructor
+    private static class OutboundFrame {
+        private final byte[] bytes;
+        private final boolean dataFrame;
+        private final CompletableFuture<Integer> written;
+        private int sequenceNumber;
+    }
+}
@@ -0,0 +1,120 @@
+package com.client;
+
+import com.domain.Packet;
+import com.utilities.ServerConfiguration;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Several logged in connections of one process to the same server.
+ * Every connection has its own client id and I/O thread, so sends of
+ * many threads are batched and written side by side.
+ * <p>
+ * A message goes through the connection picked by its destination id.
+ * Messages to one recipient therefore always leave through the same
+ * connection, keep their order and carry the same source id.
+ */
+
+@Slf4j
+public class ChatClientPool implements Closeable {
+
+    private final List<ChatClient> clients;
+
+    private ChatClientPool(List<ChatClient> clients) {
+        this.clients = Collections.unmodifiableList(clients);
+    }
+
+    /**
+     * Opens chat.client.poolSize connections
+     *
+     * @param host of the server
+     * @param port of the server
+     * @param packetListener gets packets of every connection, must be thread safe
+     * @param loginMessage body of LOGIN sent by every connection
+     * @return future which completes once all connections logged in
+     * @throws IOException if a connection can not be opened
+     */
+
+    public static CompletableFuture<ChatClientPool> connect(String host, int port, Consumer<Packet> packetListener,
+                                                            String loginMessage) throws IOException {
+        return connect(host, port, ServerConfiguration.CLIENT_POOL_SIZE, packetListener, loginMessage);
+    }
+
+    /**
+     * Opens the given number of connections
+     *
+     * @param host of the server
+     * @param port of the server
+     * @param size number of connections
+     * @param packetListener gets packets of every connection, must be thread safe
+     * @param loginMessage body of LOGIN sent by every connection
+     * @return future which completes once all connections logged in, or fails
+     * and closes the pool when one of them could not log in
+     * @throws IOException if a connection can not be opened
+     */
+
+    public static CompletableFuture<ChatClientPool> connect(String host, int port, int size, Consumer<Packet> packetListener,
+                                                            String loginMessage) throws IOException {
+        List<CompletableFuture<ChatClient>> connecting = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, size); i++)
+            connecting.add(ChatClient.connect(host, port, packetListener, loginMessage));
+
+        return CompletableFuture.allOf(connecting.toArray(new CompletableFuture<?>[0])).handle((ignored, failure) -> {
+            List<ChatClient> clients = new ArrayList<>();
+            for (CompletableFuture<ChatClient> client : connecting)
+                if (!client.isCompletedExceptionally())
+                    clients.add(client.join());
+
+            ChatClientPool pool = new ChatClientPool(clients);
+            if (failure != null) {
+                log.error("Not every connection of the pool could log in, closing it", failure);
+                pool.close();
+                throw new IllegalStateException("Connection pool could not log in", failure);
+            }
+            return pool;
+        });
+    }
+
+    /**
+     * Sends a text message through the connection of its destination
+     *
+     * @param destinationId id of the recipient
+     * @param message text to send
+     * @return future which completes with sequence number of the frame on its connection once it was written
+     */
+
+    public CompletableFuture<Integer> sending(int destinationId, String message) {
+        return clientFor(destinationId).sending(destinationId, message);
+    }
+
+    /**
+     * Sends any packet through the connection of its destination
+     *
+     * @param packet with type, destination, length and message or payload
+     * @return future which completes with sequence number of the frame on its connection once it was written
+     */
+
+    public CompletableFuture<Integer> sending(Packet packet) {
+        return clientFor(packet.getMessageDestinationId()).sending(packet);
+    }
+
+    public ChatClient clientFor(int destinationId) {
+        return clients.get(Math.floorMod(destinationId, clients.size()));
+    }
+
+    public List<ChatClient> getClients() {
+        return clients;
+    }
+
+    @Override
+    public void close() {
+        clients.forEach(ChatClient::close);
+    }
+}
@@ -0,0 +1,51 @@
+package com.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Replicated directory which tells on which node a client is
+ * connected. Every node keeps a full copy, local clients are added
+ * by the node itself and remote clients by directory messages that
+ * arrive over node links.
+ */
+
+class ClientDirectory {
+
+    private final Map<Integer, Integer> nodeOfClient = new ConcurrentHashMap<>();
+
+    void put(int clientId, int nodeId) {
+        nodeOfClient.put(clientId, nodeId);
+    }
+
+    /**
+     * Removes client only if it is still mapped to the given node,
+     * so a late remove can not erase a newer entry
+     *
+     * @param clientId id of the client
+     * @param nodeId node which reported the remove
+     */
+
+    void remove(int clientId, int nodeId) {
+        nodeOfClient.remove(clientId, nodeId);
+    }
+
+    Integer nodeOf(int clientId) {
+        return nodeOfClient.get(clientId);
+    }
+
+    List<Integer> clientsOf(int nodeId) {
+        List<Integer> clients = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> entry : nodeOfClient.entrySet()) {
+            if (entry.getValue() == nodeId)
+                clients.add(entry.getKey());
+        }
+        return clients;
+    }
+
+    void removeNode(int nodeId) {
+        nodeOfClient.values().removeIf(owner -> owner == nodeId);
+    }
+}
@@ -0,0 +1,348 @@
+package com.cluster;
+
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class represents this server as a member of a cluster. Every
+ * node owns its own range of client ids, so ids never clash, and
+ * keeps a replicated directory of which client is connected to which
+ * node. Frames for clients on other nodes are forwarded over
+ * persistent links.
+ * <p>
+ * Cluster is configured with system properties, for example
+ * <p>
+ * -Dchat.cluster.nodeId=0 -Dchat.cluster.nodes=0@127.0.0.1:9700,1@127.0.0.1:9701
+ * <p>
+ * where every entry of nodes is the address on which that node
+ * accepts links from other nodes.
+ * <p>
+ * A link is accepted only from a configured node which knows the
+ * shared -Dchat.cluster.secret, node does not start without it. Node
+ * accepting a link sends a CHALLENGE with a fresh random nonce and
+ * the node which opened it answers with HELLO holding its id and the
+ * HMAC of nonce and id under the secret, so a captured HELLO is of no
+ * use on another link. Forwarded frames are only delivered when their
+ * sender is a client of the node which forwarded them.
+ * <p>
+ * In shard mode, -Dchat.shard.count=4 -Dchat.shard.index=0, several
+ * processes on one host share the client port and every shard is a
+ * node whose link listens on loopback at linkBasePort + shard index.
+ */
+
+@Slf4j
+public class ClusterNode {
+
+    private static final SecureRandom challenges = new SecureRandom();
+    private static final ClusterNode clusterNode = creatingClusterNode();
+
+    @Getter
+    private final int nodeId;
+    private final Map<Integer, InetSocketAddress> nodeAddresses;
+    private final Map<Integer, NodeLink> links = new ConcurrentHashMap<>();
+    private final ClientDirectory clientDirectory = new ClientDirectory();
+
+    ClusterNode(int nodeId, Map<Integer, InetSocketAddress> nodeAddresses) {
+        this.nodeId = nodeId;
+        this.nodeAddresses = nodeAddresses;
+    }
+
+    public static ClusterNode getInstance() {
+        return clusterNode;
+    }
+
+    public boolean isEnabled() {
+        return nodeId != Constants.CLUSTER_DISABLED;
+    }
+
+    /**
+     * Ids given to clients of this node start right after this value
+     *
+     * @return last id before the range of this node
+     */
+
+    public int getClientIdRangeStart() {
+        return Math.max(nodeId, 0) * ServerConfiguration.CLIENT_ID_RANGE_SIZE;
+    }
+
+    /**
+     * Tells if id still belongs to the range of this node, any id
+     * does when node is not part of a cluster
+     *
+     * @param clientId generated id
+     * @return true if id is inside the range
+     */
+
+    public boolean isInClientIdRange(int clientId) {
+        return !isEnabled() || (clientId > getClientIdRangeStart() &&
+                clientId <= getClientIdRangeStart() + ServerConfiguration.CLIENT_ID_RANGE_SIZE);
+    }
+
+    /**
+     * Opens listener for links of other nodes and links to all of them
+     *
+     * @throws IOException if link listener can not be bound
+     */
+
+    public void start() throws IOException {
+        if (ServerConfiguration.CLUSTER_SECRET.isEmpty())
+            throw new IOException("chat.cluster.secret must be set, links of the cluster are authenticated with it");
+
+        InetSocketAddress ownAddress = nodeAddresses.get(nodeId);
+        if (ownAddress == null)
+            throw new IOException("Address of node " + nodeId + " is missing in chat.cluster.nodes");
+
+        new NodeLinkListener(ownAddress, this).start();
+
+        for (Map.Entry<Integer, InetSocketAddress> node : nodeAddresses.entrySet()) {
+            if (node.getKey() == nodeId) continue;
+
+            NodeLink link = new NodeLink(node.getKey(), node.getValue(), this);
+            links.put(node.getKey(), link);
+            link.start();
+        }
+
+        log.info("Cluster node {} started with {} peers, client ids start after {}", nodeId, links.size(),
+                getClientIdRangeStart());
+    }
+
+    /**
+     * Forwards frame to the node where destination client is connected
+     *
+     * @param destinationId id of the client
+     * @param frame complete frame in bytes
+     * @param expiresAtNanos when link drops the frame instead of writing it, 0 for never
+     * @return false if client is not known on any other node
+     */
+
+    public boolean forwardToRemoteClient(int destinationId, byte[] frame, long expiresAtNanos) {
+        if (!isEnabled()) return false;
+
+        Integer owner = clientDirectory.nodeOf(destinationId);
+        if (owner == null || owner == nodeId) return false;
+
+        NodeLink link = links.get(owner);
+        return link != null && link.send(LinkMessageType.FORWARD, frame, expiresAtNanos);
+    }
+
+    /**
+     * Called when client got its id on this node
+     *
+     * @param clientId id of the client
+     */
+
+    public synchronized void clientJoined(int clientId) {
+        if (!isEnabled()) return;
+
+        clientDirectory.put(clientId, nodeId);
+        broadcasting(LinkMessageType.DIRECTORY_ADD, encodeInts(nodeId, clientId));
+    }
+
+    /**
+     * Called when client of this node disconnected
+     *
+     * @param clientId id of the client
+     */
+
+    public synchronized void clientLeft(int clientId) {
+        if (!isEnabled()) return;
+
+        clientDirectory.remove(clientId, nodeId);
+        broadcasting(LinkMessageType.DIRECTORY_REMOVE, encodeInts(nodeId, clientId));
+    }
+
+    synchronized void onLinkEstablished(NodeLink link) {
+        List<Integer> localClients = clientDirectory.clientsOf(nodeId);
+        int[] snapshot = new int[localClients.size() + 1];
+        snapshot[0] = nodeId;
+        for (int i = 0; i < localClients.size(); i++)
+            snapshot[i + 1] = localClients.get(i);
+
+        link.send(LinkMessageType.DIRECTORY_ADD, encodeInts(snapshot));
+    }
+
+    void onLinkLost(int peerNodeId) {
+        log.error("Forgetting clients of node {}", peerNodeId);
+        clientDirectory.removeNode(peerNodeId);
+    }
+
+    /**
+     * Applies directory message of a peer. Payload holds node id of
+     * the peer followed by client ids
+     *
+     * @param payload of link message
+     * @param added true for DIRECTORY_ADD, false for DIRECTORY_REMOVE
+     */
+
+    void onDirectoryUpdate(ByteBuffer payload, boolean added) {
+        int peerNodeId = payload.getInt();
+
+        while (payload.hasRemaining()) {
+            int clientId = payload.getInt();
+            if (added)
+                clientDirectory.put(clientId, peerNodeId);
+            else
+                clientDirectory.remove(clientId, peerNodeId);
+        }
+    }
+
+    /**
+     * Nonce which node accepting a link sends in CHALLENGE
+     *
+     * @return fresh random bytes
+     */
+
+    static byte[] creatingChallenge() {
+        byte[] challenge = new byte[Constants.LINK_CHALLENGE_BYTES];
+        challenges.nextBytes(challenge);
+        return challenge;
+    }
+
+    /**
+     * Payload of HELLO which answers CHALLENGE of a peer: id of this
+     * node followed by the HMAC of nonce and id
+     *
+     * @param challenge nonce the peer sent
+     * @return payload of HELLO
+     * @throws IOException if HMAC can not be computed
+     */
+
+    byte[] helloPayload(byte[] challenge) throws IOException {
+        byte[] id = encodeInts(nodeId);
+        byte[] mac = authenticationCode(challenge, id);
+        byte[] payload = Arrays.copyOf(id, id.length + mac.length);
+        System.arraycopy(mac, 0, payload, id.length, mac.length);
+        return payload;
+    }
+
+    /**
+     * Checks HELLO of a link accepted from a peer
+     *
+     * @param payload of HELLO
+     * @param challenge nonce which was sent on the link
+     * @return id of the peer or CLUSTER_DISABLED if link must be refused
+     * @throws IOException if HMAC can not be computed
+     */
+
+    int authenticatingPeer(ByteBuffer payload, byte[] challenge) throws IOException {
+        if (payload.remaining() < Constants.BYTE_ARRAY_SIZE_FOR_INT)
+            return Constants.CLUSTER_DISABLED;
+
+        int peerNodeId = payload.getInt(payload.position());
+        if (!nodeAddresses.containsKey(peerNodeId) || peerNodeId == nodeId)
+            return Constants.CLUSTER_DISABLED;
+
+        byte[] id = new byte[Constants.BYTE_ARRAY_SIZE_FOR_INT];
+        byte[] mac = new byte[payload.remaining() - id.length];
+        payload.get(id).get(mac);
+        return MessageDigest.isEqual(mac, authenticationCode(challenge, id)) ? peerNodeId : Constants.CLUSTER_DISABLED;
+    }
+
+    /**
+     * Tells if client is connected to the given node
+     *
+     * @param clientId id of the client
+     * @param peerNodeId id of the node
+     * @return true if directory places client on that node
+     */
+
+    boolean isClientOf(int clientId, int peerNodeId) {
+        Integer owner = clientDirectory.nodeOf(clientId);
+        return owner != null && owner == peerNodeId;
+    }
+
+    /**
+     * Largest payload a link message may have: a frame of the largest
+     * size or the directory of a whole id range
+     *
+     * @return limit in bytes
+     */
+
+    static int maxLinkPayloadBytes() {
+        return Math.max(ServerConfiguration.MAX_FRAME_BYTES + Constants.START_OF_MESSAGE_INCLUSIVE,
+                (ServerConfiguration.CLIENT_ID_RANGE_SIZE + 1) * Constants.BYTE_ARRAY_SIZE_FOR_INT);
+    }
+
+    /**
+     * Reads until buffer is full, link sockets are blocking
+     *
+     * @throws IOException if link is closed before
+     */
+
+    static void readingFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1)
+                throw new EOFException("Node link closed");
+        }
+    }
+
+    private static byte[] authenticationCode(byte[] challenge, byte[] id) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(Constants.LINK_MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(ServerConfiguration.CLUSTER_SECRET.getBytes(StandardCharsets.UTF_8),
+                    Constants.LINK_MAC_ALGORITHM));
+            mac.update(challenge);
+            return mac.doFinal(id);
+        } catch (GeneralSecurityException exception) {
+            throw new IOException("Link authentication code can not be computed", exception);
+        }
+    }
+
+    private void broadcasting(LinkMessageType type, byte[] payload) {
+        for (NodeLink link : links.values())
+            link.send(type, payload);
+    }
+
+    static byte[] encodeInts(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Constants.BYTE_ARRAY_SIZE_FOR_INT);
+        for (int value : values)
+            buffer.putInt(value);
+        return buffer.array();
+    }
+
+    private static ClusterNode creatingClusterNode() {
+        if (ServerConfiguration.SHARD_COUNT == Constants.SHARDING_DISABLED)
+            return new ClusterNode(ServerConfiguration.CLUSTER_NODE_ID, parsingNodeAddresses(ServerConfiguration.CLUSTER_NODES));
+
+        Map<Integer, InetSocketAddress> shardAddresses = new HashMap<>();
+        for (int shard = 0; shard < ServerConfiguration.SHARD_COUNT; shard++)
+            shardAddresses.put(shard, new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    ServerConfiguration.SHARD_LINK_BASE_PORT + shard));
+
+        return new ClusterNode(ServerConfiguration.SHARD_INDEX, shardAddresses);
+    }
+
+    private static Map<Integer, InetSocketAddress> parsingNodeAddresses(String nodes) {
+        Map<Integer, InetSocketAddress> addresses = new HashMap<>();
+
+        for (String node : nodes.split(",")) {
+            if (node.trim().isEmpty()) continue;
+
+            String[] idAndAddress = node.trim().split("@");
+            String[] hostAndPort = idAndAddress[1].split(":");
+            addresses.put(Integer.parseInt(idAndAddress[0]),
+                    new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+        }
+        return addresses;
+    }
+}
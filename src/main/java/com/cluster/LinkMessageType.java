@@ -0,0 +1,41 @@
+package com.cluster;
+
+import lombok.Getter;
+
+/**
+ * Types of messages which travel over the link between two nodes.
+ * Every link message looks like this:
+ * <p>
+ * Type   | Payload Length | Payload
+ * 1 Byte | 4 Bytes        | x amount of bytes
+ */
+
+@Getter
+public enum LinkMessageType {
+    HELLO((byte) 1),
+    FORWARD((byte) 2),
+    DIRECTORY_ADD((byte) 3),
+    DIRECTORY_REMOVE((byte) 4),
+    CHALLENGE((byte) 5);
+
+    private final byte code;
+
+    LinkMessageType(byte code) {
+        this.code = code;
+    }
+
+    /**
+     * It gives us enum on its byte value
+     *
+     * @param code received from link
+     * @return enum against it or null if code is unknown
+     */
+
+    public static LinkMessageType fromCode(byte code) {
+        for (LinkMessageType type : values()) {
+            if (type.code == code)
+                return type;
+        }
+        return null;
+    }
+}
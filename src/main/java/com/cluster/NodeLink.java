@@ -0,0 +1,172 @@
+package com.cluster;
+
+import com.servercore.Deadlines;
+import com.servercore.PriorityLanes;
+import com.servercore.ServerMetrics;
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persistent outbound link to one peer node. Messages are put in a
+ * queue and a dedicated thread writes them to the peer. The thread
+ * takes everything that piled up while the previous write was going
+ * on and writes it with one gathering write, so under load many
+ * frames share one system call while a single frame is still sent
+ * without any delay.
+ * <p>
+ * Link answers the CHALLENGE of the peer with HELLO before anything
+ * else is written. If the connection breaks, the link keeps
+ * reconnecting until the peer is back. Directory messages use the control lane of the
+ * queue so they are not delayed by forwarded frames. Forwarded frames
+ * which passed their deadline while waiting are left out of the batch.
+ */
+
+@Slf4j
+class NodeLink extends Thread {
+
+    @Getter
+    private final int peerNodeId;
+    private final InetSocketAddress peerAddress;
+    private final ClusterNode clusterNode;
+    private final PriorityLanes<OutboundMessage> outboundMessages = new PriorityLanes<>(ServerConfiguration.MAX_CONTROL_BURST);
+    private volatile boolean connected;
+
+    NodeLink(int peerNodeId, InetSocketAddress peerAddress, ClusterNode clusterNode) {
+        super("node-link-" + peerNodeId);
+        this.peerNodeId = peerNodeId;
+        this.peerAddress = peerAddress;
+        this.clusterNode = clusterNode;
+        setDaemon(true);
+    }
+
+    /**
+     * Queue message for the peer
+     *
+     * @param type of link message
+     * @param payload of link message
+     * @return false if link is down at the moment
+     */
+
+    boolean send(LinkMessageType type, byte[] payload) {
+        return send(type, payload, 0);
+    }
+
+    /**
+     * Queue message for the peer which is dropped if it is still
+     * waiting at expiresAtNanos
+     *
+     * @param type of link message
+     * @param payload of link message
+     * @param expiresAtNanos System.nanoTime() based expiry, 0 for never
+     * @return false if link is down at the moment
+     */
+
+    boolean send(LinkMessageType type, byte[] payload, long expiresAtNanos) {
+        if (!connected)
+            return false;
+
+        enqueue(type, payload, expiresAtNanos);
+        return true;
+    }
+
+    private void enqueue(LinkMessageType type, byte[] payload, long expiresAtNanos) {
+        ByteBuffer header = ByteBuffer.allocate(Constants.LINK_MESSAGE_HEADER_SIZE);
+        header.put(type.getCode()).putInt(payload.length).flip();
+        outboundMessages.put(new OutboundMessage(header, ByteBuffer.wrap(payload), expiresAtNanos),
+                type != LinkMessageType.FORWARD);
+    }
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            try (SocketChannel channel = SocketChannel.open()) {
+                channel.connect(peerAddress);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                log.info("Link to node {} established", peerNodeId);
+
+                outboundMessages.clear();
+                enqueue(LinkMessageType.HELLO, clusterNode.helloPayload(readingChallenge(channel)), 0);
+                connected = true;
+                clusterNode.onLinkEstablished(this);
+
+                sendingBatches(channel);
+
+            } catch (IOException exception) {
+                if (connected)
+                    log.error("Link to node {} lost", peerNodeId, exception);
+            } catch (InterruptedException exception) {
+                log.error("Link to node {} stopped", peerNodeId);
+                return;
+            } finally {
+                if (connected) {
+                    connected = false;
+                    clusterNode.onLinkLost(peerNodeId);
+                }
+            }
+
+            try {
+                Thread.sleep(Constants.LINK_RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException exception) {
+                return;
+            }
+        }
+    }
+
+    private byte[] readingChallenge(SocketChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Constants.LINK_MESSAGE_HEADER_SIZE);
+        ClusterNode.readingFully(channel, header);
+        header.flip();
+
+        if (LinkMessageType.fromCode(header.get()) != LinkMessageType.CHALLENGE || header.getInt() != Constants.LINK_CHALLENGE_BYTES)
+            throw new IOException("Node " + peerNodeId + " did not send a challenge");
+
+        ByteBuffer challenge = ByteBuffer.allocate(Constants.LINK_CHALLENGE_BYTES);
+        ClusterNode.readingFully(channel, challenge);
+        return challenge.array();
+    }
+
+    private void sendingBatches(SocketChannel channel) throws IOException, InterruptedException {
+        List<OutboundMessage> batch = new ArrayList<>(ServerConfiguration.LINK_BATCH_SIZE);
+
+        while (channel.isOpen()) {
+            batch.add(outboundMessages.take());
+            outboundMessages.drainTo(batch, ServerConfiguration.LINK_BATCH_SIZE - 1);
+
+            long nowNanos = System.nanoTime();
+            int batchSize = batch.size();
+            batch.removeIf(message -> Deadlines.hasPassed(message.expiresAtNanos, nowNanos));
+            ServerMetrics.counter(Deadlines.FRAMES_EXPIRED).add(batchSize - batch.size());
+
+            ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+            long bytesToWrite = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                buffers[2 * i] = batch.get(i).header;
+                buffers[2 * i + 1] = batch.get(i).payload;
+                bytesToWrite += buffers[2 * i].remaining() + buffers[2 * i + 1].remaining();
+            }
+
+            while (bytesToWrite > 0)
+                bytesToWrite -= channel.write(buffers);
+
+            batch.clear();
+        }
+    }
+
+    @AllArgsConstructor
+    private static class OutboundMessage {
+        private final ByteBuffer header;
+        private final ByteBuffer payload;
+        private final long expiresAtNanos;
+    }
+}
@@ -0,0 +1,134 @@
+package com.cluster;
+
+import com.servercore.Writer;
+import com.utilities.Constants;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Accepts links which peer nodes open to this node. Every accepted
+ * link gets its own thread which reads link messages, applies
+ * directory updates and delivers forwarded frames to local clients.
+ * <p>
+ * Every accepted link first gets a CHALLENGE. First message of the
+ * peer has to be a HELLO which answers it for a configured node,
+ * otherwise link is closed. Link is also closed when
+ * a message is longer than a frame or a directory can be.
+ */
+
+@Slf4j
+class NodeLinkListener extends Thread {
+
+    private final ServerSocketChannel serverSocketChannel;
+    private final ClusterNode clusterNode;
+
+    NodeLinkListener(InetSocketAddress address, ClusterNode clusterNode) throws IOException {
+        super("node-link-listener");
+        this.clusterNode = clusterNode;
+        this.serverSocketChannel = ServerSocketChannel.open();
+        this.serverSocketChannel.bind(address);
+        setDaemon(true);
+        log.info("Listening for node links on {}", address);
+    }
+
+    @Override
+    public void run() {
+        while (serverSocketChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverSocketChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                Thread linkReader = new Thread(() -> readingLinkMessages(channel), "node-link-reader");
+                linkReader.setDaemon(true);
+                linkReader.start();
+            } catch (IOException exception) {
+                log.error("Error occurred while accepting node link ", exception);
+            }
+        }
+    }
+
+    private void readingLinkMessages(SocketChannel channel) {
+        Writer writer = new Writer();
+        ByteBuffer header = ByteBuffer.allocate(Constants.LINK_MESSAGE_HEADER_SIZE);
+        int peerNodeId = Constants.CLUSTER_DISABLED;
+
+        try {
+            byte[] challenge = ClusterNode.creatingChallenge();
+            sendingChallenge(channel, challenge);
+
+            while (true) {
+                header.clear();
+                ClusterNode.readingFully(channel, header);
+                header.flip();
+
+                LinkMessageType type = LinkMessageType.fromCode(header.get());
+                int payloadLength = header.getInt();
+                if (payloadLength < 0 || payloadLength > ClusterNode.maxLinkPayloadBytes()) {
+                    log.error("Link message of {} bytes from node {} is over the limit, closing link", payloadLength, peerNodeId);
+                    return;
+                }
+
+                ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+                ClusterNode.readingFully(channel, payload);
+                payload.flip();
+
+                if (peerNodeId == Constants.CLUSTER_DISABLED) {
+                    if (type == LinkMessageType.HELLO)
+                        peerNodeId = clusterNode.authenticatingPeer(payload, challenge);
+
+                    if (peerNodeId == Constants.CLUSTER_DISABLED) {
+                        log.error("Link from {} did not authenticate as a configured node, closing it", channel.getRemoteAddress());
+                        return;
+                    }
+                    log.info("Node {} connected its link", peerNodeId);
+                    continue;
+                }
+
+                if (type == null || type == LinkMessageType.HELLO || type == LinkMessageType.CHALLENGE) {
+                    log.error("Unexpected link message from node {}, ignoring it", peerNodeId);
+                    continue;
+                }
+
+                switch (type) {
+                    case FORWARD:
+                        int forwardingNodeId = peerNodeId;
+                        writer.deliverFrameFromPeerNode(payload.array(),
+                                senderId -> clusterNode.isClientOf(senderId, forwardingNodeId));
+                        break;
+                    case DIRECTORY_ADD:
+                    case DIRECTORY_REMOVE:
+                        if (payloadLength < Constants.BYTE_ARRAY_SIZE_FOR_INT || payload.getInt(0) != peerNodeId) {
+                            log.error("Node {} sent directory of another node, ignoring it", peerNodeId);
+                            break;
+                        }
+                        clusterNode.onDirectoryUpdate(payload, type == LinkMessageType.DIRECTORY_ADD);
+                        break;
+                }
+            }
+        } catch (IOException exception) {
+            log.error("Link from node {} closed", peerNodeId);
+        } finally {
+            if (peerNodeId != Constants.CLUSTER_DISABLED)
+                clusterNode.onLinkLost(peerNodeId);
+
+            try {
+                channel.close();
+            } catch (IOException exception) {
+                log.error("Error occurred while closing node link ", exception);
+            }
+        }
+    }
+
+    private void sendingChallenge(SocketChannel channel, byte[] challenge) throws IOException {
+        ByteBuffer message = ByteBuffer.allocate(Constants.LINK_MESSAGE_HEADER_SIZE + challenge.length);
+        message.put(LinkMessageType.CHALLENGE.getCode()).putInt(challenge.length).put(challenge).flip();
+        while (message.hasRemaining())
+            channel.write(message);
+    }
+}
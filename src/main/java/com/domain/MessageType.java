@@ -15,8 +15,27 @@ import java.util.Optional;
 public enum MessageType {
     LOGIN("LI"),
     LOGOUT("LO"),
+    RESUME("RS"),
     GENERATED_ID("ID"),
-    DATA("DT");
+    DATA("DT"),
+    COMPRESSED_DATA("DZ"),
+    DEADLINE_DATA("DL"),
+    EXPIRED("EX"),
+    EPHEMERAL("EP"),
+    FILE_OFFER("FO"),
+    FILE_CHUNK("FC"),
+    FILE_DONE("FD"),
+    DELIVERED("DR"),
+    PRESENCE_QUERY("PQ"),
+    PRESENCE_WATCH("PW"),
+    PRESENCE_UNWATCH("PX"),
+    PRESENCE_SNAPSHOT("PS"),
+    PRESENCE_UPDATE("PU"),
+    SUBSCRIBE("SB"),
+    UNSUBSCRIBE("US"),
+    PUBLISH("PB"),
+    HISTORY("HI"),
+    HISTORY_PAGE("HP");
 
     private final String messageCode;
 
@@ -24,6 +43,50 @@ public enum MessageType {
         this.messageCode = code;
     }
 
+    /**
+     * Control messages start the session of a client and are
+     * processed before chat traffic. Logout and resume are not, they
+     * must stay behind data the same client sent before them
+     *
+     * @return true for login and generated id messages
+     */
+
+    public boolean isControlMessage() {
+        return this == LOGIN || this == GENERATED_ID;
+    }
+
+    /**
+     * Data messages carry chat traffic from one client to another
+     *
+     * @return true for data, compressed data and deadline data messages
+     */
+
+    public boolean isDataMessage() {
+        return this == DATA || this == COMPRESSED_DATA || this == DEADLINE_DATA;
+    }
+
+    /**
+     * File messages offer, carry and finish file transfers
+     *
+     * @return true for file offer, file chunk and file done messages
+     */
+
+    public boolean isFileMessage() {
+        return this == FILE_OFFER || this == FILE_CHUNK || this == FILE_DONE;
+    }
+
+    /**
+     * Binary messages keep their body as bytes instead of text
+     *
+     * @return true for compressed and deadline data, delivery receipts, expired notices,
+     * presence bitmaps and history pages
+     */
+
+    public boolean hasBinaryBody() {
+        return this == COMPRESSED_DATA || this == DEADLINE_DATA || this == DELIVERED || this == EXPIRED ||
+                this == PRESENCE_SNAPSHOT || this == PRESENCE_UPDATE || this == HISTORY_PAGE;
+    }
+
     /**
      * It gives us enum on its string value
      *
@@ -13,6 +13,12 @@ import lombok.Setter;
  * <p>
  * Magic bytes | Message Type | Source id | Destination id | Message Length     | Message
  * 4 Bytes     | 2 Bytes      | 4 Bytes   | 4 Bytes        |  4 Bytes           | x amount of bytes
+ * <p>
+ * Text messages are kept in message. Frames whose body is binary,
+ * like COMPRESSED_DATA, keep their body untouched in payload
+ * <p>
+ * Ingress time and sequence number are not part of the frame. The
+ * server fills them in for frames it received from its clients
  *
  * @author umar.tahir@afiniti.com
  */
@@ -27,5 +33,8 @@ public class Packet {
     private int messageDestinationId;
     private int messageLength;
     private String message;
+    private byte[] payload;
+    private long ingressNanos;
+    private int sequenceNumber;
 
 }
@@ -0,0 +1,199 @@
+package com.servercore;
+
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control keeps latency of connected clients bounded when
+ * the server has more work than it can do. Writer measures how long
+ * every frame waited between the read of its header and the moment
+ * Writer took it from the message queue, like CoDel does. Lowest wait
+ * of an interval, chat.admission.intervalMillis, tells if there is a
+ * standing queue: a burst drains within the interval and one frame
+ * which did not wait brings the lowest wait under the target, while
+ * a backlog keeps every frame of the interval over
+ * chat.admission.targetMillis.
+ * <p>
+ * Server is overloaded for one interval after an interval whose
+ * lowest wait was over the target. While it is overloaded new
+ * connections are deferred, the listening channel stops accepting
+ * and kernel keeps connections in its backlog, or with
+ * connectionAction=reject they are accepted and closed at once.
+ * With chat.admission.shedHeavySenders a sender gets a fair share of
+ * the bytes Writer took from the queue in the previous interval, split
+ * evenly among the senders of that interval. Data frames of a sender
+ * over shedShareFactor times its share are dropped, so heavy senders
+ * can not keep the backlog from draining. Everything recovers
+ * on its own once an interval stays under the target, or nothing is
+ * measured for an interval.
+ */
+
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class AdmissionControl {
+
+    public static final String OVERLOADED_INTERVALS = "admission.overloadedIntervals";
+    public static final String ACCEPTS_DEFERRED = "admission.acceptsDeferred";
+    public static final String CONNECTIONS_REJECTED = "admission.connectionsRejected";
+    public static final String FRAMES_SHED = "admission.framesShed";
+
+    private static final long TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(ServerConfiguration.ADMISSION_TARGET_MILLIS);
+    private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(ServerConfiguration.ADMISSION_INTERVAL_MILLIS);
+    private static final Deque<SelectionKey> deferredListeners = new ArrayDeque<>();
+    private static volatile long overloadedUntilNanos = System.nanoTime();
+
+    private static volatile long drainedBytesOfLastInterval;
+    private static long lowestWaitNanos = Long.MAX_VALUE;
+    private static long waitIntervalEndNanos = System.nanoTime() + INTERVAL_NANOS;
+    private static long drainedBytes;
+    private static boolean overloaded;
+
+    private static long shareInterval;
+    private static long shareIntervalEndNanos = System.nanoTime() + INTERVAL_NANOS;
+    private static long intervalSenders;
+    private static long fairShareBytes;
+
+    static boolean isEnabled() {
+        return ServerConfiguration.ADMISSION_TARGET_MILLIS != Constants.ADMISSION_DISABLED;
+    }
+
+    /**
+     * Tells if server is over the target right now
+     *
+     * @param nowNanos System.nanoTime()
+     * @return true while admission is limited
+     */
+
+    static boolean isOverloaded(long nowNanos) {
+        return isEnabled() && nowNanos - overloadedUntilNanos < 0;
+    }
+
+    /**
+     * Records how long a frame waited before Writer took it. Closes
+     * the interval once it is over
+     *
+     * @param queuedFrame taken from the message queue
+     * @param nowNanos System.nanoTime()
+     */
+
+    static void measuringWait(QueuedFrame queuedFrame, long nowNanos) {
+        if (!isEnabled() || queuedFrame.getIngressNanos() == 0)
+            return;
+
+        lowestWaitNanos = Math.min(lowestWaitNanos, nowNanos - queuedFrame.getIngressNanos());
+        drainedBytes += queuedFrame.getFrame().length;
+        if (nowNanos - waitIntervalEndNanos < 0)
+            return;
+
+        boolean overTarget = lowestWaitNanos > TARGET_NANOS;
+        if (overTarget) {
+            overloadedUntilNanos = nowNanos + INTERVAL_NANOS;
+            ServerMetrics.counter(OVERLOADED_INTERVALS).increment();
+        }
+
+        if (overTarget != overloaded)
+            log.error(overTarget ? "Frames waited at least {} ms in queue, limiting admission" :
+                    "Queue wait is {} ms again, admitting everything", TimeUnit.NANOSECONDS.toMillis(lowestWaitNanos));
+
+        overloaded = overTarget;
+        drainedBytesOfLastInterval = drainedBytes;
+        drainedBytes = 0;
+        lowestWaitNanos = Long.MAX_VALUE;
+        waitIntervalEndNanos = nowNanos + INTERVAL_NANOS;
+    }
+
+    /**
+     * Decides if a connection waiting on the listening channel is
+     * accepted now
+     *
+     * @param key of the listening channel
+     * @return true if connection should be accepted as usual
+     * @throws IOException if rejected connection can not be accepted
+     */
+
+    static boolean isAdmittingConnection(SelectionKey key) throws IOException {
+        if (!isOverloaded(System.nanoTime()))
+            return true;
+
+        if (Constants.ADMISSION_ACTION_REJECT.equalsIgnoreCase(ServerConfiguration.ADMISSION_CONNECTION_ACTION)) {
+            SocketChannel rejected = ((ServerSocketChannel) key.channel()).accept();
+            if (rejected != null) {
+                ServerMetrics.counter(CONNECTIONS_REJECTED).increment();
+                rejected.close();
+            }
+            return false;
+        }
+
+        ServerMetrics.counter(ACCEPTS_DEFERRED).increment();
+        key.interestOps(0);
+        deferredListeners.add(key);
+        return false;
+    }
+
+    static boolean hasDeferredAccepts() {
+        return !deferredListeners.isEmpty();
+    }
+
+    /**
+     * Lets listening channels accept again once overload is over
+     */
+
+    static void resumingDeferredAccepts() {
+        if (deferredListeners.isEmpty() || isOverloaded(System.nanoTime()))
+            return;
+
+        SelectionKey key;
+        while ((key = deferredListeners.poll()) != null)
+            if (key.isValid())
+                key.interestOps(SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Counts bytes a session sent in this interval and tells if its
+     * data frame is shed because server is overloaded and session is
+     * one of the heaviest senders
+     *
+     * @param session which sent the frame
+     * @param frameBytes size of the frame
+     * @param nowNanos System.nanoTime()
+     * @return true if frame should be dropped
+     */
+
+    static boolean isShed(ConnectionSession session, long frameBytes, long nowNanos) {
+        if (!isEnabled() || !ServerConfiguration.ADMISSION_SHED_HEAVY_SENDERS)
+            return false;
+
+        if (nowNanos - shareIntervalEndNanos >= 0) {
+            fairShareBytes = drainedBytesOfLastInterval / Math.max(1, intervalSenders);
+            intervalSenders = 0;
+            shareInterval++;
+            shareIntervalEndNanos = nowNanos + INTERVAL_NANOS;
+        }
+
+        if (session.getAdmissionInterval() != shareInterval) {
+            session.setAdmissionInterval(shareInterval);
+            session.setAdmissionBytes(0);
+            intervalSenders++;
+        }
+
+        session.setAdmissionBytes(session.getAdmissionBytes() + frameBytes);
+
+        if (!isOverloaded(nowNanos) ||
+                session.getAdmissionBytes() <= fairShareBytes * ServerConfiguration.ADMISSION_SHED_SHARE_FACTOR)
+            return false;
+
+        ServerMetrics.counter(FRAMES_SHED).increment();
+        return true;
+    }
+}
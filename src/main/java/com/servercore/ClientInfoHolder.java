@@ -1,15 +1,17 @@
 package com.servercore;
 
+import com.cluster.ClusterNode;
 import com.domain.Packet;
 import com.utilities.Adaptor;
 import com.utilities.Constants;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -34,8 +36,9 @@ public class ClientInfoHolder {
 
     protected static final Map<Integer, SocketChannel> informationOfConnectedClients = new ConcurrentHashMap<>();
     protected static final ExecutorService threadPoolToGenerateAndSendId = Executors.newFixedThreadPool(Constants.NUMBER_OF_THREADS_IN_THREAD_POOL);
-    protected static final Map<Integer, Integer> informationOfMagicNumber = new HashMap<>();
-    private static final AtomicInteger clientCounter = new AtomicInteger(0);
+    protected static final Map<Integer, Integer> informationOfMagicNumber = new ConcurrentHashMap<>();
+    protected static final Set<Integer> clientsAcceptingCompression = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger clientCounter = new AtomicInteger(ClusterNode.getInstance().getClientIdRangeStart());
     private Writer writer = new Writer();
     private Adaptor adaptor = new Adaptor();
 
@@ -64,6 +67,44 @@ public class ClientInfoHolder {
         return magicNumber;
     }
 
+    /**
+     * Continues ids where the run before restart stopped, so a new
+     * client never gets the id of a client which may still resume
+     *
+     * @param lastClientId last id given before restart
+     */
+
+    static void restoringClientCounter(int lastClientId) {
+        clientCounter.accumulateAndGet(lastClientId, Math::max);
+    }
+
+    static int currentClientCounter() {
+        return clientCounter.get();
+    }
+
+    /**
+     * Moves connection which got a new id back to the id it had
+     * before restart and logs it in with its old magic number
+     *
+     * @param oldId id before restart
+     * @param newId id given to the connection after restart
+     * @param magicNumber magic number before restart
+     * @param acceptsCompression true if client negotiated compression before restart
+     */
+
+    static void resumingClient(int oldId, int newId, int magicNumber, boolean acceptsCompression) {
+        SocketChannel channel = informationOfConnectedClients.remove(newId);
+        PresenceService.markOffline(newId);
+        ClusterNode.getInstance().clientLeft(newId);
+
+        informationOfConnectedClients.put(oldId, channel);
+        informationOfMagicNumber.put(oldId, magicNumber);
+        if (acceptsCompression)
+            clientsAcceptingCompression.add(oldId);
+        PresenceService.markOnline(oldId);
+        ClusterNode.getInstance().clientJoined(oldId);
+    }
+
     /**
      * This method is used to check the magic number we received from client
      * is correct or not
@@ -74,7 +115,8 @@ public class ClientInfoHolder {
      */
 
     public static boolean authenticateClient(Packet packet) {
-        if (ClientInfoHolder.informationOfMagicNumber.get(packet.getMessageSourceId()) == packet.getMagicBytes()) {
+        Integer magicNumber = ClientInfoHolder.informationOfMagicNumber.get(packet.getMessageSourceId());
+        if (magicNumber != null && magicNumber == packet.getMagicBytes()) {
             log.info("Authentication failed. Discarding the whole message");
             return true;
         }
@@ -94,10 +136,22 @@ public class ClientInfoHolder {
         return ClientInfoHolder.informationOfConnectedClients.get(messageSourceId);
     }
 
+    /**
+     * Tells if client negotiated payload compression at login
+     *
+     * @param clientId id of the client
+     * @return true if compressed frames can be sent to client
+     */
+
+    public static boolean isCompressionAccepted(int clientId) {
+        return clientsAcceptingCompression.contains(clientId);
+    }
+
     /**
      * This method takes the channel which is created after the
      * acceptance of connection. In this method we generate Id
-     * and pass it to client.
+     * and pass it to client. Connection is refused once ids of
+     * this node ran out, its id could belong to another node
      *
      * @param channel client channel
      *
@@ -109,16 +163,22 @@ public class ClientInfoHolder {
 
         log.info("Client Id created: " + clientId);
 
+        if (!ClusterNode.getInstance().isInClientIdRange(clientId)) {
+            log.error("Client id {} is outside of the id range of this node, refusing connection", clientId);
+            refusingConnection(channel);
+            return;
+        }
+
         try {
             log.info("Calling createClientID() and makingPacketWithGeneratedId()");
             Packet packet = adaptor.makingPacketWithGeneratedId(clientId);
 
+            log.info("Calling savingInfoOfConnectedClients() method before client can use the id");
+            savingInfoOfConnectedClients(clientId, channel);
+
             log.info("Calling getBytesArrayFromPacket() method and sendingMessageToClient");
             writer.sendingMessageToClient(adaptor.getBytesArrayFromPacket(packet), channel);
 
-            log.info("Calling savingInfoOfConnectedClients() method");
-            savingInfoOfConnectedClients(clientId, channel);
-
         } catch (Exception exception) {
             log.error("Exception occur while sending packet to client");
             exception.printStackTrace();
@@ -127,7 +187,23 @@ public class ClientInfoHolder {
     }
 
     /**
-     * Save the client's information
+     * Shuts connection down, event loop reads its end and closes it
+     *
+     * @param channel client's channel
+     */
+
+    private void refusingConnection(SocketChannel channel) {
+        try {
+            channel.shutdownOutput();
+            channel.shutdownInput();
+        } catch (IOException exception) {
+            log.error("Error occurred while refusing connection ", exception);
+        }
+    }
+
+    /**
+     * Save the client's information, mark client as online and tell
+     * other nodes of the cluster where client is connected
      *
      * @param clientId id of the client
      * @param channel  client's channel
@@ -135,5 +211,7 @@ public class ClientInfoHolder {
 
     private void savingInfoOfConnectedClients(int clientId, SocketChannel channel) {
         informationOfConnectedClients.put(clientId, channel);
+        PresenceService.markOnline(clientId);
+        ClusterNode.getInstance().clientJoined(clientId);
     }
 }
@@ -0,0 +1,222 @@
+package com.servercore;
+
+import com.domain.Packet;
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class holds the state of one client connection. It is
+ * attached to the selection key of the connection and keeps the
+ * frame which is currently being decoded from the connection,
+ * so bytes of different clients never get mixed together.
+ * <p>
+ * During a cut-through transfer the source session points to
+ * its destination session and the other way round. Frames for the
+ * destination wait in its outbound queue until the cut-through
+ * frame is done, so no other frame gets written into the middle of
+ * it. Outbound lock guards the queue and is never held while waiting
+ * for a socket.
+ * <p>
+ * Every data frame of the client gets the next sequence number of
+ * the session, which delivery receipts refer to. When TLS is enabled
+ * the session holds TLS state of the connection as well, and browser
+ * connections hold their WebSocket state.
+ * <p>
+ * Buffers of the session are created on first use. In lean mode,
+ * chat.connections.lean, header buffer is dropped after every frame
+ * and body of a frame grows with the bytes which arrived, so an idle
+ * connection holds no buffer at all and a connection with part of a
+ * frame holds at most twice the bytes it sent.
+ */
+
+@Getter
+@Setter
+public class ConnectionSession {
+
+    private static final Map<SocketChannel, ConnectionSession> sessions = new ConcurrentHashMap<>();
+    private static final AtomicInteger connectionIds = new AtomicInteger();
+
+    enum FrameState {
+        READING_HEADER,
+        ADMITTING,
+        ASSEMBLING_BODY,
+        AWAITING_DESTINATION,
+        CUT_THROUGH,
+        SPOOLING_BODY,
+        DRAINING_BODY
+    }
+
+    private final int connectionId = connectionIds.incrementAndGet();
+    private final SocketChannel socketChannel;
+    private final SelectionKey selectionKey;
+    private final ReentrantLock outboundLock = new ReentrantLock();
+    private final OutboundQueue outboundQueue = new OutboundQueue(this);
+    private final AtomicInteger dataSequenceNumber = new AtomicInteger();
+    private FrameState frameState = FrameState.READING_HEADER;
+    private Packet frameHeader;
+    private long frameIngressNanos;
+    private int frameSequenceNumber;
+    private byte[] frameBytes;
+    private int frameBytesFilled;
+    private long remainingBodyBytes;
+    private ConnectionSession cutThroughDestination;
+    private ConnectionSession cutThroughSource;
+    private long cutThroughProgressNanos;
+    private ConnectionSession awaitedDestination;
+    private ByteBuffer pendingOutput;
+    private ByteBuffer stalledInput;
+    private TlsTransport tls;
+    private WebSocketTransport webSocket;
+    private boolean paused;
+    private boolean ready;
+    private int frameBudget;
+    private int receiveSizeClass;
+    private boolean shrinkPending;
+    private ByteBuffer headerBuffer;
+    private Deque<ConnectionSession> waitingSources;
+    private long rateLimitTimestamp = System.nanoTime() - TimeUnit.SECONDS.toNanos(1);
+    private long messageTokens;
+    private long byteTokens;
+    private long admissionInterval = -1;
+    private long admissionBytes;
+    private PatternAutomaton filterAutomaton;
+    private int filterState;
+    private int filterAction;
+    private int filterPattern;
+
+    private ConnectionSession(SocketChannel socketChannel, SelectionKey selectionKey) {
+        this.socketChannel = socketChannel;
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * Creates session for newly accepted connection and attaches
+     * it to the selection key of that connection
+     *
+     * @param selectionKey key of registered client channel
+     * @return new session
+     */
+
+    static ConnectionSession open(SelectionKey selectionKey) {
+        SocketChannel channel = (SocketChannel) selectionKey.channel();
+        ConnectionSession session = new ConnectionSession(channel, selectionKey);
+        selectionKey.attach(session);
+        sessions.put(channel, session);
+        return session;
+    }
+
+    /**
+     * Returns session of the given channel
+     *
+     * @param socketChannel client channel
+     * @return session or null if channel is unknown or closed
+     */
+
+    public static ConnectionSession of(SocketChannel socketChannel) {
+        if (socketChannel == null)
+            return null;
+
+        return sessions.get(socketChannel);
+    }
+
+    /**
+     * Sessions of the connections which are open at the moment
+     *
+     * @return live view of the sessions
+     */
+
+    static Collection<ConnectionSession> openSessions() {
+        return sessions.values();
+    }
+
+    /**
+     * Forget the session once its connection is closed
+     *
+     * @param session to forget
+     */
+
+    static void remove(ConnectionSession session) {
+        sessions.remove(session.getSocketChannel());
+    }
+
+    /**
+     * Stops reading from the channel until session is resumed
+     */
+
+    void pause() {
+        paused = true;
+        if (selectionKey.isValid())
+            selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    ByteBuffer getHeaderBuffer() {
+        if (headerBuffer == null)
+            headerBuffer = ByteBuffer.allocate(Constants.START_OF_MESSAGE_INCLUSIVE);
+        return headerBuffer;
+    }
+
+    Deque<ConnectionSession> getWaitingSources() {
+        if (waitingSources == null)
+            waitingSources = new ArrayDeque<>(1);
+        return waitingSources;
+    }
+
+    /**
+     * Bytes held by the buffers of the session, none for a connection
+     * which is idle
+     *
+     * @return capacity of the buffers
+     */
+
+    long bufferedBytes() {
+        return capacityOf(headerBuffer) + (frameBytes == null ? 0 : frameBytes.length) + capacityOf(pendingOutput) +
+                capacityOf(stalledInput);
+    }
+
+    /**
+     * Bytes written to a client over TLS or WebSocket have to be
+     * encrypted or framed, so they can not be copied to it directly
+     *
+     * @return true if connection uses TLS or WebSocket
+     */
+
+    boolean hasTransport() {
+        return tls != null || webSocket != null;
+    }
+
+    /**
+     * Prepare session for decoding of the next frame
+     */
+
+    void resetFrame() {
+        frameState = FrameState.READING_HEADER;
+        frameHeader = null;
+        frameBytes = null;
+        frameBytesFilled = 0;
+        remainingBodyBytes = 0;
+        filterAutomaton = null;
+
+        if (ServerConfiguration.LEAN_CONNECTIONS)
+            headerBuffer = null;
+        else if (headerBuffer != null)
+            headerBuffer.clear();
+    }
+
+    private static long capacityOf(ByteBuffer buffer) {
+        return buffer == null ? 0 : buffer.capacity();
+    }
+}
@@ -0,0 +1,300 @@
+package com.servercore;
+
+import com.domain.MessageType;
+import com.domain.Packet;
+import com.utilities.Constants;
+import com.utilities.PayloadCodec;
+import com.utilities.PayloadCodecs;
+import com.utilities.ServerConfiguration;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Content filter scans bodies of DATA, DEADLINE_DATA and
+ * COMPRESSED_DATA frames for banned terms and secrets before they are
+ * queued. Patterns are read
+ * from chat.filter.file, one per line, after their action:
+ * <p>
+ * block password=
+ * redact AKIA
+ * flag -----BEGIN
+ * <p>
+ * Blocked frames are dropped, redacted ones have every match
+ * overwritten with '*' in the frame bytes, flagged ones are counted
+ * and logged with the line of their pattern, never with the match.
+ * Lines starting with # are comments. Patterns are compiled into a
+ * PatternAutomaton which scans raw frame bytes, nothing is decoded
+ * into a String. File is checked for changes every
+ * chat.filter.reloadSeconds and swapped in without stopping the
+ * server; a file which can not be read keeps the patterns before it.
+ * <p>
+ * Cut-through frames are scanned chunk by chunk while only flag
+ * patterns are loaded. Once block or redact patterns are loaded, DATA
+ * frames are always assembled, a chunk which was already forwarded
+ * could not be taken back. COMPRESSED_DATA bodies are decompressed
+ * to be scanned, so they are never forwarded cut-through while the
+ * filter is enabled. A redacted one is compressed again, one which can
+ * not be decompressed is dropped.
+ */
+
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class ContentFilter {
+
+    public static final String FRAMES_BLOCKED = "filter.framesBlocked";
+    public static final String FRAMES_REDACTED = "filter.framesRedacted";
+    public static final String FRAMES_FLAGGED = "filter.framesFlagged";
+    public static final String RELOADS = "filter.reloads";
+
+    private static final byte[] DEADLINE_TYPE_CODE = MessageType.DEADLINE_DATA.getMessageCode().getBytes();
+    private static final PayloadCodec payloadCodec = PayloadCodecs.getConfiguredCodec();
+    private static volatile PatternAutomaton automaton = PatternAutomaton.EMPTY;
+    private static FileTime loadedModificationTime;
+
+    static boolean isEnabled() {
+        return !ServerConfiguration.FILTER_FILE.isEmpty();
+    }
+
+    /**
+     * Loads patterns and starts watching the pattern file
+     */
+
+    static void start() {
+        if (!isEnabled())
+            return;
+
+        Path patternFile = Paths.get(ServerConfiguration.FILTER_FILE);
+        reloading(patternFile);
+
+        ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "content-filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watcher.scheduleWithFixedDelay(() -> reloading(patternFile),
+                ServerConfiguration.FILTER_RELOAD_SECONDS, ServerConfiguration.FILTER_RELOAD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Tells if frame whose header was read may be forwarded
+     * cut-through. Cut-through DATA frames can only be flagged,
+     * COMPRESSED_DATA frames can not be scanned chunk by chunk at all
+     *
+     * @param frameHeader decoded header
+     * @return false if frame has to be assembled so it can be scanned, blocked or redacted
+     */
+
+    static boolean isStreamable(Packet frameHeader) {
+        if (frameHeader.getMessageType() == MessageType.COMPRESSED_DATA)
+            return !isEnabled();
+        return !isScanned(frameHeader.getMessageType()) || automaton.isStreamable();
+    }
+
+    /**
+     * Scans assembled frame of the session and applies actions of
+     * the patterns it matched
+     *
+     * @param session whose frame bytes are complete
+     * @return false if frame is blocked and must be dropped
+     */
+
+    static boolean isAllowed(ConnectionSession session) {
+        Packet frameHeader = session.getFrameHeader();
+        if (!isEnabled() || !isScanned(frameHeader.getMessageType()))
+            return true;
+
+        if (frameHeader.getMessageType() == MessageType.COMPRESSED_DATA)
+            return isCompressedFrameAllowed(session);
+
+        byte[] frame = session.getFrameBytes();
+        int bodyEnd = Math.min(frame.length, Constants.START_OF_MESSAGE_INCLUSIVE + frameHeader.getMessageLength());
+        startingScan(session);
+        session.getFilterAutomaton().scanning(session, ByteBuffer.wrap(frame), bodyStart(frame), bodyEnd, true,
+                Constants.FILTER_REDACTION_BYTE);
+
+        return applyingAction(session);
+    }
+
+    /**
+     * Scans decompressed body of an assembled COMPRESSED_DATA frame. If
+     * the body was redacted, frame bytes of the session are replaced
+     * with the redacted body compressed again
+     *
+     * @param session whose frame bytes are complete
+     * @return false if frame is blocked or can not be decompressed
+     */
+
+    private static boolean isCompressedFrameAllowed(ConnectionSession session) {
+        Packet frameHeader = session.getFrameHeader();
+        byte[] frame = session.getFrameBytes();
+        byte[] body;
+
+        try {
+            body = payloadCodec.decompress(Arrays.copyOfRange(frame, Constants.START_OF_MESSAGE_INCLUSIVE,
+                    Math.min(frame.length, Constants.START_OF_MESSAGE_INCLUSIVE + frameHeader.getMessageLength())),
+                    ServerConfiguration.MAX_DECOMPRESSED_MESSAGE_BYTES);
+        } catch (IOException exception) {
+            ServerMetrics.counter(FRAMES_BLOCKED).increment();
+            log.error("Compressed frame of client {} for {} can not be scanned, dropping it",
+                    frameHeader.getMessageSourceId(), frameHeader.getMessageDestinationId(), exception);
+            return false;
+        }
+
+        startingScan(session);
+        session.getFilterAutomaton().scanning(session, ByteBuffer.wrap(body), 0, body.length, true,
+                Constants.FILTER_REDACTION_BYTE);
+
+        if (session.getFilterAction() == PatternAutomaton.REDACT) {
+            byte[] compressedBody = payloadCodec.compress(body);
+            byte[] redactedFrame = Arrays.copyOf(frame, Constants.START_OF_MESSAGE_INCLUSIVE + compressedBody.length);
+
+            ByteBuffer.wrap(redactedFrame).putInt(Constants.START_OF_MESSAGE_LENGTH_INCLUSIVE, compressedBody.length);
+            System.arraycopy(compressedBody, 0, redactedFrame, Constants.START_OF_MESSAGE_INCLUSIVE, compressedBody.length);
+            session.setFrameBytes(redactedFrame);
+        }
+
+        return applyingAction(session);
+    }
+
+    /**
+     * Starts scanning of a cut-through frame
+     *
+     * @param session which sends the frame
+     */
+
+    static void startingStream(ConnectionSession session) {
+        if (isEnabled() && isScanned(session.getFrameHeader().getMessageType()))
+            startingScan(session);
+    }
+
+    /**
+     * Scans body chunk of a cut-through frame before it is forwarded,
+     * with the scan state left by previous chunk
+     *
+     * @param session which sends the frame
+     * @param chunk part of the body, between position and limit
+     */
+
+    static void scanningChunk(ConnectionSession session, ByteBuffer chunk) {
+        if (session.getFilterAutomaton() != null)
+            session.getFilterAutomaton().scanning(session, chunk, chunk.position(), chunk.limit(), false,
+                    Constants.FILTER_REDACTION_BYTE);
+    }
+
+    /**
+     * Applies the action of a cut-through frame once it was forwarded
+     *
+     * @param session which sent the frame
+     */
+
+    static void finishingStream(ConnectionSession session) {
+        if (session.getFilterAutomaton() != null)
+            applyingAction(session);
+    }
+
+    private static void startingScan(ConnectionSession session) {
+        session.setFilterAutomaton(automaton);
+        session.setFilterState(PatternAutomaton.START_STATE);
+        session.setFilterAction(PatternAutomaton.NO_ACTION);
+        session.setFilterPattern(-1);
+    }
+
+    private static boolean applyingAction(ConnectionSession session) {
+        int action = session.getFilterAction();
+        if (action == PatternAutomaton.NO_ACTION)
+            return true;
+
+        Packet frameHeader = session.getFrameHeader();
+        int line = session.getFilterAutomaton().lineOf(session.getFilterPattern());
+
+        if (action == PatternAutomaton.BLOCK) {
+            ServerMetrics.counter(FRAMES_BLOCKED).increment();
+            log.error("Frame of client {} for {} blocked by filter pattern on line {}",
+                    frameHeader.getMessageSourceId(), frameHeader.getMessageDestinationId(), line);
+            return false;
+        }
+
+        ServerMetrics.counter(action == PatternAutomaton.REDACT ? FRAMES_REDACTED : FRAMES_FLAGGED).increment();
+        log.error("Frame of client {} for {} {} by filter pattern on line {}", frameHeader.getMessageSourceId(),
+                frameHeader.getMessageDestinationId(), action == PatternAutomaton.REDACT ? "redacted" : "flagged", line);
+        return true;
+    }
+
+    private static void reloading(Path patternFile) {
+        try {
+            FileTime modificationTime = Files.getLastModifiedTime(patternFile);
+            if (modificationTime.equals(loadedModificationTime))
+                return;
+
+            List<byte[]> patterns = new ArrayList<>();
+            List<Integer> actions = new ArrayList<>();
+            List<Integer> lines = new ArrayList<>();
+            List<String> fileLines = Files.readAllLines(patternFile, StandardCharsets.UTF_8);
+
+            for (int index = 0; index < fileLines.size(); index++) {
+                String line = fileLines.get(index).trim();
+                if (line.isEmpty() || line.startsWith(Constants.FILTER_COMMENT_PREFIX))
+                    continue;
+
+                String[] actionAndPattern = line.split("\\s+", 2);
+                int action = actionOf(actionAndPattern[0]);
+                if (action == PatternAutomaton.NO_ACTION || actionAndPattern.length < 2) {
+                    log.error("Ignoring line {} of filter file {}, expected action and pattern", index + 1, patternFile);
+                    continue;
+                }
+
+                patterns.add(actionAndPattern[1].getBytes(StandardCharsets.UTF_8));
+                actions.add(action);
+                lines.add(index + 1);
+            }
+
+            PatternAutomaton compiled = new PatternAutomaton(patterns.toArray(new byte[0][]),
+                    actions.stream().mapToInt(Integer::intValue).toArray(), lines.stream().mapToInt(Integer::intValue).toArray(),
+                    ServerConfiguration.FILTER_IGNORE_CASE);
+            automaton = compiled;
+            loadedModificationTime = modificationTime;
+
+            ServerMetrics.counter(RELOADS).increment();
+            log.error("Loaded {} filter patterns from {}", compiled.getPatternCount(), patternFile);
+        } catch (IOException | RuntimeException exception) {
+            log.error("Error occurred while loading filter file {}, keeping previous patterns", patternFile, exception);
+        }
+    }
+
+    private static int actionOf(String name) {
+        if (Constants.FILTER_ACTION_BLOCK.equalsIgnoreCase(name))
+            return PatternAutomaton.BLOCK;
+        if (Constants.FILTER_ACTION_REDACT.equalsIgnoreCase(name))
+            return PatternAutomaton.REDACT;
+        if (Constants.FILTER_ACTION_FLAG.equalsIgnoreCase(name))
+            return PatternAutomaton.FLAG;
+        return PatternAutomaton.NO_ACTION;
+    }
+
+    private static boolean isScanned(MessageType messageType) {
+        return messageType == MessageType.DATA || messageType == MessageType.DEADLINE_DATA ||
+                messageType == MessageType.COMPRESSED_DATA;
+    }
+
+    private static int bodyStart(byte[] frame) {
+        boolean deadlineFrame = frame[Constants.START_OF_MESSAGE_TYPE_INCLUSIVE] == DEADLINE_TYPE_CODE[0] &&
+                frame[Constants.START_OF_MESSAGE_TYPE_INCLUSIVE + 1] == DEADLINE_TYPE_CODE[1];
+
+        return Math.min(frame.length, Constants.START_OF_MESSAGE_INCLUSIVE + (deadlineFrame ? Constants.DEADLINE_PREFIX_SIZE : 0));
+    }
+}
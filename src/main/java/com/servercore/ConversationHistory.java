@@ -0,0 +1,120 @@
+package com.servercore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Last frames of one conversation, kept in a ring of bytes outside of
+ * the heap. Frames are stored one after another; a frame which does
+ * not fit before the end of the ring starts again at its beginning.
+ * Oldest frames are dropped when there is no room for a new one or
+ * when the conversation already holds the maximum number of frames.
+ * <p>
+ * Every frame gets an index which grows by one per frame, so pages can
+ * be fetched backwards starting from any index. Not thread safe, the
+ * store synchronizes access.
+ */
+
+class ConversationHistory {
+
+    private final ByteBuffer ring;
+    private final int[] offsets;
+    private final int[] lengths;
+    private long firstIndex;
+    private int count;
+    private int writeOffset;
+
+    ConversationHistory(ByteBuffer ring, int maxFrames) {
+        this.ring = ring;
+        this.offsets = new int[maxFrames];
+        this.lengths = new int[maxFrames];
+    }
+
+    ByteBuffer getRing() {
+        return ring;
+    }
+
+    /**
+     * Appends frame, dropping oldest frames to make room
+     *
+     * @param frame complete frame in bytes
+     * @return false if frame is bigger than the whole ring
+     */
+
+    boolean append(byte[] frame) {
+        if (frame.length > ring.capacity())
+            return false;
+
+        if (count == offsets.length)
+            droppingOldest();
+
+        int offset;
+        while ((offset = findingRoomFor(frame.length)) < 0)
+            droppingOldest();
+
+        ByteBuffer target = ring.duplicate();
+        target.position(offset);
+        target.put(frame);
+
+        int slot = (int) ((firstIndex + count) % offsets.length);
+        offsets[slot] = offset;
+        lengths[slot] = frame.length;
+        count++;
+        writeOffset = offset + frame.length;
+        return true;
+    }
+
+    /**
+     * Frames older than the given index, oldest first
+     *
+     * @param beforeIndex exclusive upper bound, a negative value means newest frame
+     * @param maxFrames page size
+     * @return frames of the page
+     */
+
+    List<byte[]> page(long beforeIndex, int maxFrames) {
+        long endIndex = beforeIndex < 0 ? nextIndex() : Math.min(beforeIndex, nextIndex());
+        long startIndex = Math.max(firstIndex, endIndex - maxFrames);
+
+        List<byte[]> frames = new ArrayList<>();
+        for (long index = startIndex; index < endIndex; index++) {
+            int slot = (int) (index % offsets.length);
+            byte[] frame = new byte[lengths[slot]];
+            ByteBuffer source = ring.duplicate();
+            source.position(offsets[slot]);
+            source.get(frame);
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    long getFirstIndex() {
+        return firstIndex;
+    }
+
+    long nextIndex() {
+        return firstIndex + count;
+    }
+
+    private int findingRoomFor(int length) {
+        if (count == 0) {
+            writeOffset = 0;
+            return 0;
+        }
+
+        int oldestOffset = offsets[(int) (firstIndex % offsets.length)];
+        if (oldestOffset >= writeOffset)
+            return oldestOffset - writeOffset >= length ? writeOffset : -1;
+
+        if (ring.capacity() - writeOffset >= length)
+            return writeOffset;
+
+        return oldestOffset >= length ? 0 : -1;
+    }
+
+    private void droppingOldest() {
+        firstIndex++;
+        count--;
+    }
+}
@@ -0,0 +1,329 @@
+package com.servercore;
+
+import com.domain.MessageType;
+import com.domain.Packet;
+import com.utilities.Adaptor;
+import com.utilities.ServerConfiguration;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class forwards body of large DATA frames to the destination
+ * while the body is still being read from the source. At most one
+ * chunk per transfer is kept in memory: when destination can not
+ * take a chunk, the source stops reading until the chunk is flushed.
+ * <p>
+ * Frames of other senders wait in the outbound queue of the
+ * destination while a transfer runs. A transfer whose bytes did not
+ * move for chat.cutThrough.idleTimeoutMillis is given up: a
+ * destination which stopped reading is closed, a source which stopped
+ * sending is closed together with the destination, which got part of
+ * a frame and can not find start of the next one.
+ * <p>
+ * All methods run on the event loop thread.
+ */
+
+@Slf4j
+@RequiredArgsConstructor
+class CutThroughForwarder {
+    private final Reader reader;
+    private final Writer writer = new Writer();
+    private final Adaptor adaptor = new Adaptor();
+    private final Set<ConnectionSession> transferringSources = new HashSet<>();
+
+    /**
+     * Only DATA frames above the threshold for clients of this node
+     * are forwarded cut-through, compressed frames only when recipient
+     * can take them unchanged. Recipients connected over TLS or
+     * WebSocket get whole frames, which the writer encrypts or frames
+     *
+     * @param frameHeader decoded header
+     * @return true if frame should be forwarded cut-through
+     */
+
+    boolean isCutThroughCandidate(Packet frameHeader) {
+        if (!ServerConfiguration.CUT_THROUGH_ENABLED ||
+                frameHeader.getMessageLength() < ServerConfiguration.CUT_THROUGH_THRESHOLD_BYTES ||
+                !ContentFilter.isStreamable(frameHeader))
+            return false;
+
+        ConnectionSession destination = ConnectionSession.of(ClientInfoHolder.getSocketChannel(frameHeader.getMessageDestinationId()));
+        if (destination == null || destination.hasTransport())
+            return false;
+
+        if (frameHeader.getMessageType().equals(MessageType.DATA))
+            return true;
+
+        return frameHeader.getMessageType().equals(MessageType.COMPRESSED_DATA) &&
+                ClientInfoHolder.isCompressionAccepted(frameHeader.getMessageDestinationId());
+    }
+
+    /**
+     * Resolves destination of the frame and starts the transfer. If
+     * destination is busy with another cut-through frame, the source
+     * waits for it
+     *
+     * @param source session which sends the frame
+     * @param messageQueue queue of complete frames
+     */
+
+    void attemptingCutThrough(ConnectionSession source, PriorityLanes<QueuedFrame> messageQueue) {
+        Packet frameHeader = source.getFrameHeader();
+
+        if (!ClientInfoHolder.authenticateClient(frameHeader)) {
+            log.error("Authentication failed. Discarding the whole message");
+            source.setFrameState(ConnectionSession.FrameState.DRAINING_BODY);
+            return;
+        }
+
+        ConnectionSession destination = ConnectionSession.of(
+                ClientInfoHolder.getSocketChannel(frameHeader.getMessageDestinationId()));
+
+        if (destination == null) {
+            log.error("Destination not present, discarding the frame");
+            sendingErrorMessage(frameHeader);
+            source.setFrameState(ConnectionSession.FrameState.DRAINING_BODY);
+            return;
+        }
+
+        if (!destination.getOutboundQueue().startingCutThrough(source)) {
+            log.info("Destination is busy with another frame, waiting for it");
+            destination.getWaitingSources().add(source);
+            source.setAwaitedDestination(destination);
+            source.pause();
+            return;
+        }
+
+        source.setCutThroughDestination(destination);
+        source.setCutThroughProgressNanos(System.nanoTime());
+        transferringSources.add(source);
+        source.setFrameState(ConnectionSession.FrameState.CUT_THROUGH);
+        ContentFilter.startingStream(source);
+
+        log.info("Writing frame header to destination");
+        writingToDestination(source, ByteBuffer.wrap(source.getHeaderBuffer().array()), messageQueue);
+    }
+
+    /**
+     * Forwards the part of the body which is present in input
+     *
+     * @param source session which sends the frame
+     * @param input bytes read from source
+     * @param messageQueue queue of complete frames
+     */
+
+    void forwardingBodyChunk(ConnectionSession source, ByteBuffer input, PriorityLanes<QueuedFrame> messageQueue) {
+        int length = (int) Math.min(input.remaining(), source.getRemainingBodyBytes());
+        ByteBuffer chunk = input.duplicate();
+        chunk.limit(chunk.position() + length);
+
+        input.position(input.position() + length);
+        source.setRemainingBodyBytes(source.getRemainingBodyBytes() - length);
+
+        ContentFilter.scanningChunk(source, chunk);
+        writingToDestination(source, chunk, messageQueue);
+    }
+
+    private void writingToDestination(ConnectionSession source, ByteBuffer chunk, PriorityLanes<QueuedFrame> messageQueue) {
+        ConnectionSession destination = source.getCutThroughDestination();
+
+        try {
+            if (destination.getSocketChannel().write(chunk) > 0)
+                source.setCutThroughProgressNanos(System.nanoTime());
+        } catch (IOException exception) {
+            log.error("Destination disconnected in the middle of frame ", exception);
+            reader.closingClientConnection(destination, messageQueue);
+            return;
+        }
+
+        if (chunk.hasRemaining()) {
+            log.info("Destination can not take more bytes, pausing the source");
+            ByteBuffer pendingOutput = ByteBuffer.allocate(chunk.remaining());
+            pendingOutput.put(chunk);
+            pendingOutput.flip();
+
+            source.setPendingOutput(pendingOutput);
+            source.pause();
+            SelectionKey destinationKey = destination.getSelectionKey();
+            destinationKey.interestOps(destinationKey.interestOps() | SelectionKey.OP_WRITE);
+            return;
+        }
+
+        if (source.getRemainingBodyBytes() == 0)
+            finishingCutThrough(source, messageQueue);
+    }
+
+    /**
+     * Flushes chunk which destination could not take before and lets
+     * the source continue once it is written completely
+     *
+     * @param destinationKey key of destination channel
+     * @param messageQueue queue of complete frames
+     */
+
+    void flushingPendingOutput(SelectionKey destinationKey, PriorityLanes<QueuedFrame> messageQueue) {
+        ConnectionSession destination = (ConnectionSession) destinationKey.attachment();
+        ConnectionSession source = destination.getCutThroughSource();
+
+        if (source == null || source.getPendingOutput() == null) {
+            destinationKey.interestOps(destinationKey.interestOps() & ~SelectionKey.OP_WRITE);
+            return;
+        }
+
+        ByteBuffer pendingOutput = source.getPendingOutput();
+        try {
+            if (destination.getSocketChannel().write(pendingOutput) > 0)
+                source.setCutThroughProgressNanos(System.nanoTime());
+        } catch (IOException exception) {
+            log.error("Destination disconnected in the middle of frame ", exception);
+            reader.closingClientConnection(destination, messageQueue);
+            return;
+        }
+
+        if (pendingOutput.hasRemaining()) return;
+
+        source.setPendingOutput(null);
+        destinationKey.interestOps(destinationKey.interestOps() & ~SelectionKey.OP_WRITE);
+
+        if (source.getRemainingBodyBytes() == 0)
+            finishingCutThrough(source, messageQueue);
+
+        reader.resumingPausedSession(source, messageQueue);
+    }
+
+    private void finishingCutThrough(ConnectionSession source, PriorityLanes<QueuedFrame> messageQueue) {
+        ConnectionSession destination = source.getCutThroughDestination();
+        log.info("Cut-through frame forwarded completely");
+
+        Packet frameHeader = source.getFrameHeader();
+        DeliveryReceipts.delivered(frameHeader.getMessageSourceId(), source.getFrameSequenceNumber(),
+                frameHeader.getMessageDestinationId(), source.getFrameIngressNanos(), System.nanoTime());
+
+        ContentFilter.finishingStream(source);
+        releasingDestination(source, destination);
+        source.resetFrame();
+        reader.flushingQueuedOutput(destination, messageQueue);
+    }
+
+    private void releasingDestination(ConnectionSession source, ConnectionSession destination) {
+        destination.getOutboundQueue().endingCutThrough();
+        source.setCutThroughDestination(null);
+        transferringSources.remove(source);
+    }
+
+    boolean hasTransfers() {
+        return !transferringSources.isEmpty();
+    }
+
+    /**
+     * Gives up transfers whose bytes did not move for the idle
+     * timeout, so a stalled sender or a destination which stopped
+     * reading does not keep the destination busy forever
+     *
+     * @param messageQueue queue of complete frames
+     */
+
+    void expiringIdleTransfers(PriorityLanes<QueuedFrame> messageQueue) {
+        if (transferringSources.isEmpty())
+            return;
+
+        long idleSinceNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(ServerConfiguration.CUT_THROUGH_IDLE_TIMEOUT_MILLIS);
+        List<ConnectionSession> idleSources = new ArrayList<>();
+        for (ConnectionSession source : transferringSources)
+            if (source.getCutThroughProgressNanos() - idleSinceNanos < 0)
+                idleSources.add(source);
+
+        for (ConnectionSession source : idleSources) {
+            ConnectionSession destination = source.getCutThroughDestination();
+            if (destination == null)
+                continue;
+
+            if (source.getPendingOutput() != null) {
+                log.error("Destination did not read cut-through frame for too long, closing it");
+                reader.closingClientConnection(destination, messageQueue);
+            } else {
+                log.error("Source stopped in the middle of cut-through frame for too long, closing it");
+                reader.closingClientConnection(source, messageQueue);
+            }
+        }
+    }
+
+    void resumingWaitingSources(ConnectionSession destination, PriorityLanes<QueuedFrame> messageQueue) {
+        ConnectionSession waitingSource;
+        while (destination.getCutThroughSource() == null && (waitingSource = destination.getWaitingSources().poll()) != null) {
+            waitingSource.setAwaitedDestination(null);
+            reader.resumingPausedSession(waitingSource, messageQueue);
+        }
+    }
+
+    /**
+     * Cleans transfers of a connection which is being closed. If it
+     * was sending a frame, the destination has received part of a
+     * frame and can not find start of the next one, so destination is
+     * closed as well. If it was receiving a frame, rest of the frame
+     * is discarded at the source and sender is told about it
+     *
+     * @param session which is being closed
+     * @param messageQueue queue of complete frames
+     */
+
+    void abandoningTransfersOf(ConnectionSession session, PriorityLanes<QueuedFrame> messageQueue) {
+        ConnectionSession destination = session.getCutThroughDestination();
+        if (destination != null) {
+            log.error("Source disconnected in the middle of frame, closing destination as well");
+            releasingDestination(session, destination);
+            reader.closingClientConnection(destination, messageQueue);
+        }
+
+        ConnectionSession source = session.getCutThroughSource();
+        if (source != null) {
+            log.error("Destination disconnected in the middle of frame, discarding rest of it");
+            releasingDestination(source, session);
+            source.setPendingOutput(null);
+            source.setFrameState(ConnectionSession.FrameState.DRAINING_BODY);
+            sendingErrorMessage(source.getFrameHeader());
+
+            if (source.isPaused())
+                reader.resumingPausedSession(source, messageQueue);
+        }
+
+        ConnectionSession awaitedDestination = session.getAwaitedDestination();
+        if (awaitedDestination != null)
+            awaitedDestination.getWaitingSources().remove(session);
+
+        resumingWaitingSources(session, messageQueue);
+    }
+
+    /**
+     * Error is written from the thread pool because the sender may be
+     * in the middle of receiving a cut-through frame itself, in which
+     * case the write has to wait for that frame to end
+     *
+     * @param frameHeader header of the frame which could not be delivered
+     */
+
+    private void sendingErrorMessage(Packet frameHeader) {
+        Packet packetInCaseNoSocketPresent = adaptor.getPacketWhenNoSocketPresent(frameHeader);
+
+        ClientInfoHolder.threadPoolToGenerateAndSendId.submit(() -> {
+            SocketChannel channel = ClientInfoHolder.getSocketChannel(packetInCaseNoSocketPresent.getMessageDestinationId());
+            if (channel == null) return;
+
+            try {
+                writer.sendingMessageToClient(adaptor.getBytesArrayFromPacket(packetInCaseNoSocketPresent), channel);
+            } catch (IOException exception) {
+                log.error("Error occurred while sending error message to client ", exception);
+            }
+        });
+    }
+}
@@ -0,0 +1,198 @@
+package com.servercore;
+
+import com.domain.MessageType;
+import com.domain.Packet;
+import com.utilities.Adaptor;
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadlines let the server give up on chat messages which waited so
+ * long that delivering them only makes a backlog worse. Every data
+ * frame gets chat.deadline.millis, counted from the moment its header
+ * was read. A DEADLINE_DATA frame brings its own deadline in front of
+ * its text:
+ * <p>
+ * Deadline millis | Flags  | Message
+ * 4 Bytes         | 1 Byte | x amount of bytes
+ * <p>
+ * Deadline of 0 falls back to the server wide one. Flag 1 asks for an
+ * EXPIRED notice when the frame is dropped, its body is the sequence
+ * number of the frame followed by its destination id, 4 bytes each.
+ * <p>
+ * Writer checks the raw frame right after taking it from the queue,
+ * before any decoding, and once more before the frame is encoded for
+ * the recipient. Node links check before writing.
+ */
+
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class Deadlines {
+
+    public static final String FRAMES_EXPIRED = "deadline.framesExpired";
+    public static final String EXPIRED_NOTICES_SENT = "deadline.noticesSent";
+
+    private static final long NO_DEADLINE = 0;
+    private static final long DEFAULT_DEADLINE_NANOS = TimeUnit.MILLISECONDS.toNanos(ServerConfiguration.DEADLINE_MILLIS);
+    private static final byte[][] DATA_TYPE_CODES = Arrays.stream(MessageType.values())
+            .filter(MessageType::isDataMessage)
+            .map(type -> type.getMessageCode().getBytes())
+            .toArray(byte[][]::new);
+    private static final byte[] DEADLINE_TYPE_CODE = MessageType.DEADLINE_DATA.getMessageCode().getBytes();
+    private static final Writer writer = new Writer();
+    private static final Adaptor adaptor = new Adaptor();
+
+    /**
+     * Tells if frame in the queue is past its deadline. Only header
+     * and deadline bytes of the frame are looked at
+     *
+     * @param queuedFrame taken from the message queue
+     * @param nowNanos System.nanoTime()
+     * @return true if frame should be dropped
+     */
+
+    static boolean isExpired(QueuedFrame queuedFrame, long nowNanos) {
+        byte[] frame = queuedFrame.getFrame();
+        if (!isDataFrame(frame))
+            return false;
+
+        long deadlineNanos = isDeadlineFrame(frame) ?
+                deadlineNanos(readInt(frame, Constants.START_OF_MESSAGE_INCLUSIVE)) : DEFAULT_DEADLINE_NANOS;
+
+        return deadlineNanos != NO_DEADLINE && nowNanos - queuedFrame.getIngressNanos() > deadlineNanos;
+    }
+
+    /**
+     * Tells if decoded data packet is past its deadline
+     *
+     * @param packet received from client
+     * @param nowNanos System.nanoTime()
+     * @return true if packet should be dropped
+     */
+
+    static boolean isExpired(Packet packet, long nowNanos) {
+        return hasPassed(expiresAtNanos(packet), nowNanos);
+    }
+
+    /**
+     * Time after which packet is dropped, kept with packets which
+     * wait in the queue of a node link
+     *
+     * @param packet received from client
+     * @return System.nanoTime() based expiry or 0 if packet has no deadline
+     */
+
+    public static long expiresAtNanos(Packet packet) {
+        if (!packet.getMessageType().isDataMessage() || packet.getIngressNanos() == 0)
+            return NO_DEADLINE;
+
+        long deadlineNanos = hasDeadlinePrefix(packet) ?
+                deadlineNanos(ByteBuffer.wrap(packet.getPayload()).getInt()) : DEFAULT_DEADLINE_NANOS;
+
+        return deadlineNanos == NO_DEADLINE ? NO_DEADLINE : packet.getIngressNanos() + deadlineNanos;
+    }
+
+    /**
+     * Tells if expiry given by expiresAtNanos has passed
+     *
+     * @param expiresAtNanos expiry or 0 for none
+     * @param nowNanos System.nanoTime()
+     * @return true if message should be dropped
+     */
+
+    public static boolean hasPassed(long expiresAtNanos, long nowNanos) {
+        return expiresAtNanos != NO_DEADLINE && nowNanos - expiresAtNanos > 0;
+    }
+
+    /**
+     * Drops expired frame and sends EXPIRED notice if sender asked for it
+     *
+     * @param queuedFrame expired frame
+     */
+
+    static void expiring(QueuedFrame queuedFrame) {
+        byte[] frame = queuedFrame.getFrame();
+        boolean noticeRequested = isDeadlineFrame(frame) &&
+                (frame[Constants.START_OF_MESSAGE_INCLUSIVE + Constants.BYTE_ARRAY_SIZE_FOR_INT] & Constants.DEADLINE_NOTICE_REQUESTED) != 0;
+
+        expiring(readInt(frame, Constants.START_OF_SOURCE_ID_INCLUSIVE), readInt(frame, Constants.START_OF_DEST_ID_INCLUSIVE),
+                queuedFrame.getSequenceNumber(), noticeRequested);
+    }
+
+    /**
+     * Drops expired packet and sends EXPIRED notice if sender asked for it
+     *
+     * @param packet expired packet
+     */
+
+    static void expiring(Packet packet) {
+        boolean noticeRequested = hasDeadlinePrefix(packet) &&
+                (packet.getPayload()[Constants.BYTE_ARRAY_SIZE_FOR_INT] & Constants.DEADLINE_NOTICE_REQUESTED) != 0;
+
+        expiring(packet.getMessageSourceId(), packet.getMessageDestinationId(), packet.getSequenceNumber(), noticeRequested);
+    }
+
+    private static void expiring(int senderId, int destinationId, int sequenceNumber, boolean noticeRequested) {
+        ServerMetrics.counter(FRAMES_EXPIRED).increment();
+        log.error("Frame {} of client {} for {} expired before it was delivered", sequenceNumber, senderId, destinationId);
+
+        if (!noticeRequested)
+            return;
+
+        SocketChannel channel = ClientInfoHolder.getSocketChannel(senderId);
+        Integer magicNumber = ClientInfoHolder.informationOfMagicNumber.get(senderId);
+        if (channel == null || magicNumber == null)
+            return;
+
+        byte[] body = ByteBuffer.allocate(Constants.EXPIRED_NOTICE_SIZE).putInt(sequenceNumber).putInt(destinationId).array();
+        Packet notice = Packet.builder().magicBytes(magicNumber).messageType(MessageType.EXPIRED).
+                messageSourceId(Constants.SERVER_SOURCE_ID).messageDestinationId(senderId).
+                messageLength(body.length).payload(body).build();
+
+        try {
+            writer.sendingMessageToClient(adaptor.getBytesArrayFromPacket(notice), channel);
+            ServerMetrics.counter(EXPIRED_NOTICES_SENT).increment();
+        } catch (IOException exception) {
+            log.error("Error occurred while sending expired notice to client {}", senderId, exception);
+        }
+    }
+
+    private static long deadlineNanos(int deadlineMillis) {
+        return deadlineMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(deadlineMillis) : DEFAULT_DEADLINE_NANOS;
+    }
+
+    private static boolean hasDeadlinePrefix(Packet packet) {
+        return packet.getMessageType() == MessageType.DEADLINE_DATA && packet.getPayload() != null &&
+                packet.getPayload().length >= Constants.DEADLINE_PREFIX_SIZE;
+    }
+
+    private static boolean isDataFrame(byte[] frame) {
+        for (byte[] code : DATA_TYPE_CODES)
+            if (hasTypeCode(frame, code))
+                return true;
+        return false;
+    }
+
+    private static boolean isDeadlineFrame(byte[] frame) {
+        return hasTypeCode(frame, DEADLINE_TYPE_CODE) &&
+                frame.length >= Constants.START_OF_MESSAGE_INCLUSIVE + Constants.DEADLINE_PREFIX_SIZE;
+    }
+
+    private static boolean hasTypeCode(byte[] frame, byte[] code) {
+        return frame[Constants.START_OF_MESSAGE_TYPE_INCLUSIVE] == code[0] &&
+                frame[Constants.START_OF_MESSAGE_TYPE_INCLUSIVE + 1] == code[1];
+    }
+
+    private static int readInt(byte[] frame, int offset) {
+        return ByteBuffer.wrap(frame, offset, Constants.BYTE_ARRAY_SIZE_FOR_INT).getInt();
+    }
+}
@@ -0,0 +1,155 @@
+package com.servercore;
+
+import com.domain.MessageType;
+import com.domain.Packet;
+import com.utilities.Adaptor;
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivery receipts tell a sender that its data frame was written to
+ * the recipient. A frame which waits in the outbound queue of the
+ * recipient is receipted only once its last byte was written. Receipts of one sender are collected and sent in one
+ * DELIVERED frame once the batch is full or chat.receipts.flushMillis
+ * passed, whichever comes first.
+ * <p>
+ * Body of a DELIVERED frame is a list of 24 byte entries:
+ * <p>
+ * Sequence number | Destination id | Ingress time | Egress time
+ * 4 Bytes         | 4 Bytes        | 8 Bytes      | 8 Bytes
+ * <p>
+ * Sequence number counts data frames on the sender's connection,
+ * starting with 1. Times are microseconds since epoch, taken when the
+ * header of the frame was read and when its last byte was written.
+ * Receipts are written by their own thread, so the event loop never
+ * writes into a connection which receives a cut-through frame.
+ */
+
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class DeliveryReceipts {
+
+    public static final String RECEIPTS_SENT = "receipts.sent";
+    public static final String DELIVERIES_RECEIPTED = "receipts.deliveries";
+    public static final String SERVER_LATENCY_NANOS = "receipts.serverLatencyNanos";
+
+    private static final long EPOCH_OFFSET_NANOS = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+    private static final Map<Integer, ByteBuffer> pendingReceipts = new HashMap<>();
+    private static final Writer writer = new Writer();
+    private static final Adaptor adaptor = new Adaptor();
+    private static volatile ScheduledExecutorService sender;
+
+    /**
+     * Records delivery of a data frame
+     *
+     * @param senderId id of the client which sent the frame
+     * @param sequenceNumber of the frame on sender's connection, 0 if unknown
+     * @param destinationId id of the client frame was written to
+     * @param ingressNanos System.nanoTime() when frame arrived
+     * @param egressNanos System.nanoTime() when frame was written
+     */
+
+    static void delivered(int senderId, int sequenceNumber, int destinationId, long ingressNanos, long egressNanos) {
+        if (sender == null || sequenceNumber == 0)
+            return;
+
+        ServerMetrics.counter(DELIVERIES_RECEIPTED).increment();
+        ServerMetrics.counter(SERVER_LATENCY_NANOS).add(egressNanos - ingressNanos);
+
+        ByteBuffer fullBatch = null;
+        synchronized (pendingReceipts) {
+            ByteBuffer receipts = pendingReceipts.get(senderId);
+            if (receipts == null) {
+                receipts = ByteBuffer.allocate(ServerConfiguration.RECEIPT_BATCH_SIZE * Constants.RECEIPT_ENTRY_SIZE);
+                pendingReceipts.put(senderId, receipts);
+            }
+
+            receipts.putInt(sequenceNumber).putInt(destinationId).
+                    putLong(toEpochMicros(ingressNanos)).putLong(toEpochMicros(egressNanos));
+            if (!receipts.hasRemaining())
+                fullBatch = pendingReceipts.remove(senderId);
+        }
+
+        if (fullBatch != null) {
+            ByteBuffer batch = fullBatch;
+            sender.execute(() -> sendingReceipts(senderId, batch));
+        }
+    }
+
+    /**
+     * Starts thread which sends receipts if receipts are enabled
+     */
+
+    static void start() {
+        if (!ServerConfiguration.RECEIPTS_ENABLED)
+            return;
+
+        sender = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "receipt-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        sender.scheduleWithFixedDelay(DeliveryReceipts::sendingAllReceipts,
+                ServerConfiguration.RECEIPT_FLUSH_MILLIS, ServerConfiguration.RECEIPT_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void sendingAllReceipts() {
+        Integer[] senderIds;
+        synchronized (pendingReceipts) {
+            senderIds = pendingReceipts.keySet().toArray(new Integer[0]);
+        }
+
+        for (Integer senderId : senderIds)
+            sendingReceiptsOf(senderId);
+    }
+
+    private static void sendingReceiptsOf(int senderId) {
+        ByteBuffer receipts;
+        synchronized (pendingReceipts) {
+            receipts = pendingReceipts.remove(senderId);
+        }
+        sendingReceipts(senderId, receipts);
+    }
+
+    private static void sendingReceipts(int senderId, ByteBuffer receipts) {
+        if (receipts == null || receipts.position() == 0)
+            return;
+
+        SocketChannel channel = ClientInfoHolder.getSocketChannel(senderId);
+        if (channel == null)
+            return;
+
+        byte[] body = new byte[receipts.position()];
+        receipts.flip();
+        receipts.get(body);
+
+        Integer magicNumber = ClientInfoHolder.informationOfMagicNumber.get(senderId);
+        Packet packet = Packet.builder().magicBytes(magicNumber == null ? Constants.NO_MAGIC_BYTES_DEFINED : magicNumber).
+                messageType(MessageType.DELIVERED).messageSourceId(Constants.SERVER_SOURCE_ID).
+                messageDestinationId(senderId).messageLength(body.length).payload(body).build();
+
+        try {
+            writer.sendingMessageToClient(adaptor.getBytesArrayFromPacket(packet), channel);
+            ServerMetrics.counter(RECEIPTS_SENT).increment();
+        } catch (IOException exception) {
+            log.error("Error occurred while sending receipts to client {}", senderId, exception);
+        }
+    }
+
+    private static long toEpochMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos + EPOCH_OFFSET_NANOS);
+    }
+}
@@ -0,0 +1,94 @@
+package com.servercore;
+
+import com.domain.MessageType;
+import com.domain.Packet;
+import com.utilities.Constants;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latest value wins channel for typing indicators, read markers and
+ * cursor positions. EPHEMERAL frame carries a key in the first line
+ * of its message and the value after it. Only the newest frame of a
+ * sender for one destination and key is kept while it waits for the
+ * Writer; a newer frame replaces it in place and nothing new is put
+ * in the message queue.
+ * <p>
+ * The first frame of a key goes into the queue as a ticket. When the
+ * Writer takes the ticket it writes whatever frame is newest at that
+ * moment, so a burst of updates costs one queue entry and one write.
+ * Ephemeral frames are never kept in history and are dropped silently
+ * when destination is not connected. Frame whose magic number does not
+ * match its source id is dropped before it is coalesced, so nobody can
+ * replace updates of another client.
+ */
+
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class EphemeralUpdates {
+
+    public static final String UPDATES_COALESCED = "ephemeral.coalesced";
+
+    private static final byte[] EPHEMERAL_TYPE_CODE = MessageType.EPHEMERAL.getMessageCode().getBytes();
+    private static final Map<String, QueuedFrame> pendingUpdates = new ConcurrentHashMap<>();
+
+    /**
+     * Keeps frame as the newest one of its key
+     *
+     * @param frameHeader decoded header of the frame
+     * @param queuedFrame complete EPHEMERAL frame
+     * @return true if frame must be queued as ticket of its key, false
+     * if it replaced a frame which is still waiting or was dropped
+     */
+
+    static boolean offering(Packet frameHeader, QueuedFrame queuedFrame) {
+        if (!ClientInfoHolder.authenticateClient(frameHeader)) {
+            log.info("Authentication failed. Dropping ephemeral update");
+            return false;
+        }
+
+        if (pendingUpdates.put(keyOf(queuedFrame.getFrame()), queuedFrame) == null)
+            return true;
+
+        ServerMetrics.counter(UPDATES_COALESCED).increment();
+        return false;
+    }
+
+    /**
+     * Frame Writer should handle for the frame it took from the queue.
+     * For a ticket that is the newest frame of its key
+     *
+     * @param queuedFrame taken from the message queue
+     * @return frame to decode
+     */
+
+    static QueuedFrame takingLatest(QueuedFrame queuedFrame) {
+        if (!isEphemeralFrame(queuedFrame.getFrame()))
+            return queuedFrame;
+
+        QueuedFrame latest = pendingUpdates.remove(keyOf(queuedFrame.getFrame()));
+        return latest == null ? queuedFrame : latest;
+    }
+
+    static boolean isEphemeralFrame(byte[] frame) {
+        return frame[Constants.START_OF_MESSAGE_TYPE_INCLUSIVE] == EPHEMERAL_TYPE_CODE[0] &&
+                frame[Constants.START_OF_MESSAGE_TYPE_INCLUSIVE + 1] == EPHEMERAL_TYPE_CODE[1];
+    }
+
+    private static String keyOf(byte[] frame) {
+        int keyEnd = Constants.START_OF_MESSAGE_INCLUSIVE;
+        while (keyEnd < frame.length && frame[keyEnd] != Constants.EPHEMERAL_KEY_SEPARATOR)
+            keyEnd++;
+
+        ByteBuffer header = ByteBuffer.wrap(frame);
+        return header.getInt(Constants.START_OF_SOURCE_ID_INCLUSIVE) + "/" + header.getInt(Constants.START_OF_DEST_ID_INCLUSIVE) +
+                "/" + new String(frame, Constants.START_OF_MESSAGE_INCLUSIVE, keyEnd - Constants.START_OF_MESSAGE_INCLUSIVE,
+                StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,50 @@
+package com.servercore;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One file which a client offered to another client. Bytes of the
+ * file are kept in a spool file on local disk until the recipient
+ * downloaded it or the transfer stayed idle for too long.
+ * <p>
+ * Spool is written by the event loop and read by the file transfer
+ * pool, both with positional calls, so they never share a position.
+ */
+
+@Getter
+@Setter
+class FileTransfer {
+
+    private final int transferId;
+    private final int senderId;
+    private final int recipientId;
+    private final String fileName;
+    private final long size;
+    private final Path spoolPath;
+    private final FileChannel spool;
+    private volatile long spooledBytes;
+    private volatile boolean complete;
+    private volatile long lastActivityMillis = System.currentTimeMillis();
+    private long nextUploadNanos = System.nanoTime();
+
+    FileTransfer(int transferId, int senderId, int recipientId, String fileName, long size, Path spoolPath) throws IOException {
+        this.transferId = transferId;
+        this.senderId = senderId;
+        this.recipientId = recipientId;
+        this.fileName = fileName;
+        this.size = size;
+        this.spoolPath = spoolPath;
+        this.spool = FileChannel.open(spoolPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    void touching() {
+        lastActivityMillis = System.currentTimeMillis();
+    }
+}
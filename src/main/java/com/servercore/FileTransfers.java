@@ -0,0 +1,404 @@
+package com.servercore;
+
+import com.domain.MessageType;
+import com.domain.Packet;
+import com.utilities.Adaptor;
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * File transfer between two clients through a spool on local disk.
+ * <p>
+ * Sender offers a file with FILE_OFFER to the recipient, message is
+ * the file name and size on two lines. A third line with the id of
+ * an earlier transfer resumes that transfer. Server answers with
+ * FILE_OFFER whose message is the transfer id and the number of bytes
+ * already spooled. Sender then sends FILE_CHUNK frames with the
+ * transfer id as destination, their bodies are appended to the
+ * spool, and FILE_DONE with the transfer id once every byte is sent.
+ * <p>
+ * Recipient is told about a complete file with FILE_OFFER from the
+ * sender whose message is transfer id, file name and size. It asks
+ * for the file with FILE_CHUNK to the transfer id whose message is
+ * the offset to start from, and gets FILE_CHUNK frames with the
+ * transfer id as source followed by FILE_DONE. FILE_DONE from the
+ * recipient ends the transfer and deletes the spool.
+ * <p>
+ * Chunk bodies go from the read buffer of the event loop straight
+ * into the spool and are never assembled into frames. Downloads are
+ * written on their own pool, one chunk at a time, so
+ * chat.files.bandwidthBytesPerSecond can pace every transfer on its
+ * own. Next chunk is scheduled only once the one before was written.
+ * On plain connections chunk bodies go from the spool to the socket
+ * with transferTo, also when they wait in the outbound queue, so file
+ * bytes never cross the Java heap. Uploads over the bandwidth pause reading of
+ * the sender. Transfers idle for chat.files.idleTimeoutSeconds are
+ * removed together with their spool.
+ */
+
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class FileTransfers {
+
+    public static final String BYTES_SPOOLED = "files.bytesSpooled";
+    public static final String BYTES_DOWNLOADED = "files.bytesDownloaded";
+    public static final String SPOOLS_REMOVED = "files.spoolsRemoved";
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final Map<Integer, FileTransfer> transfers = new ConcurrentHashMap<>();
+    private static final AtomicInteger transferIds = new AtomicInteger();
+    private static final Path spoolDirectory = Paths.get(ServerConfiguration.FILES_SPOOL_DIRECTORY);
+    private static final Writer writer = new Writer();
+    private static final Adaptor adaptor = new Adaptor();
+    private static volatile ScheduledExecutorService transferPool;
+
+    static boolean isEnabled() {
+        return ServerConfiguration.FILES_ENABLED;
+    }
+
+    /**
+     * Creates spool directory, removes spools which an earlier run
+     * left behind and starts the pool for downloads and cleanup
+     *
+     * @throws IOException if spool directory can not be used
+     */
+
+    static void start() throws IOException {
+        if (!isEnabled())
+            return;
+
+        Files.createDirectories(spoolDirectory);
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(spoolDirectory, "*" + Constants.FILE_SPOOL_SUFFIX)) {
+            for (Path leftover : leftovers)
+                Files.deleteIfExists(leftover);
+        }
+
+        transferPool = Executors.newScheduledThreadPool(Constants.FILE_TRANSFER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "file-transfers");
+            thread.setDaemon(true);
+            return thread;
+        });
+        transferPool.scheduleWithFixedDelay(FileTransfers::removingIdleTransfers,
+                Constants.FILE_SPOOL_SWEEP_SECONDS, Constants.FILE_SPOOL_SWEEP_SECONDS, TimeUnit.SECONDS);
+        log.error("File transfers spool into {}", spoolDirectory.toAbsolutePath());
+    }
+
+    /**
+     * Tells if FILE_CHUNK whose header was read is an upload which can
+     * go into its spool: it comes from the sender of the transfer and
+     * fits into the size which was offered
+     *
+     * @param frameHeader decoded header of FILE_CHUNK
+     * @return true if body should be spooled
+     */
+
+    static boolean isUpload(Packet frameHeader) {
+        if (!isEnabled() || frameHeader.getMessageType() != MessageType.FILE_CHUNK)
+            return false;
+
+        FileTransfer transfer = transfers.get(frameHeader.getMessageDestinationId());
+        return transfer != null && !transfer.isComplete() && transfer.getSenderId() == frameHeader.getMessageSourceId() &&
+                ClientInfoHolder.authenticateClient(frameHeader) &&
+                transfer.getSpooledBytes() + frameHeader.getMessageLength() <= transfer.getSize();
+    }
+
+    /**
+     * Takes upload bandwidth for the chunk if the transfer has it
+     *
+     * @param frameHeader decoded header of an upload
+     * @param nowNanos System.nanoTime()
+     * @return false if sender has to wait before chunk is spooled
+     */
+
+    static boolean isWithinBandwidth(Packet frameHeader, long nowNanos) {
+        if (ServerConfiguration.FILES_BANDWIDTH_BYTES_PER_SECOND <= 0)
+            return true;
+
+        FileTransfer transfer = transfers.get(frameHeader.getMessageDestinationId());
+        if (transfer == null)
+            return true;
+        if (nowNanos - transfer.getNextUploadNanos() < 0)
+            return false;
+
+        transfer.setNextUploadNanos(Math.max(transfer.getNextUploadNanos(), nowNanos - NANOS_PER_SECOND) +
+                pacingNanos(frameHeader.getMessageLength()));
+        return true;
+    }
+
+    /**
+     * Appends body bytes of the upload to its spool. If the spool can
+     * not be written the transfer is removed and the rest of the body
+     * is drained
+     *
+     * @param session of the sender
+     * @param input bytes read from client
+     */
+
+    static void spoolingBodyChunk(ConnectionSession session, ByteBuffer input) {
+        int length = (int) Math.min(input.remaining(), session.getRemainingBodyBytes());
+        ByteBuffer chunk = input.duplicate();
+        chunk.limit(chunk.position() + length);
+        input.position(input.position() + length);
+        session.setRemainingBodyBytes(session.getRemainingBodyBytes() - length);
+
+        FileTransfer transfer = transfers.get(session.getFrameHeader().getMessageDestinationId());
+        try {
+            if (transfer == null)
+                throw new IOException("Transfer was removed while its chunk was spooled");
+
+            while (chunk.hasRemaining())
+                transfer.setSpooledBytes(transfer.getSpooledBytes() + transfer.getSpool().write(chunk, transfer.getSpooledBytes()));
+            transfer.touching();
+            ServerMetrics.counter(BYTES_SPOOLED).add(length);
+        } catch (IOException exception) {
+            log.error("Could not spool chunk of transfer {}", session.getFrameHeader().getMessageDestinationId(), exception);
+            removing(session.getFrameHeader().getMessageDestinationId());
+            session.setFrameState(ConnectionSession.FrameState.DRAINING_BODY);
+        }
+
+        if (session.getRemainingBodyBytes() == 0)
+            session.resetFrame();
+    }
+
+    /**
+     * Handles file frames which went through the message queue
+     *
+     * @param packet of an authenticated client
+     * @throws IOException occurred while writing to the client
+     */
+
+    static void answering(Packet packet) throws IOException {
+        if (!isEnabled()) {
+            log.error("File transfers are disabled, dropping {} frame", packet.getMessageType());
+            return;
+        }
+
+        if (packet.getMessageType() == MessageType.FILE_OFFER)
+            offering(packet);
+        else if (packet.getMessageType() == MessageType.FILE_CHUNK)
+            downloading(packet);
+        else if (packet.getMessageType() == MessageType.FILE_DONE)
+            finishing(packet);
+    }
+
+    private static void offering(Packet packet) throws IOException {
+        String[] lines = packet.getMessage().split(Constants.TOPIC_SEPARATOR);
+        int senderId = packet.getMessageSourceId();
+        FileTransfer transfer;
+
+        int resumedId;
+        long size;
+        try {
+            resumedId = lines.length > 2 ? Integer.parseInt(lines[2].trim()) : -1;
+            size = lines.length > 1 ? Long.parseLong(lines[1].trim()) : -1;
+        } catch (NumberFormatException exception) {
+            log.error("Client {} sent malformed file offer {}", senderId, packet.getMessage());
+            return;
+        }
+
+        if (lines.length > 2) {
+            transfer = transfers.get(resumedId);
+            if (transfer == null || transfer.getSenderId() != senderId || transfer.isComplete()) {
+                log.error("Client {} can not resume transfer {}", senderId, lines[2]);
+                return;
+            }
+        } else {
+            if (size < 0 || size > ServerConfiguration.FILES_MAX_FILE_BYTES ||
+                    ClientInfoHolder.getSocketChannel(packet.getMessageDestinationId()) == null) {
+                log.error("Refusing file offer of client {} for {}", senderId, packet.getMessageDestinationId());
+                sendingToClient(senderId, adaptor.getPacketWhenNoSocketPresent(packet));
+                return;
+            }
+
+            int transferId = transferIds.incrementAndGet();
+            transfer = new FileTransfer(transferId, senderId, packet.getMessageDestinationId(), lines[0], size,
+                    spoolDirectory.resolve(transferId + Constants.FILE_SPOOL_SUFFIX));
+            transfers.put(transferId, transfer);
+        }
+
+        transfer.touching();
+        sendingText(senderId, MessageType.FILE_OFFER, Constants.SERVER_SOURCE_ID,
+                transfer.getTransferId() + Constants.TOPIC_SEPARATOR + transfer.getSpooledBytes());
+    }
+
+    private static void finishing(Packet packet) throws IOException {
+        FileTransfer transfer = transfers.get(packet.getMessageDestinationId());
+        if (transfer == null)
+            return;
+
+        if (transfer.getRecipientId() == packet.getMessageSourceId()) {
+            log.error("Recipient downloaded transfer {}, removing its spool", transfer.getTransferId());
+            removing(transfer.getTransferId());
+            return;
+        }
+
+        if (transfer.getSenderId() != packet.getMessageSourceId() || transfer.getSpooledBytes() != transfer.getSize()) {
+            log.error("Transfer {} can not be finished by client {}", transfer.getTransferId(), packet.getMessageSourceId());
+            return;
+        }
+
+        transfer.setComplete(true);
+        transfer.touching();
+        sendingText(transfer.getRecipientId(), MessageType.FILE_OFFER, transfer.getSenderId(),
+                transfer.getTransferId() + Constants.TOPIC_SEPARATOR + transfer.getFileName() + Constants.TOPIC_SEPARATOR +
+                        transfer.getSize());
+    }
+
+    private static void downloading(Packet packet) {
+        FileTransfer transfer = transfers.get(packet.getMessageDestinationId());
+        if (transfer == null || !transfer.isComplete() || transfer.getRecipientId() != packet.getMessageSourceId()) {
+            log.error("Client {} can not download transfer {}", packet.getMessageSourceId(), packet.getMessageDestinationId());
+            return;
+        }
+
+        String offset = packet.getMessage().trim();
+        long startOffset;
+        try {
+            startOffset = offset.isEmpty() ? 0 : Long.parseLong(offset);
+        } catch (NumberFormatException exception) {
+            startOffset = -1;
+        }
+
+        if (startOffset < 0) {
+            log.error("Client {} asked for transfer {} from malformed offset {}", packet.getMessageSourceId(),
+                    packet.getMessageDestinationId(), offset);
+            return;
+        }
+
+        long chunkOffset = Math.min(startOffset, transfer.getSize());
+        transferPool.execute(() -> sendingChunk(transfer, chunkOffset));
+    }
+
+    /**
+     * Writes next chunk of the download. Chunk after it is scheduled
+     * once this one was written, so downloads share the pool, each is
+     * paced on its own and never waits for a slow client on the pool
+     */
+
+    private static void sendingChunk(FileTransfer transfer, long offset) {
+        SocketChannel channel = ClientInfoHolder.getSocketChannel(transfer.getRecipientId());
+        ConnectionSession session = ConnectionSession.of(channel);
+        if (session == null || transfers.get(transfer.getTransferId()) != transfer)
+            return;
+
+        long startNanos = System.nanoTime();
+        int length = (int) Math.min(ServerConfiguration.FILES_CHUNK_BYTES, transfer.getSize() - offset);
+
+        try {
+            if (length == 0) {
+                sendingText(transfer.getRecipientId(), MessageType.FILE_DONE, transfer.getTransferId(), Constants.MESSAGE_FROM_SERVER);
+                return;
+            }
+
+            Runnable whenWritten = () -> {
+                long delayNanos = ServerConfiguration.FILES_BANDWIDTH_BYTES_PER_SECOND > 0 ?
+                        pacingNanos(length) - (System.nanoTime() - startNanos) : 0;
+                transferPool.schedule(() -> sendingChunk(transfer, offset + length), Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+            };
+
+            if (!writingChunk(transfer, session, offset, length, whenWritten)) {
+                transferPool.schedule(() -> sendingChunk(transfer, offset), Constants.FILE_CHUNK_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            transfer.touching();
+            ServerMetrics.counter(BYTES_DOWNLOADED).add(length);
+        } catch (IOException exception) {
+            log.error("Error occurred while sending transfer {} to client {}", transfer.getTransferId(),
+                    transfer.getRecipientId(), exception);
+        }
+    }
+
+    /**
+     * Plain connections get the chunk straight from the spool: its body
+     * is queued as a region of the spool and written with transferTo,
+     * now and whenever the socket takes more. TLS and WebSocket
+     * connections need bytes they can encrypt or frame, so chunk is
+     * read into a buffer for them
+     *
+     * @return false if chunk was dropped because client does not read
+     */
+
+    private static boolean writingChunk(FileTransfer transfer, ConnectionSession session, long offset, int length,
+                                        Runnable whenWritten) throws IOException {
+        Packet chunkHeader = Packet.builder().magicBytes(magicNumberOf(transfer.getRecipientId())).
+                messageType(MessageType.FILE_CHUNK).messageSourceId(transfer.getTransferId()).
+                messageDestinationId(transfer.getRecipientId()).messageLength(length).payload(new byte[0]).build();
+        ByteBuffer header = ByteBuffer.wrap(adaptor.getBytesArrayFromPacket(chunkHeader));
+
+        if (!session.hasTransport())
+            return session.getOutboundQueue().sendingRegion(header, transfer.getSpool(), offset, length, whenWritten) != -1;
+
+        ByteBuffer frame = ByteBuffer.allocate(header.remaining() + length).put(header);
+        readingSpool(transfer, offset, frame);
+        return writer.sendingMessageToClient(frame.array(), session.getSocketChannel(), whenWritten) != -1;
+    }
+
+    private static void readingSpool(FileTransfer transfer, long offset, ByteBuffer buffer) throws IOException {
+        long start = offset - buffer.position();
+        while (buffer.hasRemaining())
+            if (transfer.getSpool().read(buffer, start + buffer.position()) == -1)
+                throw new IOException("Spool of transfer " + transfer.getTransferId() + " is shorter than the file");
+    }
+
+    private static void removingIdleTransfers() {
+        long idleSinceMillis = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ServerConfiguration.FILES_IDLE_TIMEOUT_SECONDS);
+
+        for (FileTransfer transfer : transfers.values())
+            if (transfer.getLastActivityMillis() < idleSinceMillis) {
+                log.error("Transfer {} was idle for too long, removing its spool", transfer.getTransferId());
+                removing(transfer.getTransferId());
+            }
+    }
+
+    private static void removing(int transferId) {
+        FileTransfer transfer = transfers.remove(transferId);
+        if (transfer == null)
+            return;
+
+        try {
+            transfer.getSpool().close();
+            Files.deleteIfExists(transfer.getSpoolPath());
+            ServerMetrics.counter(SPOOLS_REMOVED).increment();
+        } catch (IOException exception) {
+            log.error("Could not remove spool {}", transfer.getSpoolPath(), exception);
+        }
+    }
+
+    private static long pacingNanos(long bytes) {
+        return bytes * NANOS_PER_SECOND / ServerConfiguration.FILES_BANDWIDTH_BYTES_PER_SECOND;
+    }
+
+    private static void sendingText(int clientId, MessageType messageType, int sourceId, String message) throws IOException {
+        sendingToClient(clientId, Packet.builder().magicBytes(magicNumberOf(clientId)).messageType(messageType).
+                messageSourceId(sourceId).messageDestinationId(clientId).messageLength(message.getBytes().length).
+                message(message).build());
+    }
+
+    private static void sendingToClient(int clientId, Packet packet) throws IOException {
+        SocketChannel channel = ClientInfoHolder.getSocketChannel(clientId);
+        if (channel != null)
+            writer.sendingMessageToClient(adaptor.getBytesArrayFromPacket(packet), channel);
+    }
+
+    private static int magicNumberOf(int clientId) {
+        Integer magicNumber = ClientInfoHolder.informationOfMagicNumber.get(clientId);
+        return magicNumber == null ? Constants.NO_MAGIC_BYTES_DEFINED : magicNumber;
+    }
+}
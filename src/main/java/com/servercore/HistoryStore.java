@@ -0,0 +1,189 @@
+package com.servercore;
+
+import com.domain.MessageType;
+import com.domain.Packet;
+import com.utilities.Adaptor;
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recent frames of every conversation, so a client can fetch what it
+ * missed. Conversation is either a pair of clients, no matter who
+ * sent the frame, or a topic to which frames were published.
+ * <p>
+ * Every conversation has a direct buffer ring of
+ * chat.history.conversationBytes and keeps at most
+ * chat.history.messagesPerConversation frames. Rings together never
+ * take more than chat.history.budgetBytes. When a new conversation
+ * needs a ring and the budget is used up, least recently used
+ * conversation is dropped and its ring is reused, so history never
+ * allocates more memory than the budget.
+ * <p>
+ * HISTORY message is the peer id or the topic, optionally followed by
+ * the index to page back from and the page size, separated by spaces.
+ * Answer is a HISTORY_PAGE whose body is the index to ask for the next
+ * older page, -1 if there is none, number of frames and the frames:
+ * <p>
+ * Next index | Frame count | Frame length | Frame   | ...
+ * 8 Bytes    | 4 Bytes     | 4 Bytes      | x Bytes | ...
+ */
+
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class HistoryStore {
+
+    public static final String CONVERSATIONS_EVICTED = "history.conversationsEvicted";
+
+    private static final Map<String, ConversationHistory> conversations = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Writer writer = new Writer();
+    private static final Adaptor adaptor = new Adaptor();
+    private static long allocatedBytes;
+
+    /**
+     * Keeps data frame in history of the pair
+     *
+     * @param packet data frame of an authenticated client
+     */
+
+    static void recordingDataFrame(Packet packet) {
+        if (ServerConfiguration.HISTORY_ENABLED)
+            recording(pairKey(packet.getMessageSourceId(), packet.getMessageDestinationId()), adaptor.getBytesArrayFromPacket(packet));
+    }
+
+    /**
+     * Keeps published frame in history of its topic
+     *
+     * @param topic of the frame
+     * @param frame published frame in bytes
+     */
+
+    static void recordingPublishedFrame(String topic, byte[] frame) {
+        if (ServerConfiguration.HISTORY_ENABLED)
+            recording(topicKey(topic), frame);
+    }
+
+    /**
+     * Answers history request with one page of frames
+     *
+     * @param packet request of an authenticated client
+     * @throws IOException occurred while writing to the client
+     */
+
+    static void answeringRequest(Packet packet) throws IOException {
+        String[] arguments = packet.getMessage().trim().split("\\s+");
+        String conversation = arguments[0];
+
+        String key;
+        long beforeIndex;
+        int pageSize;
+        try {
+            key = isClientId(conversation) ?
+                    pairKey(packet.getMessageSourceId(), Integer.parseInt(conversation)) : topicKey(conversation);
+            beforeIndex = arguments.length > 1 ? Long.parseLong(arguments[1]) : -1;
+            pageSize = arguments.length > 2 ? Integer.parseInt(arguments[2]) : ServerConfiguration.HISTORY_PAGE_SIZE;
+        } catch (NumberFormatException exception) {
+            log.error("Client {} sent malformed history request {}", packet.getMessageSourceId(), packet.getMessage());
+            return;
+        }
+        pageSize = Math.max(1, Math.min(pageSize, ServerConfiguration.HISTORY_PAGE_SIZE));
+
+        List<byte[]> frames;
+        long nextIndex;
+        synchronized (HistoryStore.class) {
+            ConversationHistory history = conversations.get(key);
+            if (history == null) {
+                frames = Collections.emptyList();
+                nextIndex = -1;
+            } else {
+                frames = history.page(beforeIndex, pageSize);
+                long oldestReturned = (beforeIndex < 0 ? history.nextIndex() : Math.min(beforeIndex, history.nextIndex())) - frames.size();
+                nextIndex = oldestReturned > history.getFirstIndex() ? oldestReturned : -1;
+            }
+        }
+
+        sendingPage(packet.getMessageSourceId(), frames, nextIndex);
+    }
+
+    private static synchronized void recording(String key, byte[] frame) {
+        ConversationHistory history = conversations.get(key);
+        if (history == null) {
+            ByteBuffer ring = obtainingRing();
+            if (ring == null)
+                return;
+
+            history = new ConversationHistory(ring, ServerConfiguration.HISTORY_MESSAGES_PER_CONVERSATION);
+            conversations.put(key, history);
+        }
+
+        history.append(frame);
+    }
+
+    /**
+     * Allocates a new ring while budget allows it, otherwise takes the
+     * ring of the least recently used conversation
+     *
+     * @return ring or null if budget is too small for even one ring
+     */
+
+    private static ByteBuffer obtainingRing() {
+        if (allocatedBytes + ServerConfiguration.HISTORY_CONVERSATION_BYTES <= ServerConfiguration.HISTORY_BUDGET_BYTES) {
+            allocatedBytes += ServerConfiguration.HISTORY_CONVERSATION_BYTES;
+            return ByteBuffer.allocateDirect(ServerConfiguration.HISTORY_CONVERSATION_BYTES);
+        }
+
+        Iterator<ConversationHistory> leastRecentlyUsed = conversations.values().iterator();
+        if (!leastRecentlyUsed.hasNext())
+            return null;
+
+        ByteBuffer ring = leastRecentlyUsed.next().getRing();
+        leastRecentlyUsed.remove();
+        ServerMetrics.counter(CONVERSATIONS_EVICTED).increment();
+        return ring;
+    }
+
+    private static void sendingPage(int clientId, List<byte[]> frames, long nextIndex) throws IOException {
+        SocketChannel channel = ClientInfoHolder.getSocketChannel(clientId);
+        if (channel == null)
+            return;
+
+        int bodyLength = Long.BYTES + Integer.BYTES;
+        for (byte[] frame : frames)
+            bodyLength += Integer.BYTES + frame.length;
+
+        ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        body.putLong(nextIndex).putInt(frames.size());
+        for (byte[] frame : frames)
+            body.putInt(frame.length).put(frame);
+
+        Integer magicNumber = ClientInfoHolder.informationOfMagicNumber.get(clientId);
+        Packet packet = Packet.builder().magicBytes(magicNumber == null ? Constants.NO_MAGIC_BYTES_DEFINED : magicNumber).
+                messageType(MessageType.HISTORY_PAGE).messageSourceId(Constants.SERVER_SOURCE_ID).
+                messageDestinationId(clientId).messageLength(bodyLength).payload(body.array()).build();
+
+        writer.sendingMessageToClient(adaptor.getBytesArrayFromPacket(packet), channel);
+    }
+
+    private static boolean isClientId(String conversation) {
+        return !conversation.isEmpty() && conversation.chars().allMatch(Character::isDigit);
+    }
+
+    private static String pairKey(int firstClientId, int secondClientId) {
+        return Math.min(firstClientId, secondClientId) + ":" + Math.max(firstClientId, secondClientId);
+    }
+
+    private static String topicKey(String topic) {
+        return "#" + topic;
+    }
+}
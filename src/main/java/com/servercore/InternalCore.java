@@ -3,16 +3,18 @@
  */
 package com.servercore;
 
+import com.cluster.ClusterNode;
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketOption;
 import java.nio.channels.*;
 import java.time.LocalDate;
 import java.util.Iterator;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import static java.lang.System.exit;
 
@@ -22,7 +24,17 @@ import static java.lang.System.exit;
  * starting writer thread.
  * <p>
  * This class also contains message queue. In which we put our messages
- * and it is shared among producer and consumer
+ * and it is shared among producer and consumer. The queue has a control
+ * lane and a data lane so logins are not stuck behind chat traffic
+ * <p>
+ * When chat.websocket.port is set, browsers connect to a second
+ * listening channel on the same selector and speak WebSocket
+ * <p>
+ * When chat.snapshot.file is set, stopping the server writes sessions
+ * and undelivered frames into a snapshot which next start restores
+ * <p>
+ * When chat.admission.targetMillis is set, connections are not
+ * admitted while frames wait in the message queue longer than that
  *
  * @author umar.tahir@afiniti.com
  */
@@ -31,8 +43,13 @@ import static java.lang.System.exit;
 @RequiredArgsConstructor
 public class InternalCore {
     private final int port;
-    private final BlockingQueue<byte[]> messageQueue = new LinkedBlockingQueue<>();
+    private final PriorityLanes<QueuedFrame> messageQueue = new PriorityLanes<>(ServerConfiguration.MAX_CONTROL_BURST);
     private ServerSocketChannel serverSocketChannel;
+    private ServerSocketChannel webSocketServerChannel;
+    private SelectStrategy selectStrategy;
+    private SelectedKeySet selectedKeySet;
+    private Thread writerThread;
+    private volatile boolean stopping;
 
 
     /**
@@ -53,12 +70,37 @@ public class InternalCore {
             log.info("Calling settingUpServerChannelAndSelector() method");
             selector = settingUpServerChannelAndSelector();
 
+            if (ClusterNode.getInstance().isEnabled()) {
+                log.info("Starting cluster node");
+                ClusterNode.getInstance().start();
+            }
+
+            ServerMetrics.startReporting();
+            OutboundQueue.start(selectStrategy::wakeup);
+            DeliveryReceipts.start();
+            TrafficCapture.start();
+            PresenceService.start();
+            FileTransfers.start();
+            ContentFilter.start();
+            SessionSnapshots.restoring();
+
+            if (ServerConfiguration.TLS_ENABLED) {
+                log.info("Loading TLS key material");
+                TlsTransport.start(selectStrategy::wakeup);
+            }
+
             log.info("Starting writer thread and it will run until serverSocketChannel is open");
-            Thread writerThread = new Writer(messageQueue,serverSocketChannel);
+            writerThread = new Writer(messageQueue,serverSocketChannel);
             writerThread.start();
 
             log.info("Writer thread started");
 
+            if (SessionSnapshots.isEnabled()) {
+                log.info("Stopping server will drain message queue into a snapshot");
+                Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                        SessionSnapshots.drainingIntoSnapshot(messageQueue, writerThread, this::stoppingEventLoop), "snapshot-writer"));
+            }
+
             log.info("Calling eventsListenerOfRegisteredChannels method");
             eventsListenerOfRegisteredChannels(selector);
 
@@ -90,6 +132,11 @@ public class InternalCore {
         serverSocketChannel = ServerSocketChannel.open();
         log.info("ServerSocketChannel opened");
 
+        if (ServerConfiguration.SHARD_COUNT != Constants.SHARDING_DISABLED) {
+            log.info("Shard {} of {} shares the port with other shards", ServerConfiguration.SHARD_INDEX, ServerConfiguration.SHARD_COUNT);
+            enablingReusePort(serverSocketChannel);
+        }
+
         serverSocketChannel.bind(new InetSocketAddress(port));
         log.info("ServerSocketChannel binding done on port {}", port);
 
@@ -99,14 +146,50 @@ public class InternalCore {
         Selector selector = Selector.open();
         log.info("Selector opened");
 
+        selectStrategy = SelectStrategy.configuredFor(selector);
+        if (ServerConfiguration.SELECT_OPTIMIZED_KEYS)
+            selectedKeySet = SelectedKeySet.installingInto(selector);
+
         serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
         log.info("Server Socket Channel registered with Selector");
 
+        if (ServerConfiguration.WEBSOCKET_PORT != Constants.WEBSOCKET_DISABLED) {
+            webSocketServerChannel = ServerSocketChannel.open();
+            if (ServerConfiguration.SHARD_COUNT != Constants.SHARDING_DISABLED)
+                enablingReusePort(webSocketServerChannel);
+
+            webSocketServerChannel.bind(new InetSocketAddress(ServerConfiguration.WEBSOCKET_PORT));
+            webSocketServerChannel.configureBlocking(false);
+            webSocketServerChannel.register(selector, SelectionKey.OP_ACCEPT);
+            log.info("WebSocket channel listening on port {}", ServerConfiguration.WEBSOCKET_PORT);
+        }
+
         log.info("Execution of settingUpServerChannelAndSelector method ended");
 
         return selector;
     }
 
+    /**
+     * Lets several processes bind the same port so kernel spreads
+     * accepted connections among them. SO_REUSEPORT is looked up by
+     * name because it is only known to Java 9 and later
+     *
+     * @param listeningChannel channel which is not bound yet
+     * @throws IOException if platform does not support the option
+     */
+
+    @SuppressWarnings("unchecked")
+    private void enablingReusePort(ServerSocketChannel listeningChannel) throws IOException {
+        for (SocketOption<?> option : listeningChannel.supportedOptions()) {
+            if (option.name().equals(Constants.SO_REUSEPORT_OPTION_NAME)) {
+                listeningChannel.setOption((SocketOption<Boolean>) option, true);
+                log.info("SO_REUSEPORT enabled on ServerSocketChannel");
+                return;
+            }
+        }
+        throw new IOException("SO_REUSEPORT is not supported by this platform, shard mode needs it");
+    }
+
     /**
      * This method deals with all the events that are generated in
      * the registered channels. At the start only server socket
@@ -121,13 +204,56 @@ public class InternalCore {
     private void eventsListenerOfRegisteredChannels(Selector selector) throws IOException {
         log.info("Started eventsListenerOfRegisteredChannels execution method");
         while (serverSocketChannel.isOpen()) {
+            if (stopping)
+                stoppingAcceptsAndReads(selector);
+
             log.info("Waiting for event to occur");
-            selector.select();
+            selectStrategy.select(maxBlockingMillis());
             log.info("The event has occurred");
 
-            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            if (selectedKeySet != null)
+                processingSelectedKeyArray();
+            else
+                processingSelectedKeys(selector);
+
+            Reader.getReaderInstance().flushingQueuedOutputs(messageQueue);
+            Reader.getReaderInstance().expiringIdleCutThroughs(messageQueue);
+            Reader.getReaderInstance().resumingThrottledSessions(messageQueue);
+            Reader.getReaderInstance().continuingTlsHandshakes(messageQueue);
+            Reader.getReaderInstance().processingReadySessions(messageQueue);
+            AdmissionControl.resumingDeferredAccepts();
+        }
+        log.info("Finished eventsListenerOfRegisteredChannels execution method");
+        exit(0);
+    }
 
-            while (iterator.hasNext()) {
+    /**
+     * Loop must not block while work waits for it, and must wake up in
+     * time for work which is due later
+     *
+     * @return upper bound for blocking in select
+     */
+
+    private long maxBlockingMillis() {
+        Reader reader = Reader.getReaderInstance();
+        if (reader.hasReadySessions() || OutboundQueue.hasSessionsWithOutput() || TlsTransport.hasSessionsWithFinishedTasks())
+            return SelectStrategy.NO_BLOCKING;
+
+        long maxBlockingMillis = 0;
+        if (reader.hasThrottledSessions())
+            maxBlockingMillis = ServerConfiguration.RATE_LIMIT_RESUME_CHECK_MILLIS;
+        else if (AdmissionControl.hasDeferredAccepts())
+            maxBlockingMillis = ServerConfiguration.ADMISSION_INTERVAL_MILLIS;
+
+        if (reader.hasCutThroughTransfers() && (maxBlockingMillis == 0 || maxBlockingMillis > ServerConfiguration.CUT_THROUGH_IDLE_TIMEOUT_MILLIS))
+            maxBlockingMillis = ServerConfiguration.CUT_THROUGH_IDLE_TIMEOUT_MILLIS;
+        return maxBlockingMillis;
+    }
+
+    private void processingSelectedKeys(Selector selector) throws IOException {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+        while (iterator.hasNext()) {
             log.info("Retrieving key's ready-operation set");
             SelectionKey selectionKey = iterator.next();
             log.info("Removing the selection key");
@@ -137,19 +263,35 @@ public class InternalCore {
             log.info("Call processorOfAcceptOrReadEvent method if selection key is valid");
             if (selectionKey.isValid())
                 processorOfAcceptOrReadEvent(selectionKey);
+        }
+    }
 
-            }
+    /**
+     * Walks selected keys by index when selector fills the array set.
+     * Set is reset even if handling a key fails, so no key is handled
+     * twice
+     *
+     * @throws IOException is handled above
+     */
 
+    private void processingSelectedKeyArray() throws IOException {
+        try {
+            for (int i = 0; i < selectedKeySet.size(); i++) {
+                SelectionKey selectionKey = selectedKeySet.get(i);
+                if (selectionKey.isValid())
+                    processorOfAcceptOrReadEvent(selectionKey);
+            }
+        } finally {
+            selectedKeySet.reset();
         }
-        log.info("Finished eventsListenerOfRegisteredChannels execution method");
-        exit(0);
     }
 
     /**
      * Process that channel in which event has occurred. It can
      * process two types of events occurred in the channel.
      * <p>
-     * Event types are Accept or read events
+     * Event types are Accept, read or write events. Write events
+     * only occur while bytes wait for a client which does not read
      *
      * @param selectionKey Using this key we can access the channel
      * @throws IOException is handled above
@@ -160,8 +302,12 @@ public class InternalCore {
 
         if (selectionKey.isAcceptable())
             acceptClientConnectionRequest(selectionKey);
-        else if (selectionKey.isReadable())
-            readAndProcessMessagePacket(selectionKey);
+        else {
+            if (selectionKey.isWritable())
+                writePendingOutput(selectionKey);
+            if (selectionKey.isValid() && selectionKey.isReadable())
+                readAndProcessMessagePacket(selectionKey);
+        }
 
         log.info("Execution channelEventsProcessor method ended");
     }
@@ -169,7 +315,9 @@ public class InternalCore {
     /**
      * This method is used to accept client connection requests and
      * we generate source id for each connected clients. The generation
-     * of source id task is passed to a thread pool
+     * of source id task is passed to a thread pool. Over TLS the id
+     * is sent once the handshake is finished, to browsers once the
+     * WebSocket upgrade is done
      *
      * @param key of channel in which event occurred
      * @throws IOException handled above
@@ -179,6 +327,11 @@ public class InternalCore {
         log.info("Execution of acceptClientConnectionRequest method has started");
         log.info("Get the server socket channel on which event has occurred");
 
+        if (!AdmissionControl.isAdmittingConnection(key)) {
+            log.error("Server is overloaded, connection is not admitted now");
+            return;
+        }
+
         ServerSocketChannel channel = (ServerSocketChannel) key.channel();
         SocketChannel socketChannel = channel.accept();
         log.info("Connection got accepted");
@@ -186,11 +339,30 @@ public class InternalCore {
         socketChannel.configureBlocking(false);
         log.info("Socket Channel is now non blocking");
 
-        socketChannel.register(key.selector(), SelectionKey.OP_READ);
+        SelectionKey clientKey = socketChannel.register(key.selector(), SelectionKey.OP_READ);
         log.info("Socket Channel got registered on read events");
 
-        log.info("Calling submitIdGenerationJob()");
-        submitIdGenerationJob(socketChannel, key);
+        ConnectionSession session = ConnectionSession.open(clientKey);
+        TrafficCapture.connectionOpened(session);
+        log.info("Connection session attached to the key");
+
+        Runnable sendingId = () -> submitIdGenerationJob(socketChannel, key);
+        if (channel == webSocketServerChannel) {
+            log.info("Browser connection, id is sent after WebSocket upgrade");
+            session.setWebSocket(new WebSocketTransport(session, sendingId));
+            sendingId = () -> log.info("Waiting for WebSocket upgrade before sending id");
+        }
+
+        if (ServerConfiguration.TLS_ENABLED) {
+            log.info("Starting TLS handshake, id is sent when it finishes");
+            session.setTls(TlsTransport.forConnection(session, sendingId));
+        } else {
+            if (ReceiveSizer.isEnabled())
+                ReceiveSizer.starting(session);
+
+            log.info("Calling submitIdGenerationJob()");
+            sendingId.run();
+        }
 
         log.info("Execution of acceptClientConnectionRequest method has stopped"); //see till here
 
@@ -211,7 +383,7 @@ public class InternalCore {
 
         ClientInfoHolder.threadPoolToGenerateAndSendId.submit(() -> {
             clientInformationMaintainer.sendGeneratedSourceIdToClient(socketChannel);
-            key.selector().wakeup();
+            selectStrategy.wakeup();
         });
 
         log.info("Execution of submitIdGenerationJob method ended");
@@ -223,9 +395,53 @@ public class InternalCore {
         log.info("Execution of processClientMessages method ended");
     }
 
+    private void writePendingOutput(SelectionKey selectionKey) {
+        log.info("Execution of writePendingOutput method started");
+        Reader.getReaderInstance().writePendingOutput(selectionKey, messageQueue);
+        log.info("Execution of writePendingOutput method ended");
+    }
+
+    /**
+     * Stops accepting and reading before a snapshot is taken. Event
+     * loop keeps running, so bytes the Writer queues for clients while
+     * the message queue drains are still written. Client channels stay
+     * open until the process ends
+     */
+
+    private void stoppingEventLoop() {
+        stopping = true;
+        selectStrategy.wakeup();
+    }
+
+    /**
+     * Cancels keys of the listening channels and stops reading from
+     * clients. Runs before every select once server is stopping,
+     * because throttled and paused sessions may read again
+     */
+
+    private void stoppingAcceptsAndReads(Selector selector) {
+        for (SelectionKey selectionKey : selector.keys()) {
+            if (!selectionKey.isValid())
+                continue;
+
+            if (selectionKey.channel() instanceof ServerSocketChannel)
+                selectionKey.cancel();
+            else
+                selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
     private void finallyBlockExecutionForGraceFulShutdown(Selector selector) {
         log.info("Execution of finallyBlockExecutionForGraceFulShutdown started");
 
+        if (webSocketServerChannel != null && webSocketServerChannel.isOpen()) {
+            try {
+                webSocketServerChannel.close();
+            } catch (IOException e) {
+                log.error("Error occurred while closing WebSocket server channel", e);
+            }
+        }
+
         if(serverSocketChannel.isOpen()){
             log.info("Closing Server Socket Channel");
             try {
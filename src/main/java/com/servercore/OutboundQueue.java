@@ -0,0 +1,398 @@
+package com.servercore;
+
+import com.utilities.ServerConfiguration;
+import lombok.extern.slf4j.Slf4j;
+
+import lombok.AllArgsConstructor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bytes of one connection which its socket did not take yet. Writer,
+ * the id pool, receipt and presence publishers all send through the
+ * queue of the connection: a frame is written right away when nothing
+ * waits before it, whatever the socket does not take is kept here and
+ * written by the event loop once the channel is writable. Nobody waits
+ * for a slow client and bytes of two frames never get mixed.
+ * <p>
+ * While a cut-through frame is forwarded to the connection, frames of
+ * other senders only join the queue and are written once the
+ * cut-through frame is done. A cut-through frame starts only when the
+ * queue is empty. A connection whose queue holds more than
+ * chat.outbound.maxQueuedBytes gets no more frames until it reads what
+ * it has, such frames are dropped and counted.
+ * <p>
+ * Body of a file chunk is queued as a region of its spool and is
+ * written with transferTo once the socket takes it, so file bytes do
+ * not have to be copied into the heap while they wait.
+ * <p>
+ * A frame may come with a callback which runs once its last byte was
+ * written, on the calling thread or on the event loop. It never runs
+ * for a frame which was dropped or discarded.
+ * <p>
+ * Queue is guarded by the outbound lock of the session, which is held
+ * only while a frame is queued or written without blocking.
+ */
+
+@Slf4j
+class OutboundQueue {
+
+    public static final String FRAMES_DROPPED = "outbound.framesDropped";
+    public static final String FRAMES_QUEUED = "outbound.framesQueued";
+
+    private static final Queue<ConnectionSession> sessionsWithOutput = new ConcurrentLinkedQueue<>();
+    private static volatile Runnable wakingEventLoop = () -> { };
+
+    private final ConnectionSession session;
+    private Deque<QueuedWrite> writes;
+    private long queuedBytes;
+    private boolean flushScheduled;
+
+    OutboundQueue(ConnectionSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Sets how other threads wake the event loop when they queued bytes
+     *
+     * @param wakeup wakes the event loop
+     */
+
+    static void start(Runnable wakeup) {
+        wakingEventLoop = wakeup;
+    }
+
+    static boolean hasSessionsWithOutput() {
+        return !sessionsWithOutput.isEmpty();
+    }
+
+    /**
+     * Session which got queued bytes since the last call, so event
+     * loop writes them or waits until its channel is writable
+     *
+     * @return session or null if there is none
+     */
+
+    static ConnectionSession pollingSessionWithOutput() {
+        return sessionsWithOutput.poll();
+    }
+
+    /**
+     * Writes frame to the client, or queues it behind bytes which wait
+     * already. Never waits for the socket
+     *
+     * @param frame bytes to send
+     * @param whenWritten runs once the whole frame was written, may be null
+     * @return number of bytes written right away, -1 if frame was dropped
+     * @throws IOException if writing fails
+     */
+
+    int sending(ByteBuffer frame, Runnable whenWritten) throws IOException {
+        ReentrantLock outboundLock = session.getOutboundLock();
+        outboundLock.lock();
+        try {
+            return isDropping(frame.remaining()) ? -1 : writing(frame, whenWritten);
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    /**
+     * Tells if a frame of the given size has to be dropped because the
+     * client does not read, and counts it if so. Transports which
+     * encrypt or frame bytes ask before, bytes they produced can not
+     * be dropped anymore
+     *
+     * @param frameBytes size of the frame
+     * @return true if frame must not be sent
+     */
+
+    boolean isDropping(long frameBytes) {
+        ReentrantLock outboundLock = session.getOutboundLock();
+        outboundLock.lock();
+        try {
+            if (!isBusy() || queuedBytes + frameBytes <= ServerConfiguration.OUTBOUND_MAX_QUEUED_BYTES)
+                return false;
+
+            ServerMetrics.counter(FRAMES_DROPPED).increment();
+            log.error("Client is not reading, {} bytes wait for it already, dropping frame", queuedBytes);
+            return true;
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    /**
+     * Writes bytes to the client or queues them behind bytes which
+     * wait already, however many wait
+     *
+     * @param bytes to send
+     * @param whenWritten runs once all bytes were written, may be null
+     * @return number of bytes written right away
+     * @throws IOException if writing fails
+     */
+
+    int writing(ByteBuffer bytes, Runnable whenWritten) throws IOException {
+        return writing(new QueuedWrite(bytes, null, 0, 0, whenWritten));
+    }
+
+    /**
+     * Writes header and a region of a file to the client, or queues
+     * them behind bytes which wait already. Region is never copied,
+     * whatever the socket does not take is written from the file later
+     *
+     * @param header bytes written before the region
+     * @param file which holds the region, must stay open until it is written
+     * @param offset of the region in the file
+     * @param length of the region
+     * @param whenWritten runs once header and region were written, may be null
+     * @return number of bytes written right away, -1 if frame was dropped
+     * @throws IOException if writing fails
+     */
+
+    int sendingRegion(ByteBuffer header, FileChannel file, long offset, long length, Runnable whenWritten) throws IOException {
+        ReentrantLock outboundLock = session.getOutboundLock();
+        outboundLock.lock();
+        try {
+            return isDropping(header.remaining() + length) ? -1 :
+                    writing(new QueuedWrite(header, file, offset, length, whenWritten));
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    /**
+     * Writes queued bytes as far as the socket takes them. Runs on the
+     * event loop. Nothing is written while a cut-through frame is
+     * forwarded to the connection
+     *
+     * @throws IOException if writing fails
+     */
+
+    void flushing() throws IOException {
+        List<Runnable> written = new ArrayList<>();
+        ReentrantLock outboundLock = session.getOutboundLock();
+        outboundLock.lock();
+        try {
+            if (session.getCutThroughSource() != null || writes == null)
+                return;
+
+            QueuedWrite write;
+            while ((write = writes.peek()) != null) {
+                queuedBytes -= write.writingTo(session.getSocketChannel());
+                if (write.hasRemaining())
+                    return;
+                writes.poll();
+                if (write.whenWritten != null)
+                    written.add(write.whenWritten);
+            }
+
+            flushScheduled = false;
+            if (ServerConfiguration.LEAN_CONNECTIONS)
+                writes = null;
+        } finally {
+            outboundLock.unlock();
+            written.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * Tells if queued bytes wait for the channel to become writable
+     *
+     * @return true if event loop should watch for OP_WRITE
+     */
+
+    boolean isWaitingForSocket() {
+        ReentrantLock outboundLock = session.getOutboundLock();
+        outboundLock.lock();
+        try {
+            return queuedBytes > 0 && session.getCutThroughSource() == null;
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    /**
+     * Tells if bytes written to the socket now would go out in order
+     *
+     * @return true if nothing is queued and no cut-through frame is forwarded
+     */
+
+    boolean isIdle() {
+        ReentrantLock outboundLock = session.getOutboundLock();
+        outboundLock.lock();
+        try {
+            return !isBusy();
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    /**
+     * Makes the connection the destination of a cut-through frame if
+     * no bytes wait for it. Runs on the event loop
+     *
+     * @param source session which sends the frame
+     * @return false if destination has to be written to first
+     */
+
+    boolean startingCutThrough(ConnectionSession source) {
+        ReentrantLock outboundLock = session.getOutboundLock();
+        outboundLock.lock();
+        try {
+            if (isBusy())
+                return false;
+
+            session.setCutThroughSource(source);
+            return true;
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    /**
+     * Lets frames of other senders be written again once cut-through
+     * frame is done. Runs on the event loop
+     */
+
+    void endingCutThrough() {
+        ReentrantLock outboundLock = session.getOutboundLock();
+        outboundLock.lock();
+        try {
+            session.setCutThroughSource(null);
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    /**
+     * Takes frames of which no byte was written yet out of the queue,
+     * so they can be kept in a snapshot instead. Only frames of plain
+     * connections can be taken, bytes of TLS and WebSocket connections
+     * are encrypted or framed already
+     *
+     * @return frames in the order they were queued
+     */
+
+    List<byte[]> takingUnwrittenFrames() {
+        List<byte[]> frames = new ArrayList<>();
+        ReentrantLock outboundLock = session.getOutboundLock();
+        outboundLock.lock();
+        try {
+            if (writes == null || session.hasTransport())
+                return frames;
+
+            writes.removeIf(write -> {
+                if (write.file != null || write.bytes.position() > 0 || !write.bytes.hasArray() ||
+                        write.bytes.remaining() != write.bytes.array().length)
+                    return false;
+
+                frames.add(write.bytes.array());
+                queuedBytes -= write.remaining();
+                return true;
+            });
+            return frames;
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    /**
+     * Forgets queued bytes when connection is closed
+     */
+
+    void discarding() {
+        ReentrantLock outboundLock = session.getOutboundLock();
+        outboundLock.lock();
+        try {
+            writes = null;
+            queuedBytes = 0;
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    private int writing(QueuedWrite write) throws IOException {
+        int bytesWritten;
+        ReentrantLock outboundLock = session.getOutboundLock();
+        outboundLock.lock();
+        try {
+            bytesWritten = isBusy() ? 0 : (int) write.writingTo(session.getSocketChannel());
+            if (write.hasRemaining()) {
+                queueing(write);
+                return bytesWritten;
+            }
+        } finally {
+            outboundLock.unlock();
+        }
+
+        if (write.whenWritten != null)
+            write.whenWritten.run();
+        return bytesWritten;
+    }
+
+    private boolean isBusy() {
+        return queuedBytes > 0 || session.getCutThroughSource() != null;
+    }
+
+    private void queueing(QueuedWrite write) {
+        if (writes == null)
+            writes = new ArrayDeque<>(2);
+
+        writes.add(write);
+        queuedBytes += write.remaining();
+        ServerMetrics.counter(FRAMES_QUEUED).increment();
+
+        if (!flushScheduled) {
+            flushScheduled = true;
+            sessionsWithOutput.add(session);
+            wakingEventLoop.run();
+        }
+    }
+
+    /**
+     * Bytes followed by an optional region of a file
+     */
+
+    @AllArgsConstructor
+    private static class QueuedWrite {
+        private final ByteBuffer bytes;
+        private final FileChannel file;
+        private long fileOffset;
+        private long fileBytes;
+        private final Runnable whenWritten;
+
+        long remaining() {
+            return bytes.remaining() + fileBytes;
+        }
+
+        boolean hasRemaining() {
+            return remaining() > 0;
+        }
+
+        long writingTo(SocketChannel channel) throws IOException {
+            long bytesWritten = bytes.hasRemaining() ? channel.write(bytes) : 0;
+            if (bytes.hasRemaining() || fileBytes == 0)
+                return bytesWritten;
+
+            if (fileOffset + fileBytes > file.size())
+                throw new EOFException("File ends before the region which is written to the client");
+
+            long transferred = file.transferTo(fileOffset, fileBytes, channel);
+            fileOffset += transferred;
+            fileBytes -= transferred;
+            return bytesWritten + transferred;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.servercore;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Aho-Corasick automaton over bytes, compiled from the patterns of
+ * the content filter. Failure links are folded into a complete
+ * transition table, so scanning takes one table lookup per byte no
+ * matter how many patterns there are.
+ * <p>
+ * Only bytes which appear in a pattern get a column of their own,
+ * every other byte shares column 0. With ignoreCase ASCII letters
+ * share the column of their lower case letter. Every state knows the
+ * strongest action of all patterns ending in it and the longest
+ * pattern to redact, taken over its failure chain when compiling.
+ * Table takes four bytes per state and column, states are at most
+ * the bytes of all patterns together.
+ * <p>
+ * Automaton never changes once built. Scan state is a plain state
+ * number, so a body which arrives in chunks is scanned chunk by chunk
+ * with the state of the previous chunk.
+ */
+
+final class PatternAutomaton {
+
+    static final int NO_ACTION = 0;
+    static final int FLAG = 1;
+    static final int REDACT = 2;
+    static final int BLOCK = 3;
+    static final int START_STATE = 0;
+    private static final int INITIAL_STATE_CAPACITY = 1024;
+    static final PatternAutomaton EMPTY = new PatternAutomaton(new byte[0][], new int[0], new int[0], false);
+
+    private final int[] byteColumns = new int[256];
+    private final int columnCount;
+    private final int[] transitions;
+    private final byte[] stateActions;
+    private final int[] redactLengths;
+    private final int[] statePatterns;
+    private final int[] patternLines;
+    @Getter
+    private final int patternCount;
+    @Getter
+    private final boolean streamable;
+
+    /**
+     * Compiles patterns
+     *
+     * @param patterns bytes of every pattern, none of them empty
+     * @param actions action of every pattern, FLAG, REDACT or BLOCK
+     * @param patternLines line of every pattern in the filter file
+     * @param ignoreCase true if ASCII letters match in any case
+     */
+
+    PatternAutomaton(byte[][] patterns, int[] actions, int[] patternLines, boolean ignoreCase) {
+        this.patternCount = patterns.length;
+        this.patternLines = patternLines;
+
+        int columns = 1;
+        int totalBytes = 0;
+        for (byte[] pattern : patterns) {
+            totalBytes += pattern.length;
+            for (byte patternByte : pattern) {
+                int folded = folding(patternByte & 0xFF, ignoreCase);
+                if (byteColumns[folded] == 0)
+                    byteColumns[folded] = columns++;
+            }
+        }
+        if (ignoreCase)
+            for (int upper = 'A'; upper <= 'Z'; upper++)
+                byteColumns[upper] = byteColumns[upper - 'A' + 'a'];
+
+        columnCount = columns;
+        int capacity = Math.min(totalBytes + 1, INITIAL_STATE_CAPACITY);
+        int[] trie = new int[capacity * columnCount];
+        Arrays.fill(trie, -1);
+        byte[] actionsOfState = new byte[capacity];
+        int[] redactLengthsOfState = new int[capacity];
+        int[] patternsOfState = new int[capacity];
+
+        int stateCount = 1;
+        for (int index = 0; index < patterns.length; index++) {
+            int state = START_STATE;
+            for (byte patternByte : patterns[index]) {
+                int cell = state * columnCount + byteColumns[patternByte & 0xFF];
+                if (trie[cell] == -1) {
+                    if (stateCount == capacity) {
+                        capacity = Math.min(totalBytes + 1, capacity * 2);
+                        int filled = trie.length;
+                        trie = Arrays.copyOf(trie, capacity * columnCount);
+                        Arrays.fill(trie, filled, trie.length, -1);
+                        actionsOfState = Arrays.copyOf(actionsOfState, capacity);
+                        redactLengthsOfState = Arrays.copyOf(redactLengthsOfState, capacity);
+                        patternsOfState = Arrays.copyOf(patternsOfState, capacity);
+                    }
+                    trie[cell] = stateCount++;
+                }
+                state = trie[cell];
+            }
+
+            if (actions[index] > actionsOfState[state]) {
+                actionsOfState[state] = (byte) actions[index];
+                patternsOfState[state] = index;
+            }
+            if (actions[index] == REDACT)
+                redactLengthsOfState[state] = Math.max(redactLengthsOfState[state], patterns[index].length);
+        }
+
+        transitions = Arrays.copyOf(trie, stateCount * columnCount);
+        stateActions = Arrays.copyOf(actionsOfState, stateCount);
+        redactLengths = Arrays.copyOf(redactLengthsOfState, stateCount);
+        statePatterns = Arrays.copyOf(patternsOfState, stateCount);
+        linkingFailures(stateCount);
+
+        boolean onlyFlags = true;
+        for (int action : actions)
+            onlyFlags &= action == FLAG;
+        streamable = onlyFlags;
+    }
+
+    /**
+     * Breadth first walk which points every missing transition to the
+     * transition of the failure state, and hands down actions of the
+     * failure state, which ends in a suffix of this state
+     */
+
+    private void linkingFailures(int stateCount) {
+        int[] failures = new int[stateCount];
+        Deque<Integer> states = new ArrayDeque<>();
+
+        for (int column = 0; column < columnCount; column++) {
+            int next = transitions[column];
+            if (next == -1) {
+                transitions[column] = START_STATE;
+            } else {
+                failures[next] = START_STATE;
+                states.add(next);
+            }
+        }
+
+        while (!states.isEmpty()) {
+            int state = states.poll();
+            int failure = failures[state];
+
+            if (stateActions[failure] > stateActions[state]) {
+                stateActions[state] = stateActions[failure];
+                statePatterns[state] = statePatterns[failure];
+            }
+            redactLengths[state] = Math.max(redactLengths[state], redactLengths[failure]);
+
+            for (int column = 0; column < columnCount; column++) {
+                int cell = state * columnCount + column;
+                int next = transitions[cell];
+                if (next == -1) {
+                    transitions[cell] = transitions[failure * columnCount + column];
+                } else {
+                    failures[next] = transitions[failure * columnCount + column];
+                    states.add(next);
+                }
+            }
+        }
+    }
+
+    /**
+     * Scans bytes from, inclusive, to to, exclusive, of body in place.
+     * Scan state, strongest action and its pattern are kept in the
+     * session between chunks
+     *
+     * @param session whose frame is scanned
+     * @param body buffer holding the bytes, absolute positions are used
+     * @param from first byte to scan
+     * @param to byte after the last one
+     * @param redacting true if matches of REDACT patterns are overwritten
+     * @param redaction byte written over redacted matches
+     */
+
+    void scanning(ConnectionSession session, ByteBuffer body, int from, int to, boolean redacting, byte redaction) {
+        int state = session.getFilterState();
+
+        for (int position = from; position < to; position++) {
+            state = transitions[state * columnCount + byteColumns[body.get(position) & 0xFF]];
+            if (stateActions[state] == NO_ACTION)
+                continue;
+
+            if (stateActions[state] > session.getFilterAction()) {
+                session.setFilterAction(stateActions[state]);
+                session.setFilterPattern(statePatterns[state]);
+            }
+            if (redacting && redactLengths[state] > 0)
+                for (int redacted = Math.max(from, position - redactLengths[state] + 1); redacted <= position; redacted++)
+                    body.put(redacted, redaction);
+        }
+
+        session.setFilterState(state);
+    }
+
+    /**
+     * Line of the filter file a pattern came from
+     *
+     * @param pattern index of the pattern
+     * @return line number, starting with 1
+     */
+
+    int lineOf(int pattern) {
+        return patternLines[pattern];
+    }
+
+    private static int folding(int value, boolean ignoreCase) {
+        return ignoreCase && value >= 'A' && value <= 'Z' ? value - 'A' + 'a' : value;
+    }
+}
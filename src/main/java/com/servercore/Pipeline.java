@@ -67,6 +67,38 @@ public class Pipeline {
     }
 
 
+    /**
+     *
+     * Runs the pipeline over complete frames and returns every
+     * packet in them. Server and client library decode with it,
+     * so both read frames the same way. Caller makes sure only
+     * one thread uses a pipeline at a time
+     *
+     * @param frames one or more complete frames
+     *
+     * @return packets in the order of their frames
+     *
+     */
+
+    public List<Packet> gettingPackets(byte[] frames) {
+        List<Packet> packets = new ArrayList<>();
+
+        for (byte frameByte : frames)
+            messageByteQueue.add(frameByte);
+        startPipeline();
+
+        while (continuePipeLineProcess) {
+            int stage = pipelineSteps.get(currentStage).getAsInt();
+            log.info("Next stage of pipeline to be executed {}", stage);
+
+            if (packetIsReady)
+                packets.add(packet);
+        }
+
+        return packets;
+    }
+
+
     /**
      * Here the pipeline is initiated
      *
@@ -176,16 +208,8 @@ public class Pipeline {
 
                 for(int i = 0; i < Constants.BYTE_ARRAY_SIZE_FOR_MESSAGE_TYPE ; i++){
                     bytes[i] = messageByteQueue.poll();
-
-                    if(bytes[i] == 32){
-                        System.out.println(packet.getMagicBytes());
-                        while (!messageByteQueue.isEmpty())
-                            System.out.println(messageByteQueue.poll());
-
-                    }
                 }
 
-                System.out.println("bytes size "+bytes.length+" String "+new String(bytes));
                 return MessageType.fromTextGetMessageType(new String(bytes)).get();
             }
             return null;
@@ -275,29 +299,40 @@ public class Pipeline {
 
     public IntSupplier sixthStage(){
         return ()->{
-            String message = getIntegerStringFunction().apply(packet.getMessageLength());
-            packet.setMessage(message);
+            byte [] messageBytes = getIntegerBytesFunction().apply(packet.getMessageLength());
+
+            if(packet.getMessageType().hasBinaryBody())
+                packet.setPayload(messageBytes);
+            else
+                packet.setMessage(new String(messageBytes));
+
             return currentStage;
         };
     }
 
     /**
      *
-     * Helper function to convert bytes into string
+     * Helper function to take message bytes out of
+     * the queue
      *
-     * @return string
+     * @return bytes of message
      *
      */
 
-    private Function<Integer, String> getIntegerStringFunction() {
+    private Function<Integer, byte []> getIntegerBytesFunction() {
         return length->{
             byte [] bytes;
             int arraySize;
 
+            if(length == 0){
+                currentStage++;
+                return new byte[0];
+            }
+
             if(messageByteQueue.isEmpty()){
                 continuePipeLineProcess = packet.getMessageType().equals(MessageType.LOGIN) || packet.getMessageType().equals(MessageType.LOGOUT);
                 if (continuePipeLineProcess) currentStage++;
-                return "";
+                return new byte[0];
             }
 
             if(messageByteQueue.size() < length)
@@ -314,7 +349,7 @@ public class Pipeline {
                 bytes[i] = (byte) messageByteQueue.poll();
 
 
-            return new String(bytes);
+            return bytes;
         };
     }
 
@@ -0,0 +1,173 @@
+package com.servercore;
+
+import com.domain.MessageType;
+import com.domain.Packet;
+import com.utilities.Adaptor;
+import com.utilities.CompactBitmap;
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of which clients of this node are online. A client is
+ * online from the moment it gets its id, or logs in again, until it
+ * logs out or disconnects. Online ids are kept in a CompactBitmap.
+ * <p>
+ * PRESENCE_QUERY is answered with a PRESENCE_SNAPSHOT holding the
+ * serialized bitmap. If the query has a comma separated list of ids,
+ * snapshot only holds those of them which are online.
+ * PRESENCE_WATCH answers with a snapshot as well and subscribes the
+ * client to changes. Changes are collected and every
+ * chat.presence.flushMillis subscribers get one PRESENCE_UPDATE whose
+ * body is the bitmap of clients which came online followed by the
+ * bitmap of clients which went offline. A client which went offline
+ * and came back in the same period is in none of them.
+ * PRESENCE_UNWATCH, logout or disconnect end the subscription.
+ */
+
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class PresenceService {
+
+    private static final CompactBitmap onlineClients = new CompactBitmap();
+    private static CompactBitmap cameOnline = new CompactBitmap();
+    private static CompactBitmap wentOffline = new CompactBitmap();
+    private static final Set<Integer> subscribers = ConcurrentHashMap.newKeySet();
+    private static final Writer writer = new Writer();
+    private static final Adaptor adaptor = new Adaptor();
+
+    /**
+     * Starts thread which sends presence updates to subscribers
+     */
+
+    static void start() {
+        ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        publisher.scheduleWithFixedDelay(PresenceService::publishingChanges,
+                ServerConfiguration.PRESENCE_FLUSH_MILLIS, ServerConfiguration.PRESENCE_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    static synchronized void markOnline(int clientId) {
+        if (!onlineClients.add(clientId))
+            return;
+
+        if (!wentOffline.remove(clientId))
+            cameOnline.add(clientId);
+    }
+
+    static synchronized void markOffline(int clientId) {
+        subscribers.remove(clientId);
+        if (!onlineClients.remove(clientId))
+            return;
+
+        if (!cameOnline.remove(clientId))
+            wentOffline.add(clientId);
+    }
+
+    public static synchronized boolean isOnline(int clientId) {
+        return onlineClients.contains(clientId);
+    }
+
+    /**
+     * Answers presence query of the client
+     *
+     * @param packet query, message may hold comma separated ids
+     * @throws IOException occurred while writing to the client
+     */
+
+    static void answeringQuery(Packet packet) throws IOException {
+        sendingToClient(packet.getMessageSourceId(), MessageType.PRESENCE_SNAPSHOT, snapshotFor(packet.getMessage()));
+    }
+
+    /**
+     * Subscribes client to presence changes and sends the snapshot
+     * which the changes apply to
+     *
+     * @param packet watch request
+     * @throws IOException occurred while writing to the client
+     */
+
+    static void watching(Packet packet) throws IOException {
+        byte[] snapshot;
+        synchronized (PresenceService.class) {
+            subscribers.add(packet.getMessageSourceId());
+            snapshot = onlineClients.toBytes();
+        }
+        sendingToClient(packet.getMessageSourceId(), MessageType.PRESENCE_SNAPSHOT, snapshot);
+    }
+
+    static void unwatching(int clientId) {
+        subscribers.remove(clientId);
+    }
+
+    private static synchronized byte[] snapshotFor(String requestedIds) {
+        if (requestedIds == null || requestedIds.trim().isEmpty())
+            return onlineClients.toBytes();
+
+        CompactBitmap requestedOnline = new CompactBitmap();
+        for (String requestedId : requestedIds.split(",")) {
+            try {
+                int clientId = Integer.parseInt(requestedId.trim());
+                if (onlineClients.contains(clientId))
+                    requestedOnline.add(clientId);
+            } catch (NumberFormatException exception) {
+                log.info("Ignoring {} in presence query, it is not an id", requestedId);
+            }
+        }
+        return requestedOnline.toBytes();
+    }
+
+    private static void publishingChanges() {
+        CompactBitmap online;
+        CompactBitmap offline;
+        synchronized (PresenceService.class) {
+            if (cameOnline.isEmpty() && wentOffline.isEmpty())
+                return;
+
+            online = cameOnline;
+            offline = wentOffline;
+            cameOnline = new CompactBitmap();
+            wentOffline = new CompactBitmap();
+        }
+
+        ByteBuffer update = ByteBuffer.allocate(online.serializedSizeInBytes() + offline.serializedSizeInBytes());
+        online.serialize(update);
+        offline.serialize(update);
+
+        for (Integer subscriber : subscribers) {
+            try {
+                sendingToClient(subscriber, MessageType.PRESENCE_UPDATE, update.array());
+            } catch (IOException exception) {
+                log.error("Error occurred while sending presence update to client {}", subscriber, exception);
+            }
+        }
+    }
+
+    private static void sendingToClient(int clientId, MessageType messageType, byte[] body) throws IOException {
+        SocketChannel channel = ClientInfoHolder.getSocketChannel(clientId);
+        if (channel == null)
+            return;
+
+        Integer magicNumber = ClientInfoHolder.informationOfMagicNumber.get(clientId);
+        Packet packet = Packet.builder().magicBytes(magicNumber == null ? Constants.NO_MAGIC_BYTES_DEFINED : magicNumber).
+                messageType(messageType).messageSourceId(Constants.SERVER_SOURCE_ID).
+                messageDestinationId(clientId).messageLength(body.length).payload(body).build();
+
+        writer.sendingMessageToClient(adaptor.getBytesArrayFromPacket(packet), channel);
+    }
+}
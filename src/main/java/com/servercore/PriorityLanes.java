@@ -0,0 +1,98 @@
+package com.servercore;
+
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Queue with two lanes. Elements of the control lane are always
+ * taken before elements of the data lane, so control frames like
+ * LOGIN do not wait behind a burst of chat messages. To keep data
+ * moving, after maxControlBurst control elements in a row one data
+ * element is taken if there is any.
+ * <p>
+ * Any thread can put elements, but only one thread may take them.
+ *
+ * @param <T> type of element
+ */
+
+public class PriorityLanes<T> {
+
+    private final Queue<T> controlLane = new ConcurrentLinkedQueue<>();
+    private final Queue<T> dataLane = new ConcurrentLinkedQueue<>();
+    private final Semaphore available = new Semaphore(0);
+    private final int maxControlBurst;
+    private int controlBurst;
+
+    public PriorityLanes(int maxControlBurst) {
+        this.maxControlBurst = maxControlBurst;
+    }
+
+    /**
+     * Puts element in its lane
+     *
+     * @param element to put
+     * @param control true for control lane
+     */
+
+    public void put(T element, boolean control) {
+        (control ? controlLane : dataLane).add(element);
+        available.release();
+    }
+
+    /**
+     * Takes next element, waiting if both lanes are empty
+     *
+     * @return element
+     * @throws InterruptedException if interrupted while waiting
+     */
+
+    public T take() throws InterruptedException {
+        available.acquire();
+        return polling();
+    }
+
+    /**
+     * Takes elements which are available without waiting
+     *
+     * @param target collection to add elements to
+     * @param maxElements upper bound of elements to take
+     * @return number of elements taken
+     */
+
+    public int drainTo(Collection<? super T> target, int maxElements) {
+        int taken = 0;
+        while (taken < maxElements && available.tryAcquire()) {
+            target.add(polling());
+            taken++;
+        }
+        return taken;
+    }
+
+    public boolean isEmpty() {
+        return available.availablePermits() == 0;
+    }
+
+    public void clear() {
+        while (available.tryAcquire())
+            polling();
+    }
+
+    private T polling() {
+        T element;
+
+        if (controlBurst >= maxControlBurst && (element = dataLane.poll()) != null) {
+            controlBurst = 0;
+            return element;
+        }
+
+        if ((element = controlLane.poll()) != null) {
+            controlBurst++;
+            return element;
+        }
+
+        controlBurst = 0;
+        return dataLane.poll();
+    }
+}
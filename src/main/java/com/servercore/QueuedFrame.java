@@ -0,0 +1,18 @@
+package com.servercore;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Complete frame in the message queue together with what the Reader
+ * knew about it when it arrived: the time its header was read and
+ * the sequence number of data frames of its sender
+ */
+
+@Getter
+@AllArgsConstructor
+public class QueuedFrame {
+    private final byte[] frame;
+    private final long ingressNanos;
+    private final int sequenceNumber;
+}
@@ -0,0 +1,68 @@
+package com.servercore;
+
+import com.utilities.ServerConfiguration;
+
+/**
+ * Token bucket rate limiter for frames of one connection. Each
+ * session keeps a timestamp and two token counters, for messages
+ * and for bytes, so checking a frame costs a few arithmetic
+ * operations and no allocation.
+ * <p>
+ * Tokens are kept in units of one billionth, so refilling with
+ * elapsed nanoseconds needs no division. A bucket holds one second
+ * worth of tokens. A frame bigger than the whole byte bucket is let
+ * through once the bucket is full and leaves the bucket in debt.
+ */
+
+class RateLimiter {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long messagesPerSecond;
+    private final long bytesPerSecond;
+
+    RateLimiter(long messagesPerSecond, long bytesPerSecond) {
+        this.messagesPerSecond = messagesPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    static RateLimiter configured() {
+        return new RateLimiter(ServerConfiguration.RATE_LIMIT_MESSAGES_PER_SECOND, ServerConfiguration.RATE_LIMIT_BYTES_PER_SECOND);
+    }
+
+    boolean isEnabled() {
+        return messagesPerSecond > 0 || bytesPerSecond > 0;
+    }
+
+    /**
+     * Takes tokens for one frame if the session has enough of them
+     *
+     * @param session which sent the frame
+     * @param frameBytes size of the frame
+     * @param nowNanos current System.nanoTime()
+     * @return true if frame is allowed
+     */
+
+    boolean tryAcquire(ConnectionSession session, long frameBytes, long nowNanos) {
+        long elapsed = Math.min(nowNanos - session.getRateLimitTimestamp(), NANOS_PER_SECOND);
+        session.setRateLimitTimestamp(nowNanos);
+
+        long messageCapacity = messagesPerSecond * NANOS_PER_SECOND;
+        long byteCapacity = bytesPerSecond * NANOS_PER_SECOND;
+        long messageTokens = Math.min(session.getMessageTokens() + elapsed * messagesPerSecond, messageCapacity);
+        long byteTokens = Math.min(session.getByteTokens() + elapsed * bytesPerSecond, byteCapacity);
+        long byteCost = frameBytes * NANOS_PER_SECOND;
+
+        boolean allowed = (messagesPerSecond == 0 || messageTokens >= NANOS_PER_SECOND) &&
+                (bytesPerSecond == 0 || byteTokens >= Math.min(byteCost, byteCapacity));
+
+        if (allowed) {
+            messageTokens -= NANOS_PER_SECOND;
+            byteTokens -= byteCost;
+        }
+
+        session.setMessageTokens(messageTokens);
+        session.setByteTokens(byteTokens);
+        return allowed;
+    }
+}
@@ -1,6 +1,9 @@
 package com.servercore;
-import com.google.common.primitives.Bytes;
-import com.utilities.Adaptor;
+import com.cluster.ClusterNode;
+import com.domain.MessageType;
+import com.domain.Packet;
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -8,20 +11,46 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.BlockingQueue;
-
 
 
+/**
+ * This class reads bytes from client channels. Bytes are split into
+ * frames per connection, using the session attached to the selection
+ * key, and every complete frame is put into the message queue.
+ * <p>
+ * Large DATA frames can be forwarded cut-through instead. In that case
+ * body chunks are written to the destination as soon as they arrive
+ * and the frame is never assembled on the heap. Bodies of file
+ * uploads go into their spool file the same way
+ * <p>
+ * One read takes at most chat.fairness.readBudgetBytes and decodes at
+ * most chat.fairness.frameBudget frames. Bytes left over when frame
+ * budget is used up are kept in the session, which stops reading and
+ * waits in the ready list. Ready list is handled after all selected
+ * keys, so a busy client can not delay other clients of the loop
+ * <p>
+ * Connections over TLS are read through their TlsTransport, which
+ * decrypts into the same read buffer. Read budget does not apply to
+ * them, one read takes at most one network buffer of records.
+ * WebSocket headers are stripped from the read buffer before framing.
+ * With chat.receive.adaptive a read takes only as much as the size
+ * class of the connection allows, see ReceiveSizer
+ */
 
 @Slf4j
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 public class Reader {
     private static Reader reader;
-    private final ByteBuffer readByteBuffer = ByteBuffer.allocate(256*256);
-    private final ArrayList<Byte> messageInBytes = new ArrayList<>();
+    private final ByteBuffer readByteBuffer = ByteBuffer.allocate(Constants.READ_BUFFER_SIZE);
+    private final CutThroughForwarder cutThroughForwarder = new CutThroughForwarder(this);
+    private final RateLimiter rateLimiter = RateLimiter.configured();
+    private final Deque<ConnectionSession> throttledSessions = new ArrayDeque<>();
+    private final Deque<ConnectionSession> readySessions = new ArrayDeque<>();
 
 
     public static Reader getReaderInstance(){
@@ -31,43 +60,594 @@ public class Reader {
         return reader;
     }
 
-    public void readMessagesFromClient(SelectionKey selectionKey, BlockingQueue<byte []> messageQueue) {
+    public void readMessagesFromClient(SelectionKey selectionKey, PriorityLanes<QueuedFrame> messageQueue) {
         log.info("Read Event has occurred on channel");
         log.info("Execution of method readMessagesFromClient started");
+        ConnectionSession session = (ConnectionSession) selectionKey.attachment();
+
+        if (session.isPaused() || session.getStalledInput() != null) {
+            log.info("Key was selected before reading got stopped, bytes of the session wait for their turn");
+            return;
+        }
 
         try{
+            session.setFrameBudget(ServerConfiguration.FAIRNESS_FRAME_BUDGET);
+            if (session.getTls() == null)
+                readByteBuffer.limit(ReceiveSizer.isEnabled() ?
+                        ReceiveSizer.readLimit(session) : ServerConfiguration.FAIRNESS_READ_BUDGET_BYTES);
+
             log.info("Get the socket channel on which read event has occurred");
             SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
 
             log.info("Calling checkConnectionWithClient method ()");
-            if (!checkConnectionWithClient(socketChannel)) return;
+            if (!checkConnectionWithClient(socketChannel, session, messageQueue)) return;
+
+            decodingReadBytes(session, messageQueue);
+
+        }catch (IOException exception){
+            log.error("Exception occurred while reading from client ",exception);
+            closingClientConnection(session, messageQueue);
+        }finally {
+            log.info("Clearing the buffer");
+            readByteBuffer.clear();
+        }
+
+    }
+
+    /**
+     * Called when a channel is writable again, so bytes which waited
+     * for it can be flushed: chunk of a cut-through frame or bytes in
+     * the outbound queue of the session, TLS records among them
+     *
+     * @param selectionKey key of destination channel
+     * @param messageQueue queue of complete frames
+     */
+
+    public void writePendingOutput(SelectionKey selectionKey, PriorityLanes<QueuedFrame> messageQueue) {
+        ConnectionSession session = (ConnectionSession) selectionKey.attachment();
+        if (session.getCutThroughSource() != null)
+            cutThroughForwarder.flushingPendingOutput(selectionKey, messageQueue);
+        else
+            flushingQueuedOutput(session, messageQueue);
+    }
+
+    /**
+     * Writes bytes which other threads queued for clients whose socket
+     * did not take them right away
+     *
+     * @param messageQueue queue of complete frames
+     */
+
+    void flushingQueuedOutputs(PriorityLanes<QueuedFrame> messageQueue) {
+        ConnectionSession session;
+        while ((session = OutboundQueue.pollingSessionWithOutput()) != null)
+            if (ConnectionSession.of(session.getSocketChannel()) != null)
+                flushingQueuedOutput(session, messageQueue);
+    }
+
+    /**
+     * Writes queued bytes of the session and watches its channel for
+     * OP_WRITE while some are left. Sources waiting to forward a
+     * cut-through frame to the session go on once queue is empty
+     *
+     * @param session of the client
+     * @param messageQueue queue of complete frames
+     */
+
+    void flushingQueuedOutput(ConnectionSession session, PriorityLanes<QueuedFrame> messageQueue) {
+        try {
+            session.getOutboundQueue().flushing();
+        } catch (IOException exception) {
+            log.error("Exception occurred while writing queued bytes to client ", exception);
+            closingClientConnection(session, messageQueue);
+            return;
+        }
+
+        SelectionKey selectionKey = session.getSelectionKey();
+        boolean waitingForSocket = session.getOutboundQueue().isWaitingForSocket();
+        if (selectionKey.isValid() && session.getCutThroughSource() == null)
+            selectionKey.interestOps(waitingForSocket ? selectionKey.interestOps() | SelectionKey.OP_WRITE :
+                    selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+
+        if (!waitingForSocket)
+            cutThroughForwarder.resumingWaitingSources(session, messageQueue);
+    }
+
+    boolean hasCutThroughTransfers() {
+        return cutThroughForwarder.hasTransfers();
+    }
+
+    /**
+     * Gives up cut-through frames which stalled in the middle of body
+     *
+     * @param messageQueue queue of complete frames
+     */
+
+    void expiringIdleCutThroughs(PriorityLanes<QueuedFrame> messageQueue) {
+        cutThroughForwarder.expiringIdleTransfers(messageQueue);
+    }
+
+    /**
+     * Continues handshakes whose delegated tasks finished on the TLS
+     * pool
+     *
+     * @param messageQueue queue of complete frames
+     */
+
+    void continuingTlsHandshakes(PriorityLanes<QueuedFrame> messageQueue) {
+        ConnectionSession session;
+        while ((session = TlsTransport.pollingSessionWithFinishedTasks()) != null) {
+            if (ConnectionSession.of(session.getSocketChannel()) == null)
+                continue;
+
+            session.getTls().finishingTasks();
+            SelectionKey selectionKey = session.getSelectionKey();
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+            continuingTlsHandshake(session, messageQueue);
+        }
+    }
+
+    private void continuingTlsHandshake(ConnectionSession session, PriorityLanes<QueuedFrame> messageQueue) {
+        try {
+            session.getTls().advancing(readByteBuffer);
+            decodingReadBytes(session, messageQueue);
+        } catch (IOException exception) {
+            log.error("Exception occurred during TLS handshake with client ", exception);
+            closingClientConnection(session, messageQueue);
+        } finally {
+            readByteBuffer.clear();
+        }
+    }
+
+    /**
+     * Frames bytes which are in the read buffer. Bytes which could not
+     * be framed yet stay with the session
+     *
+     * @param session of the client
+     * @param messageQueue queue of complete frames
+     */
+
+    private void decodingReadBytes(ConnectionSession session, PriorityLanes<QueuedFrame> messageQueue) throws IOException {
+        log.info("Flipping into read mode");
+        readByteBuffer.flip();
+        if (session.getWebSocket() != null)
+            session.getWebSocket().unframing(readByteBuffer);
+        TrafficCapture.bytesRead(session, readByteBuffer);
 
-            messageQueue.put(readingMessageFromBufferIntoByteArray());
-            clearingMessageBufferAndMessageList();
+        framingMessagesFromBuffer(session, readByteBuffer, messageQueue);
+        keepingUnconsumedBytes(session);
 
-        }catch (Exception exception){
-            log.error("Exception occurred ",exception);
-            exception.printStackTrace();
+        if (session.getWebSocket() != null && session.getWebSocket().isClosed()) {
+            closingClientConnection(session, messageQueue);
+            return;
         }
 
+        if (!session.isPaused() && session.getStalledInput() != null)
+            deferringSession(session);
     }
 
-    private boolean checkConnectionWithClient(SocketChannel socketChannel) throws IOException {
+    private boolean checkConnectionWithClient(SocketChannel socketChannel, ConnectionSession session,
+                                              PriorityLanes<QueuedFrame> messageQueue) throws IOException {
         log.info("Execution of checkConnectionWithClient() method started");
 
-        if((socketChannel.read(readByteBuffer)) == -1){
+        int bytesRead = session.getTls() == null ? socketChannel.read(readByteBuffer) : session.getTls().reading(readByteBuffer);
+        if(bytesRead == -1){
             log.info("Connection session is not on with client");
-            removeClientInformationFromServer(socketChannel);
-            log.info("Closing channel with client");
-            socketChannel.close();
+            closingClientConnection(session, messageQueue);
             return false;
         }
 
+        if (ReceiveSizer.isEnabled() && session.getTls() == null)
+            ReceiveSizer.recordingRead(session, bytesRead);
+
         log.info("Connection is ON with client");
         log.info("Execution of socketChannel() method ended");
         return true;
     }
 
+    /**
+     * Splits the given bytes into frames for the session. The loop
+     * stops when bytes are finished or when the session got paused
+     * because its cut-through destination can not take more bytes
+     *
+     * @param session of the client
+     * @param input bytes read from client
+     * @param messageQueue queue of complete frames
+     */
+
+    void framingMessagesFromBuffer(ConnectionSession session, ByteBuffer input, PriorityLanes<QueuedFrame> messageQueue)
+            throws IOException {
+
+        while ((input.hasRemaining() || session.getFrameState() == ConnectionSession.FrameState.ADMITTING ||
+                session.getFrameState() == ConnectionSession.FrameState.AWAITING_DESTINATION) && !session.isPaused()) {
+
+            switch (session.getFrameState()) {
+                case READING_HEADER:
+                    if (session.getFrameBudget() == 0)
+                        return;
+                    readingFrameHeader(session, input);
+                    break;
+                case ADMITTING:
+                    admittingFrame(session, messageQueue);
+                    break;
+                case ASSEMBLING_BODY:
+                    assemblingFrameBody(session, input, messageQueue);
+                    break;
+                case AWAITING_DESTINATION:
+                    cutThroughForwarder.attemptingCutThrough(session, messageQueue);
+                    break;
+                case CUT_THROUGH:
+                    cutThroughForwarder.forwardingBodyChunk(session, input, messageQueue);
+                    break;
+                case SPOOLING_BODY:
+                    FileTransfers.spoolingBodyChunk(session, input);
+                    break;
+                case DRAINING_BODY:
+                    drainingFrameBody(session, input);
+                    break;
+            }
+        }
+    }
+
+    private void readingFrameHeader(ConnectionSession session, ByteBuffer input) throws IOException {
+        ByteBuffer headerBuffer = session.getHeaderBuffer();
+        transferringBytes(input, headerBuffer);
+        if (headerBuffer.hasRemaining()) return;
+
+        Packet frameHeader = decodingFrameHeader(headerBuffer);
+        session.setFrameBudget(session.getFrameBudget() - 1);
+        session.setFrameHeader(frameHeader);
+        session.setFrameIngressNanos(System.nanoTime());
+        session.setFrameSequenceNumber(frameHeader.getMessageType().isDataMessage() ?
+                session.getDataSequenceNumber().incrementAndGet() : 0);
+        session.setRemainingBodyBytes(frameHeader.getMessageLength());
+        session.setFrameState(ConnectionSession.FrameState.ADMITTING);
+    }
+
+    /**
+     * Decides what happens with the frame whose header was decoded.
+     * Data frames over the rate limit of the session are dropped or
+     * wait until the session has tokens again, data frames of the
+     * heaviest senders are dropped while server is overloaded.
+     * Admitted frames are either forwarded cut-through or assembled
+     *
+     * @param session of the client
+     * @param messageQueue queue of complete frames
+     */
+
+    private void admittingFrame(ConnectionSession session, PriorityLanes<QueuedFrame> messageQueue) {
+        Packet frameHeader = session.getFrameHeader();
+        ByteBuffer headerBuffer = session.getHeaderBuffer();
+
+        if (!isWithinRateLimit(session, frameHeader) || isShedForOverload(session, frameHeader))
+            return;
+
+        if (FileTransfers.isUpload(frameHeader)) {
+            admittingUpload(session, frameHeader);
+            return;
+        }
+
+        if (cutThroughForwarder.isCutThroughCandidate(frameHeader)) {
+            log.info("Frame of {} bytes will be forwarded cut-through", frameHeader.getMessageLength());
+            session.setFrameState(ConnectionSession.FrameState.AWAITING_DESTINATION);
+            return;
+        }
+
+        int frameLength = Constants.START_OF_MESSAGE_INCLUSIVE + frameHeader.getMessageLength();
+        byte[] frameBytes = new byte[ServerConfiguration.LEAN_CONNECTIONS ? Constants.START_OF_MESSAGE_INCLUSIVE : frameLength];
+        System.arraycopy(headerBuffer.array(), 0, frameBytes, 0, Constants.START_OF_MESSAGE_INCLUSIVE);
+        session.setFrameBytes(frameBytes);
+        session.setFrameBytesFilled(Constants.START_OF_MESSAGE_INCLUSIVE);
+        session.setFrameState(ConnectionSession.FrameState.ASSEMBLING_BODY);
+
+        if (frameHeader.getMessageLength() == 0)
+            completingAssembledFrame(session, messageQueue);
+    }
+
+    /**
+     * Body of an upload goes into the spool of its transfer. Upload
+     * over the bandwidth of its transfer pauses the session the same
+     * way the rate limiter does
+     *
+     * @param session of the sender
+     * @param frameHeader decoded header of FILE_CHUNK
+     */
+
+    private void admittingUpload(ConnectionSession session, Packet frameHeader) {
+        if (!FileTransfers.isWithinBandwidth(frameHeader, System.nanoTime())) {
+            session.pause();
+            throttledSessions.add(session);
+            return;
+        }
+
+        session.setFrameState(ConnectionSession.FrameState.SPOOLING_BODY);
+        if (frameHeader.getMessageLength() == 0)
+            session.resetFrame();
+    }
+
+    private boolean isWithinRateLimit(ConnectionSession session, Packet frameHeader) {
+        if (!rateLimiter.isEnabled() || !frameHeader.getMessageType().isDataMessage())
+            return true;
+
+        long frameBytes = Constants.START_OF_MESSAGE_INCLUSIVE + (long) frameHeader.getMessageLength();
+        if (rateLimiter.tryAcquire(session, frameBytes, System.nanoTime()))
+            return true;
+
+        if (Constants.RATE_LIMIT_ACTION_PAUSE.equalsIgnoreCase(ServerConfiguration.RATE_LIMIT_ACTION)) {
+            ServerMetrics.counter(ServerMetrics.RATE_LIMITED_READS_PAUSED).increment();
+            session.pause();
+            throttledSessions.add(session);
+            return false;
+        }
+
+        ServerMetrics.counter(ServerMetrics.RATE_LIMITED_FRAMES_DROPPED).increment();
+        session.setFrameState(ConnectionSession.FrameState.DRAINING_BODY);
+        if (frameHeader.getMessageLength() == 0)
+            session.resetFrame();
+        return false;
+    }
+
+    private boolean isShedForOverload(ConnectionSession session, Packet frameHeader) {
+        if (!frameHeader.getMessageType().isDataMessage() ||
+                !AdmissionControl.isShed(session, Constants.START_OF_MESSAGE_INCLUSIVE + (long) frameHeader.getMessageLength(), System.nanoTime()))
+            return false;
+
+        session.setFrameState(ConnectionSession.FrameState.DRAINING_BODY);
+        if (frameHeader.getMessageLength() == 0)
+            session.resetFrame();
+        return true;
+    }
+
+    boolean hasThrottledSessions() {
+        return !throttledSessions.isEmpty();
+    }
+
+    /**
+     * Gives sessions which were paused by the rate limiter another
+     * chance. A session which still has no tokens pauses again
+     *
+     * @param messageQueue queue of complete frames
+     */
+
+    void resumingThrottledSessions(PriorityLanes<QueuedFrame> messageQueue) {
+        for (int i = throttledSessions.size(); i > 0; i--)
+            resumingPausedSession(throttledSessions.poll(), messageQueue);
+    }
+
+    /**
+     * Decodes header of the frame from given bytes
+     *
+     * @param headerBuffer filled with all header bytes
+     * @return packet with header fields set
+     * @throws IOException if header breaks the protocol
+     */
+
+    private Packet decodingFrameHeader(ByteBuffer headerBuffer) throws IOException {
+        headerBuffer.flip();
+
+        int magicBytes = headerBuffer.getInt();
+        byte[] messageCode = new byte[Constants.BYTE_ARRAY_SIZE_FOR_MESSAGE_TYPE];
+        headerBuffer.get(messageCode);
+        int sourceId = headerBuffer.getInt();
+        int destinationId = headerBuffer.getInt();
+        int messageLength = headerBuffer.getInt();
+
+        Optional<MessageType> messageType = MessageType.fromTextGetMessageType(new String(messageCode));
+        if (!messageType.isPresent())
+            throw new IOException("Unknown message type " + new String(messageCode));
+
+        if (messageLength < 0 || messageLength > ServerConfiguration.MAX_FRAME_BYTES)
+            throw new IOException("Frame length " + messageLength + " is outside of allowed range");
+
+        return Packet.builder().magicBytes(magicBytes).messageType(messageType.get()).messageSourceId(sourceId).
+                messageDestinationId(destinationId).messageLength(messageLength).build();
+    }
+
+    private void assemblingFrameBody(ConnectionSession session, ByteBuffer input, PriorityLanes<QueuedFrame> messageQueue) {
+
+        int frameLength = Constants.START_OF_MESSAGE_INCLUSIVE + session.getFrameHeader().getMessageLength();
+        int length = Math.min(input.remaining(), frameLength - session.getFrameBytesFilled());
+        byte[] frameBytes = growingFrameBytes(session, session.getFrameBytesFilled() + length, frameLength);
+
+        input.get(frameBytes, session.getFrameBytesFilled(), length);
+        session.setFrameBytesFilled(session.getFrameBytesFilled() + length);
+
+        if (session.getFrameBytesFilled() == frameLength)
+            completingAssembledFrame(session, messageQueue);
+    }
+
+    /**
+     * In lean mode frame bytes start with the header only and grow
+     * with the body, at least doubling so a frame is copied only a few
+     * times. Complete frame always fills its array exactly
+     *
+     * @param session of the client
+     * @param neededBytes bytes which have to fit
+     * @param frameLength length of the whole frame
+     * @return frame bytes with room for needed bytes
+     */
+
+    private byte[] growingFrameBytes(ConnectionSession session, int neededBytes, int frameLength) {
+        byte[] frameBytes = session.getFrameBytes();
+        if (frameBytes.length >= neededBytes)
+            return frameBytes;
+
+        frameBytes = Arrays.copyOf(frameBytes, Math.min(frameLength, Math.max(neededBytes, frameBytes.length * 2)));
+        session.setFrameBytes(frameBytes);
+        return frameBytes;
+    }
+
+    /**
+     * Complete frame goes to the control lane if it is a control
+     * frame, otherwise to the data lane. Ephemeral frame whose key
+     * already waits replaces the waiting frame instead. Data frames
+     * pass the content filter first, which may redact or block them
+     *
+     * @param session of the client
+     * @param messageQueue queue of complete frames
+     */
+
+    private void completingAssembledFrame(ConnectionSession session, PriorityLanes<QueuedFrame> messageQueue) {
+        MessageType messageType = session.getFrameHeader().getMessageType();
+
+        if (!ContentFilter.isAllowed(session)) {
+            log.info("Frame blocked by content filter, dropping it");
+            session.resetFrame();
+            return;
+        }
+
+        QueuedFrame queuedFrame = new QueuedFrame(session.getFrameBytes(), session.getFrameIngressNanos(),
+                session.getFrameSequenceNumber());
+        if (messageType != MessageType.EPHEMERAL || EphemeralUpdates.offering(session.getFrameHeader(), queuedFrame))
+            messageQueue.put(queuedFrame, messageType.isControlMessage());
+        session.resetFrame();
+    }
+
+    private void drainingFrameBody(ConnectionSession session, ByteBuffer input) {
+        int length = (int) Math.min(input.remaining(), session.getRemainingBodyBytes());
+
+        input.position(input.position() + length);
+        session.setRemainingBodyBytes(session.getRemainingBodyBytes() - length);
+
+        if (session.getRemainingBodyBytes() == 0)
+            session.resetFrame();
+    }
+
+    private void transferringBytes(ByteBuffer source, ByteBuffer destination) {
+        int length = Math.min(source.remaining(), destination.remaining());
+        ByteBuffer slice = source.duplicate();
+        slice.limit(slice.position() + length);
+
+        destination.put(slice);
+        source.position(source.position() + length);
+    }
+
+    /**
+     * Read buffer is shared among all connections, so bytes which a
+     * paused session, or a session out of frame budget, could not
+     * consume yet are copied into session. This copy is never bigger
+     * than one read buffer
+     *
+     * @param session of the client
+     */
+
+    private void keepingUnconsumedBytes(ConnectionSession session) {
+        if (!readByteBuffer.hasRemaining())
+            return;
+
+        ByteBuffer stalledInput = ByteBuffer.allocate(readByteBuffer.remaining());
+        stalledInput.put(readByteBuffer);
+        stalledInput.flip();
+        session.setStalledInput(stalledInput);
+    }
+
+    /**
+     * Continues decoding of a paused session with the bytes it kept
+     * and starts reading from its channel again once they are used
+     *
+     * @param session paused session
+     * @param messageQueue queue of complete frames
+     */
+
+    void resumingPausedSession(ConnectionSession session, PriorityLanes<QueuedFrame> messageQueue) {
+        session.setPaused(false);
+        session.setFrameBudget(ServerConfiguration.FAIRNESS_FRAME_BUDGET);
+        SelectionKey selectionKey = session.getSelectionKey();
+
+        try {
+            ByteBuffer stalledInput = session.getStalledInput();
+            framingMessagesFromBuffer(session, stalledInput == null ? ByteBuffer.allocate(0) : stalledInput, messageQueue);
+
+            if (stalledInput != null && !stalledInput.hasRemaining())
+                session.setStalledInput(null);
+
+            if (session.isPaused())
+                return;
+
+            if (session.getStalledInput() != null)
+                deferringSession(session);
+            else if (selectionKey.isValid())
+                selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+
+        } catch (IOException exception) {
+            log.error("Exception occurred while resuming client ", exception);
+            closingClientConnection(session, messageQueue);
+        }
+    }
+
+    /**
+     * Session used up its frame budget. It stops reading and its kept
+     * bytes are decoded from the ready list
+     *
+     * @param session of the client
+     */
+
+    private void deferringSession(ConnectionSession session) {
+        SelectionKey selectionKey = session.getSelectionKey();
+        if (selectionKey.isValid())
+            selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+
+        if (!session.isReady()) {
+            session.setReady(true);
+            readySessions.add(session);
+            ServerMetrics.counter(ServerMetrics.SESSIONS_DEFERRED).increment();
+        }
+    }
+
+    boolean hasReadySessions() {
+        return !readySessions.isEmpty();
+    }
+
+    /**
+     * Gives every session of the ready list one more frame budget.
+     * Sessions which still have bytes left join the list again and
+     * wait for the next iteration of the loop
+     *
+     * @param messageQueue queue of complete frames
+     */
+
+    void processingReadySessions(PriorityLanes<QueuedFrame> messageQueue) {
+        for (int i = readySessions.size(); i > 0; i--) {
+            ConnectionSession session = readySessions.poll();
+            session.setReady(false);
+
+            if (!session.isPaused())
+                resumingPausedSession(session, messageQueue);
+        }
+    }
+
+    /**
+     * Closes connection of the client and cleans everything server
+     * holds for it, including unfinished cut-through transfers
+     *
+     * @param session of the client
+     * @param messageQueue queue of complete frames
+     */
+
+    void closingClientConnection(ConnectionSession session, PriorityLanes<QueuedFrame> messageQueue) {
+        SocketChannel socketChannel = session.getSocketChannel();
+        if (ConnectionSession.of(socketChannel) == null)
+            return;
+
+        ConnectionSession.remove(session);
+        TrafficCapture.connectionClosed(session);
+        throttledSessions.remove(session);
+        readySessions.remove(session);
+        if (session.getTls() != null)
+            session.getTls().closing();
+        session.getOutboundQueue().discarding();
+        removeClientInformationFromServer(socketChannel);
+        cutThroughForwarder.abandoningTransfersOf(session, messageQueue);
+
+        try {
+            log.info("Closing channel with client");
+            session.getSelectionKey().cancel();
+            socketChannel.close();
+        } catch (IOException exception) {
+            log.error("Error occurred while closing socket ", exception);
+        }
+    }
+
     /**
      * See this method in detail later
      *
@@ -82,41 +662,17 @@ public class Reader {
                 break;
             }
         }
+        if (!found.isPresent())
+            return;
+
         int key = found.get();
 
         ClientInfoHolder.informationOfConnectedClients.remove(key);
         ClientInfoHolder.informationOfMagicNumber.remove(key);
-    }
-
-    private byte[] readingMessageFromBufferIntoByteArray() { //every time new allocation on heap
-        Adaptor.lock.lock();
-        try{
-            log.info("Execution of readingMessageFromBufferIntoByteArray() method started");
-
-            log.info("Flipping into read mode");
-            readByteBuffer.flip();
-
-            log.info("Reading message from buffer");
-            while (readByteBuffer.hasRemaining())
-                messageInBytes.add(readByteBuffer.get());
-
-            log.info("Execution of readingMessageFromBuffer() method ended");
-            return Bytes.toArray(messageInBytes);
-        }finally {
-            Adaptor.lock.unlock();
-        }
-
-    }
-
-    private void clearingMessageBufferAndMessageList() {
-        log.info("Execution of clearingMessageBufferAndMessageList() method started");
-
-        log.info("Clearing the buffer");
-        readByteBuffer.clear();
-        log.info("Clearing the arraylist");
-        messageInBytes.clear();
-
-        log.info("Execution of clearingMessageBufferAndMessageList() method ended");
+        ClientInfoHolder.clientsAcceptingCompression.remove(key);
+        PresenceService.markOffline(key);
+        TopicService.unsubscribingAll(key);
+        ClusterNode.getInstance().clientLeft(key);
     }
 }
 
@@ -0,0 +1,129 @@
+package com.servercore;
+
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * Adapts how much one read of a connection may take to what the
+ * connection really sends. Every connection sits on a ladder of size
+ * classes, chat.receive.sizeClasses. A read which fills its class moves
+ * the connection one class up; two reads in a row which would have fit
+ * into the class below move it one class down. Chat clients sending
+ * short messages settle on the lowest class, clients pasting or
+ * sending files climb to the top.
+ * <p>
+ * Reads go into the read buffer which the event loop shares among all
+ * connections, so size class limits the part of it a read may take,
+ * never more than chat.fairness.readBudgetBytes.
+ * That bounds the bytes which are copied into a session when it can
+ * not consume them right away. When the class changes, kernel receive
+ * and send buffers of the socket are set to
+ * chat.receive.socketBufferFactor times the class, and Nagle is turned
+ * off for every class but the top one, so small messages leave at once
+ * while bulk senders get their writes coalesced.
+ */
+
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+class ReceiveSizer {
+
+    public static final String SIZE_CLASS_CHANGES = "receive.sizeClassChanges";
+
+    private static final int[] SIZE_CLASSES = parsingSizeClasses(ServerConfiguration.RECEIVE_SIZE_CLASSES);
+    private static final int INITIAL_SIZE_CLASS = Math.min(1, SIZE_CLASSES.length - 1);
+
+    static boolean isEnabled() {
+        return ServerConfiguration.RECEIVE_ADAPTIVE;
+    }
+
+    /**
+     * Puts new connection on the initial class
+     *
+     * @param session of the accepted connection
+     */
+
+    static void starting(ConnectionSession session) {
+        session.setReceiveSizeClass(INITIAL_SIZE_CLASS);
+        tuningSocket(session);
+    }
+
+    /**
+     * Bytes the next read of the connection may take
+     *
+     * @param session of the client
+     * @return read limit
+     */
+
+    static int readLimit(ConnectionSession session) {
+        return SIZE_CLASSES[session.getReceiveSizeClass()];
+    }
+
+    /**
+     * Moves connection along the ladder after a read
+     *
+     * @param session of the client
+     * @param bytesRead bytes the read returned
+     */
+
+    static void recordingRead(ConnectionSession session, int bytesRead) {
+        int sizeClass = session.getReceiveSizeClass();
+
+        if (bytesRead >= SIZE_CLASSES[sizeClass] && sizeClass < SIZE_CLASSES.length - 1) {
+            session.setShrinkPending(false);
+            changingSizeClass(session, sizeClass + 1);
+        } else if (sizeClass > 0 && bytesRead <= SIZE_CLASSES[sizeClass - 1]) {
+            if (session.isShrinkPending()) {
+                session.setShrinkPending(false);
+                changingSizeClass(session, sizeClass - 1);
+            } else {
+                session.setShrinkPending(true);
+            }
+        } else {
+            session.setShrinkPending(false);
+        }
+    }
+
+    private static void changingSizeClass(ConnectionSession session, int sizeClass) {
+        session.setReceiveSizeClass(sizeClass);
+        ServerMetrics.counter(SIZE_CLASS_CHANGES).increment();
+        tuningSocket(session);
+    }
+
+    private static void tuningSocket(ConnectionSession session) {
+        if (ServerConfiguration.RECEIVE_SOCKET_BUFFER_FACTOR <= 0)
+            return;
+
+        int sizeClass = session.getReceiveSizeClass();
+        int socketBufferBytes = SIZE_CLASSES[sizeClass] * ServerConfiguration.RECEIVE_SOCKET_BUFFER_FACTOR;
+        SocketChannel channel = session.getSocketChannel();
+
+        try {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBufferBytes);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, socketBufferBytes);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, sizeClass < SIZE_CLASSES.length - 1);
+        } catch (IOException exception) {
+            log.error("Could not tune socket buffers of connection {}", session.getConnectionId(), exception);
+        }
+    }
+
+    private static int[] parsingSizeClasses(String sizeClasses) {
+        int[] sizes = Arrays.stream(sizeClasses.split(","))
+                .map(String::trim)
+                .filter(size -> !size.isEmpty())
+                .mapToInt(Integer::parseInt)
+                .map(size -> Math.max(Constants.START_OF_MESSAGE_INCLUSIVE, Math.min(size, ServerConfiguration.FAIRNESS_READ_BUDGET_BYTES)))
+                .sorted()
+                .distinct()
+                .toArray();
+
+        return sizes.length == 0 ? new int[]{ServerConfiguration.FAIRNESS_READ_BUDGET_BYTES} : sizes;
+    }
+}
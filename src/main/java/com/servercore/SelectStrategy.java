@@ -0,0 +1,115 @@
+package com.servercore;
+
+import com.utilities.ServerConfiguration;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class decides how the event loop waits for events. The
+ * default strategy blocks in select() like before. The spin
+ * strategy first polls with selectNow() for a number of iterations,
+ * then polls while yielding the CPU and only then blocks with a
+ * timeout, which removes wake-up latency at the cost of CPU.
+ * <p>
+ * Other threads call wakeup() instead of selector.wakeup(). The
+ * system call is only made when the loop is really blocked, and
+ * only once for a burst of callers. Every wakeup leaves a pending
+ * flag which the loop checks after it announced that it is going to
+ * block, so a wakeup which comes while the loop is still busy makes
+ * the next select return at once instead of being lost.
+ */
+
+@Slf4j
+public class SelectStrategy {
+
+    public static final String BLOCKING = "blocking";
+    public static final String SPIN = "spin";
+    static final long NO_BLOCKING = -1;
+
+    private final Selector selector;
+    private final int spinIterations;
+    private final int yieldIterations;
+    private final long blockingTimeoutMillis;
+    private final AtomicBoolean wakeupNeeded = new AtomicBoolean(false);
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    SelectStrategy(Selector selector, int spinIterations, int yieldIterations, long blockingTimeoutMillis) {
+        this.selector = selector;
+        this.spinIterations = spinIterations;
+        this.yieldIterations = yieldIterations;
+        this.blockingTimeoutMillis = blockingTimeoutMillis;
+    }
+
+    /**
+     * Creates strategy selected through configuration
+     *
+     * @param selector of the event loop
+     * @return strategy
+     */
+
+    static SelectStrategy configuredFor(Selector selector) {
+        if (SPIN.equalsIgnoreCase(ServerConfiguration.SELECT_STRATEGY)) {
+            log.info("Using spin select strategy");
+            return new SelectStrategy(selector, ServerConfiguration.SELECT_SPIN_ITERATIONS,
+                    ServerConfiguration.SELECT_YIELD_ITERATIONS, ServerConfiguration.SELECT_TIMEOUT_MILLIS);
+        }
+
+        log.info("Using blocking select strategy");
+        return new SelectStrategy(selector, 0, 0, 0);
+    }
+
+    /**
+     * Waits for events
+     *
+     * @param maxBlockingMillis upper bound for blocking, 0 if there is none and NO_BLOCKING to only poll
+     * @return number of keys which got selected
+     * @throws IOException thrown by selector
+     */
+
+    int select(long maxBlockingMillis) throws IOException {
+        if (maxBlockingMillis == NO_BLOCKING)
+            return selector.selectNow();
+
+        int selectedKeys;
+
+        for (int i = 0; i < spinIterations; i++) {
+            if ((selectedKeys = selector.selectNow()) > 0 || wakeupPending.getAndSet(false))
+                return selectedKeys;
+        }
+
+        for (int i = 0; i < yieldIterations; i++) {
+            Thread.yield();
+            if ((selectedKeys = selector.selectNow()) > 0 || wakeupPending.getAndSet(false))
+                return selectedKeys;
+        }
+
+        wakeupNeeded.set(true);
+        try {
+            if (wakeupPending.getAndSet(false))
+                return selector.selectNow();
+
+            long timeoutMillis = blockingTimeoutMillis;
+            if (maxBlockingMillis > 0 && (timeoutMillis == 0 || maxBlockingMillis < timeoutMillis))
+                timeoutMillis = maxBlockingMillis;
+
+            return timeoutMillis > 0 ? selector.select(timeoutMillis) : selector.select();
+        } finally {
+            wakeupNeeded.set(false);
+            wakeupPending.set(false);
+        }
+    }
+
+    /**
+     * Wakes up the event loop if it is blocked in select, or makes its
+     * next select return at once if it is not blocked yet
+     */
+
+    public void wakeup() {
+        wakeupPending.set(true);
+        if (wakeupNeeded.compareAndSet(true, false))
+            selector.wakeup();
+    }
+}
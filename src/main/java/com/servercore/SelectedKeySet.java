@@ -0,0 +1,123 @@
+package com.servercore;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Field;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Selected keys kept in a plain array instead of the HashSet of the
+ * JDK selector. Selector adds every ready key once per select, so the
+ * set never has to look for duplicates, and the event loop walks the
+ * array by index and clears it afterwards. Nothing is allocated and
+ * nothing is hashed per event.
+ * <p>
+ * The set is put into the selector by reflection, which works on JDK 8
+ * and on later JDKs only with --add-opens java.base/sun.nio.ch. When it
+ * does not work the event loop keeps the set of the JDK.
+ */
+
+@Slf4j
+final class SelectedKeySet extends AbstractSet<SelectionKey> {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private SelectionKey[] keys = new SelectionKey[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Replaces selected key sets of the selector with a new array set
+     *
+     * @param selector of the event loop
+     * @return installed set or null if selector does not allow it
+     */
+
+    static SelectedKeySet installingInto(Selector selector) {
+        try {
+            Class<?> selectorImpl = Class.forName("sun.nio.ch.SelectorImpl", false, ClassLoader.getSystemClassLoader());
+            if (!selectorImpl.isAssignableFrom(selector.getClass())) {
+                log.error("Selector {} is not a SelectorImpl, keeping its selected key set", selector.getClass().getName());
+                return null;
+            }
+
+            Field selectedKeys = selectorImpl.getDeclaredField("selectedKeys");
+            Field publicSelectedKeys = selectorImpl.getDeclaredField("publicSelectedKeys");
+            selectedKeys.setAccessible(true);
+            publicSelectedKeys.setAccessible(true);
+
+            SelectedKeySet keySet = new SelectedKeySet();
+            selectedKeys.set(selector, keySet);
+            publicSelectedKeys.set(selector, keySet);
+            log.error("Selected keys of the event loop are kept in an array");
+            return keySet;
+        } catch (ReflectiveOperationException | RuntimeException exception) {
+            log.error("Could not replace selected key set of the selector, keeping the JDK one: {}", exception.toString());
+            return null;
+        }
+    }
+
+    @Override
+    public boolean add(SelectionKey key) {
+        if (key == null)
+            return false;
+
+        if (size == keys.length)
+            keys = Arrays.copyOf(keys, size * 2);
+
+        keys[size++] = key;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object key) {
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object key) {
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    SelectionKey get(int index) {
+        return keys[index];
+    }
+
+    /**
+     * Empties the set once the event loop handled every key, so keys
+     * of closed channels are not kept alive
+     */
+
+    void reset() {
+        Arrays.fill(keys, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public Iterator<SelectionKey> iterator() {
+        return new Iterator<SelectionKey>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public SelectionKey next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return keys[index++];
+            }
+        };
+    }
+}
@@ -0,0 +1,76 @@
+package com.servercore;
+
+import com.utilities.ServerConfiguration;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of things which happen inside the server. Counters are
+ * created on first use and can be incremented from any thread
+ * without contention. When chat.metrics.logIntervalSeconds is set
+ * all counters are logged periodically.
+ */
+
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class ServerMetrics {
+
+    public static final String RATE_LIMITED_FRAMES_DROPPED = "rateLimit.framesDropped";
+    public static final String RATE_LIMITED_READS_PAUSED = "rateLimit.readsPaused";
+    public static final String SESSIONS_DEFERRED = "fairness.sessionsDeferred";
+
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    /**
+     * Returns counter with the given name
+     *
+     * @param name of the counter
+     * @return counter
+     */
+
+    public static LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null)
+            counter = counters.computeIfAbsent(name, key -> new LongAdder());
+        return counter;
+    }
+
+    /**
+     * Current values of all counters sorted by name
+     *
+     * @return counter values
+     */
+
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        return values;
+    }
+
+    /**
+     * Starts logging of counters if interval is configured
+     */
+
+    static void startReporting() {
+        if (ServerConfiguration.METRICS_LOG_INTERVAL_SECONDS <= 0)
+            return;
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        reporter.scheduleAtFixedRate(() -> log.error("Server metrics {}", snapshot()),
+                ServerConfiguration.METRICS_LOG_INTERVAL_SECONDS, ServerConfiguration.METRICS_LOG_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+}
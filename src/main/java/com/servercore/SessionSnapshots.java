@@ -0,0 +1,316 @@
+package com.servercore;
+
+import com.domain.MessageType;
+import com.domain.Packet;
+import com.utilities.Adaptor;
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warm restart. With chat.snapshot.file set, stopping the server
+ * stops accepting and reading, gives the Writer chat.snapshot.drainMillis
+ * to deliver what is queued, and writes whatever is left into a
+ * memory mapped snapshot together with the id counter and id, magic
+ * number and compression flag of every logged in client:
+ * <p>
+ * Magic | Version | Id counter | Sessions | Frames  | Written at
+ * 4     | 4       | 4          | 4        | 4       | 8 Bytes
+ * <p>
+ * followed by 12 byte session entries sorted by id, id | magic | flags,
+ * and by frames, each one 4 byte length and the frame itself.
+ * <p>
+ * Next start maps the snapshot and looks sessions up right in the
+ * mapping with binary search, so a million sessions cost no parsing
+ * at all. A client which reconnects gets a new id as usual and sends
+ * RESUME from that id with its old magic number and its old id as
+ * message. Server moves the connection to the old id, answers with
+ * RESUME and delivers the frames which waited for the client. Chat
+ * frames are kept, frames with a deadline are not because their
+ * deadline was counted by the old process. Sessions which are not
+ * resumed within chat.snapshot.resumeWindowSeconds are forgotten.
+ */
+
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class SessionSnapshots {
+
+    public static final String SESSIONS_RESUMED = "snapshot.sessionsResumed";
+
+    private static final List<String> KEPT_MESSAGE_CODES = Arrays.asList(MessageType.DATA.getMessageCode(),
+            MessageType.COMPRESSED_DATA.getMessageCode(), MessageType.EPHEMERAL.getMessageCode());
+    private static final Map<Integer, List<byte[]>> restoredFrames = new ConcurrentHashMap<>();
+    private static final Set<Integer> resumedIds = ConcurrentHashMap.newKeySet();
+    private static final Writer writer = new Writer();
+    private static final Adaptor adaptor = new Adaptor();
+    private static volatile ByteBuffer restoredSessions;
+    private static volatile long resumableUntilMillis;
+
+    static boolean isEnabled() {
+        return !ServerConfiguration.SNAPSHOT_FILE.isEmpty();
+    }
+
+    /**
+     * Maps snapshot of the previous run if there is one. Snapshot file
+     * is deleted right away, so a crash never restores it twice
+     *
+     * @throws IOException if snapshot can not be read
+     */
+
+    static void restoring() throws IOException {
+        Path snapshotFile = Paths.get(ServerConfiguration.SNAPSHOT_FILE);
+        if (!isEnabled() || !Files.exists(snapshotFile))
+            return;
+
+        long startNanos = System.nanoTime();
+        MappedByteBuffer snapshot;
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        Files.delete(snapshotFile);
+
+        if (snapshot.getInt() != Constants.SNAPSHOT_FILE_MAGIC || snapshot.getInt() != Constants.SNAPSHOT_FILE_VERSION) {
+            log.error("File {} is not a snapshot of this version, starting cold", snapshotFile);
+            return;
+        }
+
+        ClientInfoHolder.restoringClientCounter(snapshot.getInt());
+        int sessionCount = snapshot.getInt();
+        int frameCount = snapshot.getInt();
+        long writtenAtMillis = snapshot.getLong();
+
+        ByteBuffer sessions = snapshot.slice();
+        sessions.limit(sessionCount * Constants.SNAPSHOT_SESSION_ENTRY_SIZE);
+        snapshot.position(snapshot.position() + sessions.limit());
+
+        for (int i = 0; i < frameCount; i++) {
+            byte[] frame = new byte[snapshot.getInt()];
+            snapshot.get(frame);
+            int destinationId = ByteBuffer.wrap(frame).getInt(Constants.START_OF_DEST_ID_INCLUSIVE);
+            restoredFrames.computeIfAbsent(destinationId, key -> new ArrayList<>()).add(frame);
+        }
+
+        restoredSessions = sessions;
+        resumableUntilMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ServerConfiguration.SNAPSHOT_RESUME_WINDOW_SECONDS);
+        log.error("Restored {} sessions and {} frames of snapshot written {} ms ago in {} ms", sessionCount, frameCount,
+                System.currentTimeMillis() - writtenAtMillis, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Moves connection of the client to its id from before restart
+     *
+     * @param packet RESUME from the new id of the client
+     * @throws IOException occurred while writing to the client
+     */
+
+    static void resuming(Packet packet) throws IOException {
+        int newId = packet.getMessageSourceId();
+        SocketChannel channel = ClientInfoHolder.getSocketChannel(newId);
+        if (channel == null)
+            return;
+
+        int oldId = parsingId(packet.getMessage());
+        if (!isRestoredSession(oldId, packet.getMagicBytes()) ||
+                ClientInfoHolder.getSocketChannel(oldId) != null || !resumedIds.add(oldId)) {
+            log.error("Client {} can not resume session {}", newId, oldId);
+            Packet refusal = Packet.builder().magicBytes(Constants.NO_MAGIC_BYTES_DEFINED).messageType(MessageType.DATA).
+                    messageSourceId(Constants.SERVER_SOURCE_ID).messageDestinationId(newId).
+                    messageLength(Constants.MESSAGE_WHEN_SESSION_NOT_RESUMED.length()).
+                    message(Constants.MESSAGE_WHEN_SESSION_NOT_RESUMED).build();
+            writer.sendingMessageToClient(adaptor.getBytesArrayFromPacket(refusal), channel);
+            return;
+        }
+
+        int entry = findingSession(oldId);
+        boolean acceptsCompression = (restoredSessions.getInt(entry + 2 * Constants.BYTE_ARRAY_SIZE_FOR_INT) &
+                Constants.SNAPSHOT_ACCEPTS_COMPRESSION) != 0;
+        ClientInfoHolder.resumingClient(oldId, newId, packet.getMagicBytes(), acceptsCompression);
+        ServerMetrics.counter(SESSIONS_RESUMED).increment();
+
+        Packet resumed = Packet.builder().magicBytes(packet.getMagicBytes()).messageType(MessageType.RESUME).
+                messageSourceId(Constants.SERVER_SOURCE_ID).messageDestinationId(oldId).
+                messageLength(0).message(Constants.MESSAGE_FROM_SERVER).build();
+        writer.sendingMessageToClient(adaptor.getBytesArrayFromPacket(resumed), channel);
+
+        List<byte[]> frames = restoredFrames.remove(oldId);
+        if (frames != null)
+            for (byte[] frame : frames) {
+                int magicNumber = ByteBuffer.wrap(frame).getInt();
+                writer.deliverFrameFromPeerNode(frame, senderId -> isRestoredSession(senderId, magicNumber));
+            }
+    }
+
+    /**
+     * Stops accepting and reading, lets the Writer drain the queue and
+     * the event loop write what the Writer queued for clients. Both
+     * drains share chat.snapshot.drainMillis. Frames which are left in
+     * the message queue or wait untouched in an outbound queue are then
+     * written together with the sessions into the snapshot. Runs as
+     * shutdown hook
+     *
+     * @param messageQueue queue shared by Reader and Writer
+     * @param writerThread thread taking from the queue
+     * @param stoppingEventLoop stops accepting and reading and wakes the event loop
+     */
+
+    static void drainingIntoSnapshot(PriorityLanes<QueuedFrame> messageQueue, Thread writerThread, Runnable stoppingEventLoop) {
+        long startNanos = System.nanoTime();
+        stoppingEventLoop.run();
+
+        long drainUntilNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(ServerConfiguration.SNAPSHOT_DRAIN_MILLIS);
+        try {
+            while (!messageQueue.isEmpty() && System.nanoTime() - drainUntilNanos < 0)
+                Thread.sleep(1);
+
+            messageQueue.put(Writer.STOPPING, true);
+            writerThread.join(TimeUnit.NANOSECONDS.toMillis(Math.max(0, drainUntilNanos - System.nanoTime())) + 1);
+            if (writerThread.isAlive()) {
+                writerThread.interrupt();
+                writerThread.join(1);
+            }
+
+            while (hasQueuedOutput() && System.nanoTime() - drainUntilNanos < 0)
+                Thread.sleep(1);
+        } catch (InterruptedException exception) {
+            log.error("Interrupted while draining message queue");
+        }
+
+        List<QueuedFrame> leftFrames = new ArrayList<>();
+        for (ConnectionSession session : ConnectionSession.openSessions())
+            for (byte[] frame : session.getOutboundQueue().takingUnwrittenFrames())
+                leftFrames.add(new QueuedFrame(frame, 0, 0));
+        if (hasQueuedOutput())
+            log.error("Some clients did not read bytes which were queued for them, they are not kept in snapshot");
+
+        messageQueue.drainTo(leftFrames, Integer.MAX_VALUE);
+        leftFrames.remove(Writer.STOPPING);
+
+        try {
+            writingSnapshot(leftFrames);
+            log.error("Snapshot of {} frames written in {} ms", leftFrames.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        } catch (IOException exception) {
+            log.error("Could not write snapshot {}", ServerConfiguration.SNAPSHOT_FILE, exception);
+        }
+    }
+
+    private static boolean hasQueuedOutput() {
+        for (ConnectionSession session : ConnectionSession.openSessions())
+            if (!session.getOutboundQueue().isIdle())
+                return true;
+        return false;
+    }
+
+    private static void writingSnapshot(List<QueuedFrame> leftFrames) throws IOException {
+        Map<Integer, Integer> magicNumbers = ClientInfoHolder.informationOfMagicNumber;
+        int[] ids = magicNumbers.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+
+        List<byte[]> frames = new ArrayList<>();
+        long framesSize = 0;
+        for (QueuedFrame queuedFrame : leftFrames) {
+            byte[] frame = EphemeralUpdates.takingLatest(queuedFrame).getFrame();
+            if (isKeptInSnapshot(frame)) {
+                frames.add(frame);
+                framesSize += Constants.BYTE_ARRAY_SIZE_FOR_INT + frame.length;
+            }
+        }
+
+        Path snapshotFile = Paths.get(ServerConfiguration.SNAPSHOT_FILE);
+        Path partialFile = Paths.get(ServerConfiguration.SNAPSHOT_FILE + Constants.SNAPSHOT_PARTIAL_SUFFIX);
+        long size = Constants.SNAPSHOT_FILE_HEADER_SIZE + (long) ids.length * Constants.SNAPSHOT_SESSION_ENTRY_SIZE + framesSize;
+
+        try (FileChannel channel = FileChannel.open(partialFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            snapshot.putInt(Constants.SNAPSHOT_FILE_MAGIC).putInt(Constants.SNAPSHOT_FILE_VERSION).
+                    putInt(ClientInfoHolder.currentClientCounter()).putInt(ids.length).putInt(frames.size()).
+                    putLong(System.currentTimeMillis());
+
+            for (int id : ids) {
+                Integer magicNumber = magicNumbers.get(id);
+                snapshot.putInt(id).putInt(magicNumber == null ? Constants.NO_MAGIC_BYTES_DEFINED : magicNumber).
+                        putInt(ClientInfoHolder.isCompressionAccepted(id) ? Constants.SNAPSHOT_ACCEPTS_COMPRESSION : 0);
+            }
+
+            for (byte[] frame : frames)
+                snapshot.putInt(frame.length).put(frame);
+
+            snapshot.force();
+        }
+        Files.move(partialFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static boolean isKeptInSnapshot(byte[] frame) {
+        String messageCode = new String(frame, Constants.START_OF_MESSAGE_TYPE_INCLUSIVE, Constants.BYTE_ARRAY_SIZE_FOR_MESSAGE_TYPE);
+        return KEPT_MESSAGE_CODES.contains(messageCode);
+    }
+
+    /**
+     * Tells if client had the magic number before restart, so frames
+     * of the snapshot are replayed only if their sender was logged in
+     *
+     * @return false if session was not restored or magic number differs
+     */
+
+    private static boolean isRestoredSession(int clientId, int magicNumber) {
+        int entry = findingSession(clientId);
+        return entry >= 0 && restoredSessions.getInt(entry + Constants.BYTE_ARRAY_SIZE_FOR_INT) == magicNumber;
+    }
+
+    /**
+     * Binary search over the mapped session entries
+     *
+     * @return offset of the entry or -1 if session was not restored
+     */
+
+    private static int findingSession(int clientId) {
+        ByteBuffer sessions = restoredSessions;
+        if (sessions == null || System.currentTimeMillis() > resumableUntilMillis) {
+            restoredFrames.clear();
+            return -1;
+        }
+
+        int low = 0;
+        int high = sessions.limit() / Constants.SNAPSHOT_SESSION_ENTRY_SIZE - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int id = sessions.getInt(middle * Constants.SNAPSHOT_SESSION_ENTRY_SIZE);
+            if (id < clientId)
+                low = middle + 1;
+            else if (id > clientId)
+                high = middle - 1;
+            else
+                return middle * Constants.SNAPSHOT_SESSION_ENTRY_SIZE;
+        }
+        return -1;
+    }
+
+    private static int parsingId(String message) {
+        try {
+            return Integer.parseInt(message == null ? "" : message.trim());
+        } catch (NumberFormatException exception) {
+            return Constants.SERVER_SOURCE_ID;
+        }
+    }
+}
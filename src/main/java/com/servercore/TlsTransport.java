@@ -0,0 +1,339 @@
+package com.servercore;
+
+import com.utilities.BufferPool;
+import com.utilities.ServerConfiguration;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * TLS state of one client connection. Bytes read from the channel go
+ * into a network buffer and are decrypted into the plain read buffer
+ * of the Reader, so framing does not know about TLS at all. Frames
+ * and handshake records which are sent to the client are encrypted
+ * under the outbound lock and handed to the outbound queue of the
+ * session, so records go out in the order they were encrypted and
+ * whatever the socket does not take is written on OP_WRITE.
+ * <p>
+ * Handshake is driven on the event loop. Delegated tasks of the
+ * engine, which do the expensive key exchange work, run on their own
+ * pool; while they run the connection is not read and once they are
+ * done the event loop continues the handshake. Id of the client is
+ * sent only after the handshake is finished.
+ * <p>
+ * Network buffers come from a pool. Connection keeps its inbound
+ * buffer only while it holds part of a record, outbound buffers are
+ * taken for one encryption. Server session cache is sized by
+ * chat.tls.sessionCacheSize, so a client which connects again
+ * resumes its session and skips the key exchange.
+ */
+
+@Slf4j
+class TlsTransport {
+
+    public static final String HANDSHAKES_COMPLETED = "tls.handshakesCompleted";
+    public static final String SESSIONS_RESUMED = "tls.sessionsResumed";
+
+    private static final ByteBuffer NO_BYTES = ByteBuffer.allocate(0);
+    private static final Queue<ConnectionSession> sessionsWithFinishedTasks = new ConcurrentLinkedQueue<>();
+    private static SSLContext context;
+    private static BufferPool networkBuffers;
+    private static ExecutorService delegatedTasks;
+    private static Runnable wakingEventLoop;
+
+    private final ConnectionSession session;
+    private final SSLEngine engine;
+    private final Runnable whenEstablished;
+    private final long handshakeStartMillis = System.currentTimeMillis();
+    private ByteBuffer networkInput;
+    private boolean established;
+    private boolean tasksRunning;
+
+    private TlsTransport(ConnectionSession session, Runnable whenEstablished) throws SSLException {
+        this.session = session;
+        this.whenEstablished = whenEstablished;
+        this.engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.beginHandshake();
+    }
+
+    /**
+     * Loads key material and sets up session cache, buffer pool and
+     * pool for delegated tasks. Called once before clients are accepted
+     *
+     * @param wakeup wakes the event loop when delegated tasks finish
+     * @throws GeneralSecurityException if key store can not be used
+     * @throws IOException if key store can not be read
+     */
+
+    static void start(Runnable wakeup) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(ServerConfiguration.TLS_KEY_STORE_TYPE);
+        char[] password = ServerConfiguration.TLS_KEY_STORE_PASSWORD.toCharArray();
+        try (InputStream input = new FileInputStream(ServerConfiguration.TLS_KEY_STORE)) {
+            keyStore.load(input, password);
+        }
+
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+
+        context = SSLContext.getInstance(ServerConfiguration.TLS_PROTOCOL);
+        context.init(keyManagers.getKeyManagers(), null, null);
+
+        SSLSessionContext sessionCache = context.getServerSessionContext();
+        sessionCache.setSessionCacheSize(ServerConfiguration.TLS_SESSION_CACHE_SIZE);
+        sessionCache.setSessionTimeout(ServerConfiguration.TLS_SESSION_TIMEOUT_SECONDS);
+
+        networkBuffers = new BufferPool(context.createSSLEngine().getSession().getPacketBufferSize(),
+                ServerConfiguration.TLS_POOLED_BUFFERS);
+
+        delegatedTasks = Executors.newFixedThreadPool(ServerConfiguration.TLS_TASK_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "tls-tasks");
+            thread.setDaemon(true);
+            return thread;
+        });
+        wakingEventLoop = wakeup;
+        log.error("TLS enabled with {} and session cache of {}", ServerConfiguration.TLS_PROTOCOL, ServerConfiguration.TLS_SESSION_CACHE_SIZE);
+    }
+
+    /**
+     * Starts server side handshake on the connection
+     *
+     * @param session of the accepted connection
+     * @param whenEstablished runs on the event loop once handshake is finished
+     * @return transport of the connection
+     * @throws SSLException if handshake can not be started
+     */
+
+    static TlsTransport forConnection(ConnectionSession session, Runnable whenEstablished) throws SSLException {
+        return new TlsTransport(session, whenEstablished);
+    }
+
+    /**
+     * Session whose delegated tasks finished since the last call, so
+     * its handshake can go on
+     *
+     * @return session or null if there is none
+     */
+
+    static ConnectionSession pollingSessionWithFinishedTasks() {
+        return sessionsWithFinishedTasks.poll();
+    }
+
+    static boolean hasSessionsWithFinishedTasks() {
+        return !sessionsWithFinishedTasks.isEmpty();
+    }
+
+    /**
+     * Reads from the channel and decrypts every complete record. Plain
+     * buffer must have room for at least one network buffer, because
+     * a record never gets smaller when it is encrypted
+     *
+     * @param plaintext buffer to which decrypted bytes are appended
+     * @return -1 if client closed the connection, number of bytes read otherwise
+     * @throws IOException if reading fails or client breaks the protocol
+     */
+
+    int reading(ByteBuffer plaintext) throws IOException {
+        if (networkInput == null)
+            networkInput = networkBuffers.acquire();
+
+        int bytesRead = session.getSocketChannel().read(networkInput);
+        if (bytesRead == -1)
+            return -1;
+
+        advancing(plaintext);
+        return bytesRead;
+    }
+
+    /**
+     * Moves handshake forward as far as it goes without waiting for
+     * the client, then decrypts whatever application data arrived
+     *
+     * @param plaintext buffer to which decrypted bytes are appended
+     * @throws IOException if writing fails or client breaks the protocol
+     */
+
+    void advancing(ByteBuffer plaintext) throws IOException {
+        while (!tasksRunning) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && !established)
+                establishing();
+
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK)
+                runningDelegatedTasks();
+            else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP)
+                wrappingHandshake();
+            else if (!unwrapping(plaintext))
+                break;
+        }
+
+        if (networkInput != null && networkInput.position() == 0) {
+            networkBuffers.release(networkInput);
+            networkInput = null;
+        }
+    }
+
+    /**
+     * Encrypts bytes and sends them to the client through the outbound
+     * queue of the session. Encryption and queueing happen under the
+     * outbound lock, so records of two frames are never mixed and a
+     * record is never dropped once it was encrypted
+     *
+     * @param whenWritten runs once every record was written, may be null
+     * @param plaintext bytes to send, one after another
+     * @return number of encrypted bytes written right away, -1 if frame was dropped
+     * @throws IOException if session is closed or writing fails
+     */
+
+    int sending(Runnable whenWritten, ByteBuffer... plaintext) throws IOException {
+        long plainBytes = 0;
+        for (ByteBuffer buffer : plaintext)
+            plainBytes += buffer.remaining();
+
+        session.getOutboundLock().lock();
+        try {
+            if (session.getOutboundQueue().isDropping(plainBytes))
+                return -1;
+
+            return session.getOutboundQueue().writing(encrypting(plaintext, plainBytes), whenWritten);
+        } finally {
+            session.getOutboundLock().unlock();
+        }
+    }
+
+    boolean isEstablished() {
+        return established;
+    }
+
+    /**
+     * Called on the event loop after delegated tasks finished
+     */
+
+    void finishingTasks() {
+        tasksRunning = false;
+    }
+
+    /**
+     * Gives buffers back to the pool when connection is closed
+     */
+
+    void closing() {
+        engine.closeOutbound();
+        networkBuffers.release(networkInput);
+        networkInput = null;
+    }
+
+    private boolean unwrapping(ByteBuffer plaintext) throws IOException {
+        if (networkInput == null || networkInput.position() == 0)
+            return false;
+
+        networkInput.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(networkInput, plaintext);
+        } finally {
+            networkInput.compact();
+        }
+
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+            throw new SSLException("Client closed TLS session");
+
+        if (result.getStatus() != SSLEngineResult.Status.OK)
+            return false;
+
+        SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+        return result.bytesConsumed() > 0 || result.bytesProduced() > 0 ||
+                status == SSLEngineResult.HandshakeStatus.NEED_TASK || status == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+    }
+
+    private void wrappingHandshake() throws IOException {
+        session.getOutboundLock().lock();
+        try {
+            session.getOutboundQueue().writing(encrypting(new ByteBuffer[]{NO_BYTES}, 0), null);
+        } finally {
+            session.getOutboundLock().unlock();
+        }
+    }
+
+    /**
+     * Wraps bytes record by record into a buffer of their own, which
+     * can wait in the outbound queue. Caller holds the outbound lock
+     */
+
+    private ByteBuffer encrypting(ByteBuffer[] plaintext, long plainBytes) throws IOException {
+        ByteBuffer networkOutput = networkBuffers.acquire();
+        ByteBuffer encrypted = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, plainBytes + networkOutput.capacity()));
+
+        try {
+            do {
+                networkOutput.clear();
+                SSLEngineResult result = engine.wrap(plaintext, networkOutput);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                    throw new SSLException("TLS session of the client is closed");
+                if (plainBytes > 0 && result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+                    throw new SSLException("Client started a new handshake, renegotiation is not supported");
+
+                networkOutput.flip();
+                if (encrypted.remaining() < networkOutput.remaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(encrypted.capacity() + 2 * networkOutput.capacity());
+                    encrypted.flip();
+                    encrypted = larger.put(encrypted);
+                }
+                encrypted.put(networkOutput);
+            } while (hasRemaining(plaintext));
+        } finally {
+            networkBuffers.release(networkOutput);
+        }
+
+        encrypted.flip();
+        return encrypted;
+    }
+
+    private void runningDelegatedTasks() {
+        tasksRunning = true;
+        SelectionKey selectionKey = session.getSelectionKey();
+        selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+
+        delegatedTasks.execute(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null)
+                task.run();
+
+            sessionsWithFinishedTasks.add(session);
+            wakingEventLoop.run();
+        });
+    }
+
+    private void establishing() {
+        established = true;
+        ServerMetrics.counter(HANDSHAKES_COMPLETED).increment();
+        if (engine.getSession().getCreationTime() < handshakeStartMillis)
+            ServerMetrics.counter(SESSIONS_RESUMED).increment();
+
+        log.info("TLS handshake finished with {}", engine.getSession().getCipherSuite());
+        whenEstablished.run();
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers)
+            if (buffer.hasRemaining())
+                return true;
+        return false;
+    }
+}
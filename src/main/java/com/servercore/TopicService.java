@@ -0,0 +1,115 @@
+package com.servercore;
+
+import com.domain.MessageType;
+import com.domain.Packet;
+import com.utilities.Adaptor;
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
+import com.utilities.SubscriptionTrie;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Topic publish and subscribe. SUBSCRIBE and UNSUBSCRIBE carry a topic
+ * filter as their message, PUBLISH carries the topic in the first
+ * line of its message and the text to publish after it.
+ * <p>
+ * A published frame is encoded once, with the publisher as source and
+ * destination 0, and the same bytes are written to every subscriber
+ * whose filter matches the topic. Subscriptions of a client end when
+ * it logs out or disconnects.
+ */
+
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class TopicService {
+
+    public static final String FRAMES_PUBLISHED = "topics.published";
+    public static final String PUBLISHED_DELIVERIES = "topics.deliveries";
+
+    private static final SubscriptionTrie subscriptions = new SubscriptionTrie(ServerConfiguration.TOPIC_MATCH_CACHE_SIZE);
+    private static final Map<Integer, Set<String>> filtersOfClient = new ConcurrentHashMap<>();
+    private static final Writer writer = new Writer();
+    private static final Adaptor adaptor = new Adaptor();
+
+    static void subscribing(Packet packet) {
+        String filter = packet.getMessage().trim();
+        if (!SubscriptionTrie.isValidFilter(filter)) {
+            log.error("Client {} sent invalid topic filter {}", packet.getMessageSourceId(), filter);
+            return;
+        }
+
+        filtersOfClient.computeIfAbsent(packet.getMessageSourceId(), key -> ConcurrentHashMap.newKeySet()).add(filter);
+        subscriptions.subscribe(filter, packet.getMessageSourceId());
+    }
+
+    static void unsubscribing(Packet packet) {
+        String filter = packet.getMessage().trim();
+        Set<String> filters = filtersOfClient.get(packet.getMessageSourceId());
+
+        if (filters != null && filters.remove(filter))
+            subscriptions.unsubscribe(filter, packet.getMessageSourceId());
+    }
+
+    /**
+     * Removes every subscription of the client
+     *
+     * @param clientId id of the client
+     */
+
+    static void unsubscribingAll(int clientId) {
+        Set<String> filters = filtersOfClient.remove(clientId);
+        if (filters == null)
+            return;
+
+        for (String filter : filters)
+            subscriptions.unsubscribe(filter, clientId);
+    }
+
+    /**
+     * Writes published frame to all subscribers of its topic
+     *
+     * @param packet publish packet of an authenticated client
+     */
+
+    static void publishing(Packet packet) {
+        String message = packet.getMessage();
+        int endOfTopic = message.indexOf(Constants.TOPIC_SEPARATOR);
+        String topic = endOfTopic < 0 ? message : message.substring(0, endOfTopic);
+
+        if (!SubscriptionTrie.isValidTopic(topic)) {
+            log.error("Client {} published to invalid topic {}", packet.getMessageSourceId(), topic);
+            return;
+        }
+
+        byte[] body = message.getBytes();
+        Packet published = Packet.builder().magicBytes(packet.getMagicBytes()).messageType(MessageType.PUBLISH).
+                messageSourceId(packet.getMessageSourceId()).messageDestinationId(Constants.TOPIC_DESTINATION_ID).
+                messageLength(body.length).payload(body).build();
+        byte[] frame = adaptor.getBytesArrayFromPacket(published);
+
+        ServerMetrics.counter(FRAMES_PUBLISHED).increment();
+        HistoryStore.recordingPublishedFrame(topic, frame);
+        int[] subscribers = subscriptions.match(topic);
+
+        for (int subscriber : subscribers) {
+            SocketChannel channel = ClientInfoHolder.getSocketChannel(subscriber);
+            if (channel == null)
+                continue;
+
+            try {
+                writer.sendingMessageToClient(frame, channel);
+                ServerMetrics.counter(PUBLISHED_DELIVERIES).increment();
+            } catch (IOException exception) {
+                log.error("Error occurred while sending published frame to client {}", subscriber, exception);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.servercore;
+
+import com.utilities.Constants;
+import com.utilities.ServerConfiguration;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records inbound traffic into the file given by chat.capture.file,
+ * so ReplayTool can play it back against a server later. The file is
+ * written through a memory mapped region which is appended to, and
+ * the next region is mapped when the current one is full, so
+ * recording costs a copy into memory and no system call per read.
+ * <p>
+ * File starts with magic, version and capture start time in epoch
+ * milliseconds. Every record after it looks like this:
+ * <p>
+ * Nanos since start | Connection id | Length  | Bytes
+ * 8 Bytes           | 4 Bytes       | 4 Bytes | Length bytes
+ * <p>
+ * Bytes are recorded exactly as they were read from the connection,
+ * before framing, so frames split over several reads and cut-through
+ * frames are captured as well. Length -1 marks a new connection and
+ * length -2 a closed one.
+ */
+
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+class TrafficCapture {
+
+    private static FileChannel fileChannel;
+    private static MappedByteBuffer region;
+    private static long regionStart;
+    private static long startNanos;
+
+    /**
+     * Opens capture file if capture is configured
+     *
+     * @throws IOException if file can not be created
+     */
+
+    static synchronized void start() throws IOException {
+        if (ServerConfiguration.CAPTURE_FILE.isEmpty())
+            return;
+
+        fileChannel = new RandomAccessFile(ServerConfiguration.CAPTURE_FILE, "rw").getChannel();
+        fileChannel.truncate(0);
+        mappingRegion(0, ServerConfiguration.CAPTURE_REGION_BYTES);
+
+        startNanos = System.nanoTime();
+        region.putInt(Constants.CAPTURE_FILE_MAGIC).putInt(Constants.CAPTURE_FILE_VERSION).putLong(System.currentTimeMillis());
+
+        Runtime.getRuntime().addShutdownHook(new Thread(TrafficCapture::finish, "capture-finisher"));
+        log.info("Capturing inbound traffic into {}", ServerConfiguration.CAPTURE_FILE);
+    }
+
+    static boolean isEnabled() {
+        return region != null;
+    }
+
+    static void connectionOpened(ConnectionSession session) {
+        if (isEnabled())
+            appending(session.getConnectionId(), Constants.CAPTURE_CONNECTION_OPENED, null);
+    }
+
+    /**
+     * Records bytes which were read from connection
+     *
+     * @param session of the connection
+     * @param bytes between position and limit are recorded, buffer is not changed
+     */
+
+    static void bytesRead(ConnectionSession session, ByteBuffer bytes) {
+        if (isEnabled() && bytes.hasRemaining())
+            appending(session.getConnectionId(), bytes.remaining(), bytes.duplicate());
+    }
+
+    static void connectionClosed(ConnectionSession session) {
+        if (isEnabled())
+            appending(session.getConnectionId(), Constants.CAPTURE_CONNECTION_CLOSED, null);
+    }
+
+    private static synchronized void appending(int connectionId, int length, ByteBuffer bytes) {
+        if (region == null)
+            return;
+
+        int recordSize = Constants.CAPTURE_RECORD_HEADER_SIZE + Math.max(length, 0);
+
+        try {
+            if (region.remaining() < recordSize)
+                mappingRegion(regionStart + region.position(), Math.max(ServerConfiguration.CAPTURE_REGION_BYTES, recordSize));
+        } catch (IOException exception) {
+            log.error("Capture stopped, next region of capture file can not be mapped ", exception);
+            region = null;
+            return;
+        }
+
+        region.putLong(System.nanoTime() - startNanos).putInt(connectionId).putInt(length);
+        if (bytes != null)
+            region.put(bytes);
+    }
+
+    private static void mappingRegion(long position, int size) throws IOException {
+        if (region != null)
+            region.force();
+
+        region = fileChannel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        regionStart = position;
+    }
+
+    /**
+     * Flushes captured bytes and cuts the unused end of the last
+     * region off the file
+     */
+
+    static synchronized void finish() {
+        if (region == null)
+            return;
+
+        try {
+            region.force();
+            fileChannel.truncate(regionStart + region.position());
+            fileChannel.close();
+        } catch (IOException exception) {
+            log.error("Error occurred while finishing capture file ", exception);
+        } finally {
+            region = null;
+        }
+    }
+}
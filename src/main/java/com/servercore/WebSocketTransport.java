@@ -0,0 +1,367 @@
+package com.servercore;
+
+import com.utilities.ServerConfiguration;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * WebSocket state of one browser connection. Connection starts with
+ * the HTTP upgrade request; once it is answered, the client gets its
+ * id like any other client. After that every binary WebSocket message
+ * carries bytes of ordinary frames, so a browser session is routed and
+ * registered exactly like a raw TCP client. Frames do not have to be
+ * aligned with WebSocket messages.
+ * <p>
+ * WebSocket headers are stripped and payload is unmasked in place in
+ * the read buffer, so the buffer holds nothing but frame bytes when
+ * framing starts and no payload is copied. Frames sent to the client
+ * go out as one binary message each; header and frame are handed to
+ * the outbound queue of the session under one hold of the outbound
+ * lock, so messages are never mixed and nothing waits for a slow
+ * browser. Ping is answered with pong, close with close, both through
+ * the same queue.
+ * Text messages are refused, because frames are binary.
+ */
+
+@Slf4j
+class WebSocketTransport {
+
+    public static final String UPGRADES = "websocket.upgrades";
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String END_OF_REQUEST = "\r\n\r\n";
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+    private static final int FINAL_FRAGMENT = 0x80;
+    private static final int MASKED = 0x80;
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+    private static final int MAX_HEADER_SIZE = 14;
+    private static final int CLOSE_UNSUPPORTED_DATA = 1003;
+    private static final int CLOSE_PROTOCOL_ERROR = 1002;
+
+    private final ConnectionSession session;
+    private final Runnable whenUpgraded;
+    private final byte[] header = new byte[MAX_HEADER_SIZE];
+    private final byte[] mask = new byte[4];
+    private ByteBuffer upgradeRequest;
+    private boolean upgraded;
+    private boolean closed;
+    private int headerFilled;
+    private boolean readingHeader = true;
+    private int opcode;
+    private long payloadRemaining;
+    private int maskPhase;
+    private byte[] controlPayload;
+    private int controlFilled;
+
+    WebSocketTransport(ConnectionSession session, Runnable whenUpgraded) {
+        this.session = session;
+        this.whenUpgraded = whenUpgraded;
+    }
+
+    /**
+     * Replaces WebSocket bytes in the buffer with the frame bytes they
+     * carry. Buffer is in read mode; afterwards its remaining bytes are
+     * frame bytes only. Bytes of the upgrade request are consumed
+     *
+     * @param input bytes read from the client
+     * @throws IOException if client breaks the protocol or writing fails
+     */
+
+    void unframing(ByteBuffer input) throws IOException {
+        if (!upgraded && !upgrading(input)) {
+            input.limit(input.position());
+            return;
+        }
+
+        int read = input.position();
+        int write = read;
+        int end = input.limit();
+
+        while (read < end && !closed) {
+            if (readingHeader) {
+                header[headerFilled++] = input.get(read++);
+                if (headerFilled == headerLength())
+                    startingFrame();
+                continue;
+            }
+
+            int length = (int) Math.min(payloadRemaining, end - read);
+            if (isControlFrame()) {
+                for (int i = 0; i < length; i++)
+                    controlPayload[controlFilled++] = unmasking(input.get(read + i));
+            } else {
+                unmaskingInPlace(input, read, write, length);
+                write += length;
+            }
+
+            read += length;
+            payloadRemaining -= length;
+            if (payloadRemaining == 0)
+                finishingFrame();
+        }
+
+        input.limit(write);
+    }
+
+    /**
+     * Sends frame to the client as one binary message
+     *
+     * @param frame bytes of the frame
+     * @param whenWritten runs once the whole message was written, may be null
+     * @return number of bytes written right away, -1 if frame was dropped
+     * @throws IOException if writing fails
+     */
+
+    int sending(ByteBuffer frame, Runnable whenWritten) throws IOException {
+        return sendingRaw(whenWritten, messageHeader(OPCODE_BINARY, frame.remaining()), frame);
+    }
+
+    /**
+     * Client sent close, connection is closed once bytes before it are
+     * framed
+     *
+     * @return true if client closed the WebSocket
+     */
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    private boolean upgrading(ByteBuffer input) throws IOException {
+        if (upgradeRequest == null)
+            upgradeRequest = ByteBuffer.allocate(ServerConfiguration.WEBSOCKET_MAX_HANDSHAKE_BYTES);
+
+        while (input.hasRemaining()) {
+            if (!upgradeRequest.hasRemaining())
+                throw new IOException("WebSocket upgrade request is bigger than " + upgradeRequest.capacity() + " bytes");
+
+            upgradeRequest.put(input.get());
+            if (endsWithEndOfRequest()) {
+                answeringUpgrade(new String(upgradeRequest.array(), 0, upgradeRequest.position(), StandardCharsets.US_ASCII));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean endsWithEndOfRequest() {
+        int position = upgradeRequest.position();
+        if (position < END_OF_REQUEST.length())
+            return false;
+
+        for (int i = 0; i < END_OF_REQUEST.length(); i++)
+            if (upgradeRequest.get(position - END_OF_REQUEST.length() + i) != END_OF_REQUEST.charAt(i))
+                return false;
+        return true;
+    }
+
+    private void answeringUpgrade(String request) throws IOException {
+        String[] lines = request.split("\r\n");
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0)
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+        }
+
+        String key = headers.get("sec-websocket-key");
+        if (!lines[0].startsWith("GET ") || key == null ||
+                !headers.getOrDefault("upgrade", "").toLowerCase().contains("websocket")) {
+            sendingRaw(null, ascii("HTTP/1.1 400 Bad Request\r\nSec-WebSocket-Version: 13\r\nConnection: close\r\n\r\n"));
+            throw new IOException("Client sent a request which is not a WebSocket upgrade");
+        }
+
+        StringBuilder response = new StringBuilder("HTTP/1.1 101 Switching Protocols\r\n")
+                .append("Upgrade: websocket\r\nConnection: Upgrade\r\n")
+                .append("Sec-WebSocket-Accept: ").append(acceptValue(key)).append("\r\n");
+
+        String protocols = headers.get("sec-websocket-protocol");
+        if (protocols != null)
+            response.append("Sec-WebSocket-Protocol: ").append(protocols.split(",")[0].trim()).append("\r\n");
+
+        sendingRaw(null, ascii(response.append("\r\n").toString()));
+
+        upgradeRequest = null;
+        upgraded = true;
+        ServerMetrics.counter(UPGRADES).increment();
+        log.info("WebSocket upgrade done, sending id to the client");
+        whenUpgraded.run();
+    }
+
+    private static String acceptValue(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException("SHA-1 is required by every Java platform", exception);
+        }
+    }
+
+    private int headerLength() {
+        if (headerFilled < 2)
+            return 2;
+
+        int payloadLength = header[1] & 0x7F;
+        int extendedLength = payloadLength == 126 ? 2 : payloadLength == 127 ? 8 : 0;
+        return 2 + extendedLength + 4;
+    }
+
+    private void startingFrame() throws IOException {
+        opcode = header[0] & 0x0F;
+        boolean finalFragment = (header[0] & FINAL_FRAGMENT) != 0;
+
+        if ((header[0] & 0x70) != 0 || (header[1] & MASKED) == 0)
+            closingWith(CLOSE_PROTOCOL_ERROR, "Client sent unmasked frame or frame with extension bits");
+
+        int payloadLength = header[1] & 0x7F;
+        int maskOffset = 2;
+        if (payloadLength == 126) {
+            payloadRemaining = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+            maskOffset = 4;
+        } else if (payloadLength == 127) {
+            payloadRemaining = ByteBuffer.wrap(header, 2, 8).getLong();
+            maskOffset = 10;
+        } else {
+            payloadRemaining = payloadLength;
+        }
+
+        if (payloadRemaining < 0)
+            closingWith(CLOSE_PROTOCOL_ERROR, "Client sent frame with negative length");
+
+        System.arraycopy(header, maskOffset, mask, 0, mask.length);
+        maskPhase = 0;
+        headerFilled = 0;
+        readingHeader = false;
+
+        if (opcode == OPCODE_TEXT)
+            closingWith(CLOSE_UNSUPPORTED_DATA, "Client sent text message, only binary messages carry frames");
+
+        if (isControlFrame()) {
+            if (!finalFragment || payloadRemaining > MAX_CONTROL_PAYLOAD)
+                closingWith(CLOSE_PROTOCOL_ERROR, "Client sent fragmented or oversized control frame");
+            controlPayload = new byte[(int) payloadRemaining];
+            controlFilled = 0;
+        } else if (opcode != OPCODE_BINARY && opcode != OPCODE_CONTINUATION) {
+            closingWith(CLOSE_PROTOCOL_ERROR, "Client sent frame with unknown opcode " + opcode);
+        }
+
+        if (payloadRemaining == 0)
+            finishingFrame();
+    }
+
+    private void finishingFrame() throws IOException {
+        readingHeader = true;
+
+        if (opcode == OPCODE_PING) {
+            writingControlFrame(OPCODE_PONG, controlPayload);
+        } else if (opcode == OPCODE_CLOSE) {
+            log.info("Client closed WebSocket");
+            writingControlFrame(OPCODE_CLOSE, controlPayload.length >= 2 ? new byte[]{controlPayload[0], controlPayload[1]} : new byte[0]);
+            closed = true;
+        }
+        controlPayload = null;
+    }
+
+    private boolean isControlFrame() {
+        return opcode >= OPCODE_CLOSE;
+    }
+
+    /**
+     * Unmasks payload and moves it over the WebSocket headers before it.
+     * Write position never passes read position, so bytes are read
+     * before they are overwritten. Eight bytes are done at a time
+     * because mask repeats every four bytes
+     */
+
+    private void unmaskingInPlace(ByteBuffer buffer, int read, int write, int length) {
+        int i = 0;
+        if (length >= Long.BYTES) {
+            long wideMask = 0;
+            for (int k = 0; k < Long.BYTES; k++)
+                wideMask = (wideMask << 8) | (mask[(maskPhase + k) & 3] & 0xFF);
+
+            for (; i + Long.BYTES <= length; i += Long.BYTES)
+                buffer.putLong(write + i, buffer.getLong(read + i) ^ wideMask);
+        }
+
+        for (; i < length; i++)
+            buffer.put(write + i, unmasking(buffer.get(read + i)));
+    }
+
+    private byte unmasking(byte masked) {
+        byte unmasked = (byte) (masked ^ mask[maskPhase]);
+        maskPhase = (maskPhase + 1) & 3;
+        return unmasked;
+    }
+
+    private void closingWith(int statusCode, String reason) throws IOException {
+        writingControlFrame(OPCODE_CLOSE, new byte[]{(byte) (statusCode >> 8), (byte) statusCode});
+        throw new IOException(reason);
+    }
+
+    private void writingControlFrame(int controlOpcode, byte[] payload) throws IOException {
+        sendingRaw(null, messageHeader(controlOpcode, payload.length), ByteBuffer.wrap(payload));
+    }
+
+    private static ByteBuffer messageHeader(int messageOpcode, int length) {
+        ByteBuffer messageHeader = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        messageHeader.put((byte) (FINAL_FRAGMENT | messageOpcode));
+
+        if (length < 126)
+            messageHeader.put((byte) length);
+        else if (length <= 0xFFFF)
+            messageHeader.put((byte) 126).putShort((short) length);
+        else
+            messageHeader.put((byte) 127).putLong(length);
+
+        messageHeader.flip();
+        return messageHeader;
+    }
+
+    /**
+     * Sends bytes through TLS if the connection uses it, otherwise
+     * through the outbound queue. Bytes of one message are queued under
+     * one hold of the outbound lock, so a message is never written in
+     * part before bytes of another one
+     */
+
+    private int sendingRaw(Runnable whenWritten, ByteBuffer... buffers) throws IOException {
+        if (session.getTls() != null)
+            return session.getTls().sending(whenWritten, buffers);
+
+        long messageBytes = 0;
+        for (ByteBuffer buffer : buffers)
+            messageBytes += buffer.remaining();
+
+        OutboundQueue outboundQueue = session.getOutboundQueue();
+        session.getOutboundLock().lock();
+        try {
+            if (outboundQueue.isDropping(messageBytes))
+                return -1;
+
+            int bytesWritten = 0;
+            for (int i = 0; i < buffers.length; i++)
+                bytesWritten += outboundQueue.writing(buffers[i], i == buffers.length - 1 ? whenWritten : null);
+            return bytesWritten;
+        } finally {
+            session.getOutboundLock().unlock();
+        }
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+}
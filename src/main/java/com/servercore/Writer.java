@@ -1,8 +1,8 @@
 package com.servercore;
 
+import com.cluster.ClusterNode;
 import com.domain.MessageType;
 import com.domain.Packet;
-import com.google.common.primitives.Bytes;
 import com.utilities.Adaptor;
 import lombok.AllArgsConstructor;
 import lombok.NoArgsConstructor;
@@ -13,7 +13,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
+import java.util.function.IntPredicate;
 
 /**
  * This class is used to send message to client.
@@ -28,7 +28,15 @@ import java.util.concurrent.BlockingQueue;
 @AllArgsConstructor
 @NoArgsConstructor
 public class Writer extends Thread {
-    private BlockingQueue<byte[]> messageQueue;
+
+    /**
+     * Put in the control lane to stop the thread after the frame it
+     * handles at the moment
+     */
+
+    static final QueuedFrame STOPPING = new QueuedFrame(new byte[0], 0, 0);
+
+    private PriorityLanes<QueuedFrame> messageQueue;
     private ServerSocketChannel serverSocketChannel;
     private final Pipeline pipeline = new Pipeline();
     private final Adaptor adaptor = new Adaptor();
@@ -51,12 +59,31 @@ public class Writer extends Thread {
 
             try {
 
+                QueuedFrame takenFrame = messageQueue.take();
+                if (takenFrame == STOPPING) {
+                    log.error("Message queue is drained, stopping Writer thread");
+                    return;
+                }
+
+                QueuedFrame queuedFrame = EphemeralUpdates.takingLatest(takenFrame);
                 log.error("Took byte array from message queue");
+
+                long takenNanos = System.nanoTime();
+                AdmissionControl.measuringWait(queuedFrame, takenNanos);
+
+                if (Deadlines.isExpired(queuedFrame, takenNanos)) {
+                    log.error("Frame is past its deadline, dropping it without decoding");
+                    Deadlines.expiring(queuedFrame);
+                    continue;
+                }
+
                 log.error("Converting byte[] into packet object");
-                List<Packet> packets = getAllThePacketsFromByteArray(messageQueue.take());
+                List<Packet> packets = getAllThePacketsFromByteArray(queuedFrame.getFrame());
 
 
                 for (Packet packet:packets){
+                    packet.setIngressNanos(queuedFrame.getIngressNanos());
+                    packet.setSequenceNumber(queuedFrame.getSequenceNumber());
                     log.error("Calling takePacketAndPerformAction method");
                     takePacketAndPerformAction(packet);
                     log.error("Message has been processed");
@@ -65,7 +92,10 @@ public class Writer extends Thread {
 
 
 
-            } catch (InterruptedException | IOException e) { //made changes here
+            } catch (InterruptedException e) {
+                log.error("Closing Writer thread");
+                return;
+            } catch (IOException e) { //made changes here
                 log.error("Closing Writer thread");
                 e.printStackTrace();
             }
@@ -80,22 +110,7 @@ public class Writer extends Thread {
         Adaptor.lock.lock();
         try{
             log.error("Calling getAllThePacketsFromByteArray method");
-            ArrayList<Packet> packets = new ArrayList<>();
-
-            pipeline.getMessageByteQueue().addAll(Bytes.asList(messages));
-            pipeline.startPipeline();
-
-            while (pipeline.isContinuePipeLineProcess()){
-
-                int stage = pipeline.getPipelineSteps().get(pipeline.getCurrentStage()).getAsInt();
-                log.error("Next stage of pipeline to be executed "+stage);
-
-                if (pipeline.isPacketIsReady())
-                    packets.add(pipeline.getPacket());
-
-            }
-
-            return packets;
+            return pipeline.gettingPackets(messages);
 
         }finally {
             Adaptor.lock.unlock();
@@ -123,16 +138,46 @@ public class Writer extends Thread {
     private void takePacketAndPerformAction(Packet packet) throws IOException {
         log.error("Execution of takePacketAndPerformAction method started");
 
-        if (packet.getMessageType().equals(MessageType.DATA)) {
+        if (packet.getMessageType().isDataMessage()) {
             log.error("Message type is Data. Call its course of action to send message to " +
                     "desired client");
             performForwardMessageToTheClientActivity(packet);
+        } else if (packet.getMessageType().equals(MessageType.EPHEMERAL) && ClientInfoHolder.authenticateClient(packet)) {
+            log.error("Message type is ephemeral. Sending newest value of its key");
+            performForwardEphemeralActivity(packet);
         } else if (packet.getMessageType().equals(MessageType.LOGIN)) {
             log.error("Message type is login. Calling its course of action");
             performLoginActivity(packet);
+        } else if (packet.getMessageType().equals(MessageType.RESUME)) {
+            log.error("Message type is resume. Moving connection to its session from before restart");
+            SessionSnapshots.resuming(packet);
         } else if (packet.getMessageType().equals(MessageType.LOGOUT)) {
             log.error("Message type is logout. Calling its course of action");
             performLogoutActivity(packet);
+        } else if (packet.getMessageType().isFileMessage() && ClientInfoHolder.authenticateClient(packet)) {
+            log.error("Message type is {}. Passing it to file transfers", packet.getMessageType());
+            FileTransfers.answering(packet);
+        } else if (packet.getMessageType().equals(MessageType.PUBLISH) && ClientInfoHolder.authenticateClient(packet)) {
+            log.error("Message type is publish. Sending message to subscribers of its topic");
+            TopicService.publishing(packet);
+        } else if (packet.getMessageType().equals(MessageType.SUBSCRIBE) && ClientInfoHolder.authenticateClient(packet)) {
+            log.error("Message type is subscribe. Adding subscription of client");
+            TopicService.subscribing(packet);
+        } else if (packet.getMessageType().equals(MessageType.UNSUBSCRIBE) && ClientInfoHolder.authenticateClient(packet)) {
+            log.error("Message type is unsubscribe. Removing subscription of client");
+            TopicService.unsubscribing(packet);
+        } else if (packet.getMessageType().equals(MessageType.HISTORY) && ClientInfoHolder.authenticateClient(packet)) {
+            log.error("Message type is history. Sending page of conversation history");
+            HistoryStore.answeringRequest(packet);
+        } else if (packet.getMessageType().equals(MessageType.PRESENCE_QUERY) && ClientInfoHolder.authenticateClient(packet)) {
+            log.error("Message type is presence query. Sending snapshot of online clients");
+            PresenceService.answeringQuery(packet);
+        } else if (packet.getMessageType().equals(MessageType.PRESENCE_WATCH) && ClientInfoHolder.authenticateClient(packet)) {
+            log.error("Message type is presence watch. Subscribing client to presence changes");
+            PresenceService.watching(packet);
+        } else if (packet.getMessageType().equals(MessageType.PRESENCE_UNWATCH) && ClientInfoHolder.authenticateClient(packet)) {
+            log.error("Message type is presence unwatch. Ending presence subscription");
+            PresenceService.unwatching(packet.getMessageSourceId());
         }
 
 
@@ -142,24 +187,42 @@ public class Writer extends Thread {
 
     /**
      * This method is used to send message to designated client
-     * mentioned in destinationId
+     * mentioned in destinationId. Packet which expired while earlier
+     * packets were written is dropped before it is encoded. It is kept
+     * in history only once it was written, queued or forwarded
      *
-     * @param packet information obtained from user no chances made into that packet
+     * @param received information obtained from user no chances made into that packet
      * @throws IOException occurred while writing to the client
      */
 
-    private void performForwardMessageToTheClientActivity(Packet packet) throws IOException {
+    private void performForwardMessageToTheClientActivity(Packet received) throws IOException {
         log.error("Execution of forwardMessageToTheDestination started");
 
-        if (!ClientInfoHolder.authenticateClient(packet)) return;
+        if (!ClientInfoHolder.authenticateClient(received)) return;
         log.error("Client Authenticated");
 
+        if (Deadlines.isExpired(received, System.nanoTime())) {
+            log.error("Packet is past its deadline, dropping it before encoding");
+            Deadlines.expiring(received);
+            return;
+        }
+
+        Packet packet = adaptor.getPacketWithoutDeadline(received);
+
         log.error("Getting socket channel using destination id");
         SocketChannel socketChannel = ClientInfoHolder.getSocketChannel(packet.getMessageDestinationId());
 
         if (socketChannel != null) {
-            log.error("Socket channel is present");
-            forwardMessage(packet, socketChannel);
+            log.error("Socket channel is present, receipt is issued once whole frame is written");
+            int bytesSent = forwardMessage(packet, socketChannel, () -> DeliveryReceipts.delivered(packet.getMessageSourceId(),
+                    packet.getSequenceNumber(), packet.getMessageDestinationId(), packet.getIngressNanos(), System.nanoTime()));
+            if (bytesSent >= 0)
+                HistoryStore.recordingDataFrame(packet);
+
+        } else if (ClusterNode.getInstance().forwardToRemoteClient(packet.getMessageDestinationId(),
+                adaptor.getBytesArrayFromPacket(packet), Deadlines.expiresAtNanos(received))) {
+            log.error("Destination is connected to another node, frame forwarded over node link");
+            HistoryStore.recordingDataFrame(packet);
 
         } else {
             log.error("Calling sendErrorMessage method");
@@ -168,25 +231,79 @@ public class Writer extends Thread {
 
     }
 
+    /**
+     * This method sends ephemeral update to its destination. Updates
+     * are not kept in history, have no receipts and are dropped when
+     * destination is not connected anywhere
+     *
+     * @param packet newest update of its key
+     * @throws IOException occurred while writing to the client
+     */
+
+    private void performForwardEphemeralActivity(Packet packet) throws IOException {
+        SocketChannel socketChannel = ClientInfoHolder.getSocketChannel(packet.getMessageDestinationId());
+
+        if (socketChannel != null)
+            forwardMessage(packet, socketChannel, null);
+        else if (!ClusterNode.getInstance().forwardToRemoteClient(packet.getMessageDestinationId(),
+                adaptor.getBytesArrayFromPacket(packet), 0))
+            log.error("Destination {} of ephemeral update is not connected, dropping it", packet.getMessageDestinationId());
+    }
+
+    /**
+     * This method delivers frame which another node of the cluster
+     * forwarded to us. The sender was authenticated on its own node,
+     * packets of senders which are not accepted are dropped
+     *
+     * @param frame complete frame in bytes
+     * @param acceptedSender tells if packet of a source id may be delivered
+     * @throws IOException occurred while writing to the client
+     */
+
+    public void deliverFrameFromPeerNode(byte[] frame, IntPredicate acceptedSender) throws IOException {
+        for (Packet packet : getAllThePacketsFromByteArray(frame)) {
+            if (!acceptedSender.test(packet.getMessageSourceId())) {
+                log.error("Sender {} of forwarded frame is not accepted, dropping it", packet.getMessageSourceId());
+                continue;
+            }
+
+            SocketChannel socketChannel = ClientInfoHolder.getSocketChannel(packet.getMessageDestinationId());
+
+            if (socketChannel == null) {
+                log.error("Client {} of forwarded frame is not connected anymore", packet.getMessageDestinationId());
+                continue;
+            }
+
+            forwardMessage(packet, socketChannel, null);
+        }
+    }
+
     /**
      * This method is used to forward message to the client
      *
      * @param packet        received from client for other client
      * @param socketChannel of destination client
+     * @param whenWritten   runs once whole frame is written, may be null
+     * @return number of bytes written right away, -1 if frame was dropped
      * @throws IOException handled above
      */
 
-    private void forwardMessage(Packet packet, SocketChannel socketChannel) throws IOException {
+    private int forwardMessage(Packet packet, SocketChannel socketChannel, Runnable whenWritten) throws IOException {
         log.error("Execution of forwardMessage started");
 
+        log.error("Adapting payload encoding for the recipient");
+        Packet packetForRecipient = adaptor.getPacketEncodedForRecipient(packet,
+                ClientInfoHolder.isCompressionAccepted(packet.getMessageDestinationId()));
+
         log.error("Convert packet into bytes");
-        byte[] packetInBytes = adaptor.getBytesArrayFromPacket(packet);
+        byte[] packetInBytes = adaptor.getBytesArrayFromPacket(packetForRecipient);
 
         log.error("Calling sendingMessageToClient method");
-        int bytesSent = sendingMessageToClient(packetInBytes, socketChannel);
+        int bytesSent = sendingMessageToClient(packetInBytes, socketChannel, whenWritten);
         log.error("Number of bytes forwarded " + bytesSent);
 
         log.error("Execution of forwardMessage ended");
+        return bytesSent;
     }
 
     /**
@@ -235,6 +352,13 @@ public class Writer extends Thread {
             return;
         }
 
+        PresenceService.markOnline(sourceId);
+
+        if (adaptor.isCompressionRequested(packet)) {
+            log.error("Client negotiated payload compression");
+            ClientInfoHolder.clientsAcceptingCompression.add(sourceId);
+        }
+
         log.error("Calling sendingMessageToClient on the input which is byte [] and socket channel ");
         int bytesSentToClient = sendingMessageToClient(adaptor.getBytesArrayFromPacket(loggedInPacket),socketChannel);
         log.error("Number of bytes sent to client are " + bytesSentToClient);
@@ -260,6 +384,9 @@ public class Writer extends Thread {
 
         log.error("logging out client");
         ClientInfoHolder.informationOfMagicNumber.remove(packet.getMessageSourceId());
+        ClientInfoHolder.clientsAcceptingCompression.remove(packet.getMessageSourceId());
+        PresenceService.markOffline(packet.getMessageSourceId());
+        TopicService.unsubscribingAll(packet.getMessageSourceId());
 
         log.error("Get latest packet");
         Packet latestPacket = adaptor.getLoggedOutPacket(packet);
@@ -272,35 +399,55 @@ public class Writer extends Thread {
     }
 
     /**
-     * This message is used to send message to the client
+     * This message is used to send message to the client. Bytes which
+     * the socket does not take right away wait in the outbound queue
+     * of the client, so a slow client never blocks the caller
      *
      * @param packetInBytes packet to send
      * @param channel       to whom to send to
+     * @return number of bytes written right away, -1 if frame was dropped
      * @throws IOException exception
-     * @apiNote partial write wont be a problem here **
      */
 
     public int sendingMessageToClient(byte[] packetInBytes, SocketChannel channel) throws IOException {
+        return sendingMessageToClient(packetInBytes, channel, null);
+    }
+
+    /**
+     * Sends message to the client and runs whenWritten once its last
+     * byte was written, which may be later on the event loop. It does
+     * not run if frame is dropped
+     *
+     * @param packetInBytes packet to send
+     * @param channel       to whom to send to
+     * @param whenWritten   runs once whole frame is written, may be null
+     * @return number of bytes written right away, -1 if frame was dropped
+     * @throws IOException exception
+     */
+
+    public int sendingMessageToClient(byte[] packetInBytes, SocketChannel channel, Runnable whenWritten) throws IOException {
         log.error("Execution of sendingMessageToClient started");
-        log.error("Creating buffer with allocation of private backend space with size {}", packetInBytes.length);
-        ByteBuffer messageToServerBuffer = ByteBuffer.allocate(packetInBytes.length); //improvement
-        log.error("Putting data in bulk into buffer.");
-        messageToServerBuffer.put(packetInBytes);
+        log.error("Wrapping bytes into buffer of size {}, same bytes may be sent to many clients", packetInBytes.length);
+        ByteBuffer messageToServerBuffer = ByteBuffer.wrap(packetInBytes);
 
-        log.error("Flipping the buffer because internally write uses buffer pos index");
-        messageToServerBuffer.flip();
+        ConnectionSession session = ConnectionSession.of(channel);
+        if (session == null) {
+            log.error("Client is not connected anymore, dropping frame");
+            return -1;
+        }
 
-        int bytesWritten = channel.write(messageToServerBuffer);
+        int bytesWritten;
+        if (session.getWebSocket() != null) {
+            bytesWritten = session.getWebSocket().sending(messageToServerBuffer, whenWritten);
+        } else if (session.getTls() != null) {
+            bytesWritten = session.getTls().sending(whenWritten, messageToServerBuffer);
+        } else {
+            bytesWritten = session.getOutboundQueue().sending(messageToServerBuffer, whenWritten);
+        }
 
         log.error("This amount of bytes are sent to client " + bytesWritten);
-        log.error("Message sent to the client");
-        log.error("Clearing the buffer");
-
-        messageToServerBuffer.clear();
         log.error("Execution of sendMessageToServer ended");
         return bytesWritten;
 
     }
 }
-
-
@@ -0,0 +1,329 @@
+package com.tools;
+
+import com.domain.MessageType;
+import com.utilities.Constants;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plays a capture file, recorded with chat.capture.file, back against
+ * a server. Every captured connection gets its own connection and
+ * thread, so frames of one connection are sent in captured order and
+ * connections run side by side like they did in production.
+ * <p>
+ * Bytes of each connection are cut into frames again. A frame is sent
+ * at the time the read which completed it was captured, divided by
+ * the speed factor, or immediately when speed is max. At max speed
+ * connections stay open until every connection sent its frames and
+ * one second longer, so receivers are still there when server
+ * delivers frames to them. Ids and magic
+ * numbers of the new run differ from captured ones, so source id,
+ * destination id and magic of every frame are rewritten using ids
+ * and magic numbers which the server hands out during replay.
+ * <p>
+ * Usage: ReplayTool captureFile host port [speed|max]
+ */
+
+@Slf4j
+public class ReplayTool {
+
+    private static final long RESPONSE_TIMEOUT_SECONDS = 5;
+    private static final long LINGER_MILLIS = 1000;
+
+    private final Map<Integer, CapturedConnection> connections = new LinkedHashMap<>();
+    private final Map<Integer, CapturedConnection> connectionsByOriginalId = new ConcurrentHashMap<>();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private CountDownLatch connectionsDoneSending;
+    private final String host;
+    private final int port;
+    private final double speed;
+
+    ReplayTool(String host, int port, double speed) {
+        this.host = host;
+        this.port = port;
+        this.speed = speed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: ReplayTool captureFile host port [speed|max]");
+            return;
+        }
+
+        double speed = args.length < 4 ? 1 : "max".equalsIgnoreCase(args[3]) ? 0 : Double.parseDouble(args[3]);
+        ReplayTool replayTool = new ReplayTool(args[1], Integer.parseInt(args[2]), speed);
+
+        replayTool.loadingCapture(args[0]);
+        replayTool.replaying();
+    }
+
+    /**
+     * Reads capture file and cuts bytes of every connection into frames
+     *
+     * @param captureFile path of the file
+     * @throws IOException if file is not a capture file
+     */
+
+    void loadingCapture(String captureFile) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(captureFile)))) {
+            if (input.readInt() != Constants.CAPTURE_FILE_MAGIC || input.readInt() != Constants.CAPTURE_FILE_VERSION)
+                throw new IOException(captureFile + " is not a capture file of this version");
+            input.readLong();
+
+            while (true) {
+                long nanos;
+                try {
+                    nanos = input.readLong();
+                } catch (EOFException endOfCapture) {
+                    break;
+                }
+                int connectionId = input.readInt();
+                int length = input.readInt();
+
+                if (length == Constants.CAPTURE_CONNECTION_OPENED) {
+                    connections.put(connectionId, new CapturedConnection(nanos));
+                    continue;
+                }
+
+                CapturedConnection connection = connections.get(connectionId);
+                if (connection == null) {
+                    connection = new CapturedConnection(nanos);
+                    connections.put(connectionId, connection);
+                }
+
+                if (length == Constants.CAPTURE_CONNECTION_CLOSED) {
+                    connection.closedNanos = nanos;
+                    continue;
+                }
+
+                byte[] bytes = new byte[length];
+                input.readFully(bytes);
+                connection.cuttingFrames(bytes, nanos);
+            }
+        }
+
+        for (CapturedConnection connection : connections.values())
+            if (connection.originalId != 0)
+                connectionsByOriginalId.put(connection.originalId, connection);
+
+        System.out.println("Loaded " + connections.size() + " connections from " + captureFile);
+    }
+
+    /**
+     * Replays all connections and waits until they are finished
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+
+    void replaying() throws InterruptedException {
+        ExecutorService threads = Executors.newCachedThreadPool();
+        connectionsDoneSending = new CountDownLatch(connections.size());
+        long startNanos = System.nanoTime();
+
+        for (CapturedConnection connection : connections.values())
+            threads.submit(() -> replayingConnection(connection, startNanos));
+
+        threads.shutdown();
+        threads.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        System.out.println("Replayed " + framesSent.get() + " frames, " + bytesSent.get() + " bytes in " + elapsedMillis + " ms");
+    }
+
+    private void replayingConnection(CapturedConnection connection, long startNanos) {
+        try {
+            waitingUntil(startNanos, connection.openedNanos);
+
+            try (Socket socket = new Socket(host, port)) {
+                socket.setTcpNoDelay(true);
+                Thread responseReader = new Thread(() -> readingResponses(connection, socket), "replay-reader");
+                responseReader.setDaemon(true);
+                responseReader.start();
+
+                if (!connection.idAssigned.await(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    log.error("Server did not assign id to replayed connection");
+                    connectionsDoneSending.countDown();
+                    return;
+                }
+
+                OutputStream output = socket.getOutputStream();
+                for (CapturedFrame frame : connection.frames) {
+                    waitingUntil(startNanos, frame.nanos);
+                    output.write(rewritingFrame(connection, frame.bytes));
+                    framesSent.incrementAndGet();
+                    bytesSent.addAndGet(frame.bytes.length);
+
+                    if (frame.isLogin() && !connection.loginResponses.tryAcquire(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                        log.error("Server did not answer login of replayed connection");
+                }
+
+                connectionsDoneSending.countDown();
+                if (speed <= 0) {
+                    connectionsDoneSending.await();
+                    Thread.sleep(LINGER_MILLIS);
+                }
+                else if (connection.closedNanos >= 0)
+                    waitingUntil(startNanos, connection.closedNanos);
+            }
+        } catch (IOException exception) {
+            log.error("Replayed connection failed ", exception);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void waitingUntil(long startNanos, long capturedNanos) throws InterruptedException {
+        if (speed <= 0)
+            return;
+
+        long waitNanos = startNanos + (long) (capturedNanos / speed) - System.nanoTime();
+        if (waitNanos > 0)
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    /**
+     * Source, destination and magic of the frame are replaced with
+     * values of this run. Destination waits for its connection to get
+     * an id, because at max speed receiver may connect after sender
+     *
+     * @param connection which sends the frame
+     * @param captured frame as it was captured
+     * @return frame to send
+     */
+
+    private byte[] rewritingFrame(CapturedConnection connection, byte[] captured) throws InterruptedException {
+        byte[] frame = captured.clone();
+        ByteBuffer header = ByteBuffer.wrap(frame);
+
+        if (!CapturedFrame.isLogin(frame))
+            header.putInt(Constants.START_OF_MAGIC_BYTES_INCLUSIVE, connection.magicNumber);
+        header.putInt(Constants.START_OF_SOURCE_ID_INCLUSIVE, connection.replayedId);
+
+        CapturedConnection destination = connectionsByOriginalId.get(header.getInt(Constants.START_OF_DEST_ID_INCLUSIVE));
+        if (destination != null && destination.idAssigned.await(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            header.putInt(Constants.START_OF_DEST_ID_INCLUSIVE, destination.replayedId);
+
+        return frame;
+    }
+
+    /**
+     * Reads everything server sends to the replayed connection. Id and
+     * magic number are kept, every other frame is discarded
+     */
+
+    private void readingResponses(CapturedConnection connection, Socket socket) {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            byte[] header = new byte[Constants.START_OF_MESSAGE_INCLUSIVE];
+
+            while (true) {
+                input.readFully(header);
+                ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+                String messageCode = new String(header, Constants.START_OF_MESSAGE_TYPE_INCLUSIVE, Constants.BYTE_ARRAY_SIZE_FOR_MESSAGE_TYPE);
+                int destinationId = headerBuffer.getInt(Constants.START_OF_DEST_ID_INCLUSIVE);
+                skippingFully(input, headerBuffer.getInt(Constants.START_OF_MESSAGE_LENGTH_INCLUSIVE));
+
+                if (MessageType.GENERATED_ID.getMessageCode().equals(messageCode)) {
+                    connection.replayedId = destinationId;
+                    connection.idAssigned.countDown();
+                } else if (MessageType.LOGIN.getMessageCode().equals(messageCode)) {
+                    connection.magicNumber = headerBuffer.getInt(Constants.START_OF_MAGIC_BYTES_INCLUSIVE);
+                    connection.loginResponses.release();
+                }
+            }
+        } catch (IOException connectionClosed) {
+            log.info("Replayed connection closed");
+        }
+    }
+
+    private static void skippingFully(InputStream input, long length) throws IOException {
+        while (length > 0) {
+            long skipped = input.skip(length);
+            if (skipped <= 0) {
+                if (input.read() < 0) throw new EOFException();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    /**
+     * Frames of one captured connection and its state during replay
+     */
+
+    private static class CapturedConnection {
+        private final long openedNanos;
+        private final List<CapturedFrame> frames = new ArrayList<>();
+        private final CountDownLatch idAssigned = new CountDownLatch(1);
+        private final Semaphore loginResponses = new Semaphore(0);
+        private long closedNanos = -1;
+        private int originalId;
+        private volatile int replayedId;
+        private volatile int magicNumber;
+        private byte[] partialFrame = new byte[0];
+
+        CapturedConnection(long openedNanos) {
+            this.openedNanos = openedNanos;
+        }
+
+        void cuttingFrames(byte[] bytes, long nanos) {
+            ByteBuffer input = ByteBuffer.allocate(partialFrame.length + bytes.length);
+            input.put(partialFrame).put(bytes).flip();
+
+            while (input.remaining() >= Constants.START_OF_MESSAGE_INCLUSIVE) {
+                int frameLength = Constants.START_OF_MESSAGE_INCLUSIVE +
+                        input.getInt(input.position() + Constants.START_OF_MESSAGE_LENGTH_INCLUSIVE);
+                if (input.remaining() < frameLength)
+                    break;
+
+                byte[] frame = new byte[frameLength];
+                input.get(frame);
+                frames.add(new CapturedFrame(nanos, frame));
+
+                if (originalId == 0)
+                    originalId = ByteBuffer.wrap(frame).getInt(Constants.START_OF_SOURCE_ID_INCLUSIVE);
+            }
+
+            partialFrame = new byte[input.remaining()];
+            input.get(partialFrame);
+        }
+    }
+
+    private static class CapturedFrame {
+        private final long nanos;
+        private final byte[] bytes;
+
+        CapturedFrame(long nanos, byte[] bytes) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+        boolean isLogin() {
+            return isLogin(bytes);
+        }
+
+        static boolean isLogin(byte[] frame) {
+            return MessageType.LOGIN.getMessageCode().equals(new String(frame, Constants.START_OF_MESSAGE_TYPE_INCLUSIVE, Constants.BYTE_ARRAY_SIZE_FOR_MESSAGE_TYPE));
+        }
+    }
+}
@@ -2,13 +2,11 @@ package com.utilities;
 
 import com.domain.MessageType;
 import com.domain.Packet;
-import com.google.common.primitives.Bytes;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -24,6 +22,7 @@ import java.util.concurrent.locks.ReentrantLock;
 public class Adaptor {
 
     public static ReentrantLock lock = new ReentrantLock();
+    private static final PayloadCodec payloadCodec = PayloadCodecs.getConfiguredCodec();
 
     /**
      * In this method we will make a packet with generated
@@ -67,26 +66,131 @@ public class Adaptor {
         Adaptor.lock.lock();
         try{
             log.info("Execution of convertPacketIntoByteArray method started");
-            List<Byte> byteArrayList = new ArrayList<>();
+            byte[] messageBytes = getMessageBytes(packet);
+            ByteBuffer frame = ByteBuffer.allocate(Constants.START_OF_MESSAGE_INCLUSIVE + messageBytes.length);
 
-            byteArrayList.addAll(Bytes.asList(ByteBuffer.allocate(4).putInt(packet.getMagicBytes()).array()));
-            byteArrayList.addAll(Bytes.asList(packet.getMessageType().getMessageCode().getBytes()));
-            byteArrayList.addAll(Bytes.asList(ByteBuffer.allocate(4).putInt(packet.getMessageSourceId()).array()));
-            byteArrayList.addAll(Bytes.asList(ByteBuffer.allocate(4).putInt(packet.getMessageDestinationId()).array()));
-            byteArrayList.addAll(Bytes.asList(ByteBuffer.allocate(4).putInt(packet.getMessageLength()).array()));
-            byteArrayList.addAll(Bytes.asList(packet.getMessage().getBytes()));
+            frame.putInt(packet.getMagicBytes());
+            frame.put(packet.getMessageType().getMessageCode().getBytes());
+            frame.putInt(packet.getMessageSourceId());
+            frame.putInt(packet.getMessageDestinationId());
+            frame.putInt(packet.getMessageLength());
+            frame.put(messageBytes);
 
             log.info("returning bytes array");
             log.info("Execution of convertMessagePacketIntoTheByteArray method ended");
 
-            return Bytes.toArray(byteArrayList);
+            return frame.array();
         }finally {
             Adaptor.lock.unlock();
         }
 
     }
 
-    
+    /**
+     * Returns the bytes which go into message part of the frame.
+     * Binary payload wins over text message when both are present
+     *
+     * @param packet any packet
+     *
+     * @return message bytes
+     *
+     */
+
+    private byte[] getMessageBytes(Packet packet) {
+        if (packet.getPayload() != null)
+            return packet.getPayload();
+
+        return packet.getMessage().getBytes();
+    }
+
+    /**
+     * This method prepares a data packet for the client it is
+     * forwarded to. A large DATA packet is compressed when the
+     * recipient negotiated compression, a COMPRESSED_DATA packet
+     * is decompressed when the recipient did not. In every other
+     * case packet is returned as it is so compressed payloads are
+     * forwarded without being touched
+     *
+     * @param packet received from client
+     *
+     * @param recipientAcceptsCompression true if recipient advertised our codec at login
+     *
+     * @return packet to forward
+     *
+     * @throws IOException if compressed payload can not be decompressed
+     *
+     */
+
+    public Packet getPacketEncodedForRecipient(Packet packet, boolean recipientAcceptsCompression) throws IOException {
+        if (packet.getMessageType().equals(MessageType.DATA) && recipientAcceptsCompression &&
+                ServerConfiguration.COMPRESSION_ENABLED &&
+                packet.getMessageLength() >= ServerConfiguration.COMPRESSION_THRESHOLD_BYTES) {
+
+            byte[] compressedPayload = payloadCodec.compress(packet.getMessage().getBytes());
+            log.info("Compressed message from {} bytes to {} bytes", packet.getMessageLength(), compressedPayload.length);
+
+            return Packet.builder().magicBytes(packet.getMagicBytes()).messageType(MessageType.COMPRESSED_DATA).
+                    messageSourceId(packet.getMessageSourceId()).messageDestinationId(packet.getMessageDestinationId()).
+                    messageLength(compressedPayload.length).payload(compressedPayload).build();
+        }
+
+        if (packet.getMessageType().equals(MessageType.COMPRESSED_DATA) && !recipientAcceptsCompression) {
+            byte[] decompressedPayload = payloadCodec.decompress(packet.getPayload(), ServerConfiguration.MAX_DECOMPRESSED_MESSAGE_BYTES);
+
+            return Packet.builder().magicBytes(packet.getMagicBytes()).messageType(MessageType.DATA).
+                    messageSourceId(packet.getMessageSourceId()).messageDestinationId(packet.getMessageDestinationId()).
+                    messageLength(decompressedPayload.length).message(new String(decompressedPayload)).build();
+        }
+
+        return packet;
+    }
+
+    /**
+     * This method turns DEADLINE_DATA packet into a DATA packet by
+     * taking deadline and flags off its body, recipients never see
+     * deadlines. Any other packet is returned as it is
+     *
+     * @param packet received from client
+     *
+     * @return packet without deadline
+     *
+     */
+
+    public Packet getPacketWithoutDeadline(Packet packet) {
+        if (!packet.getMessageType().equals(MessageType.DEADLINE_DATA))
+            return packet;
+
+        byte[] body = packet.getPayload();
+        int prefixSize = Math.min(body.length, Constants.DEADLINE_PREFIX_SIZE);
+        String message = new String(body, prefixSize, body.length - prefixSize);
+
+        return Packet.builder().magicBytes(packet.getMagicBytes()).messageType(MessageType.DATA).
+                messageSourceId(packet.getMessageSourceId()).messageDestinationId(packet.getMessageDestinationId()).
+                messageLength(body.length - prefixSize).message(message).
+                ingressNanos(packet.getIngressNanos()).sequenceNumber(packet.getSequenceNumber()).build();
+    }
+
+    /**
+     * Tells if client advertised the configured codec in its
+     * login message. Message is a list of codec names separated by
+     * commas or white space, a name only counts as a whole token
+     *
+     * @param loginPacket received from client
+     *
+     * @return true if client can receive compressed frames
+     *
+     */
+
+    public boolean isCompressionRequested(Packet loginPacket) {
+        if (!ServerConfiguration.COMPRESSION_ENABLED || loginPacket.getMessage() == null)
+            return false;
+
+        for (String codecName : loginPacket.getMessage().split(Constants.CODEC_LIST_DELIMITER))
+            if (codecName.equalsIgnoreCase(payloadCodec.getName()))
+                return true;
+        return false;
+    }
+
     /**
      *
      * This method is used to build Packet with login details
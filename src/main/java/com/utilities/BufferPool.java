@@ -0,0 +1,70 @@
+package com.utilities;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized direct buffers. A buffer is taken for as long
+ * as it holds bytes and given back right after, so connections which
+ * are idle hold no buffer at all. Pool keeps at most maxPooled free
+ * buffers, anything given back above that is left to the collector.
+ * <p>
+ * Buffers can be taken and given back from any thread.
+ */
+
+public class BufferPool {
+
+    private final Queue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final int bufferSize;
+    private final int maxPooled;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool or allocates a new one if
+     * pool is empty
+     *
+     * @return buffer of bufferSize capacity
+     */
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+
+        freeCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives buffer back. Caller must not touch the buffer afterwards
+     *
+     * @param buffer taken from this pool, null is ignored
+     */
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize)
+            return;
+
+        if (freeCount.incrementAndGet() > maxPooled) {
+            freeCount.decrementAndGet();
+            return;
+        }
+        freeBuffers.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int freeBuffers() {
+        return freeCount.get();
+    }
+}
@@ -0,0 +1,358 @@
+package com.utilities;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed set of non-negative ints, built like a roaring bitmap.
+ * Upper 16 bits of a value select a container and the container keeps
+ * the lower 16 bits. A container with few values is a sorted array of
+ * chars, a container with more than 4096 values is a bitmap of 8 KB,
+ * so memory stays close to the smaller of the two.
+ * <p>
+ * When serialized, every container is written in the smallest of
+ * three forms: array, bitmap or runs of consecutive values. Client
+ * ids are handed out one after another, so a million online clients
+ * usually serialize to a few kilobytes. Layout is:
+ * <p>
+ * Container count | Key     | Kind   | Count   | Values
+ * 4 Bytes         | 2 Bytes | 1 Byte | 2 Bytes | 2 Bytes per value, 4 per run or 8192 for bitmap
+ * <p>
+ * Key, kind, count and values repeat for every container. Count is
+ * number of runs minus one for runs and number of values minus one
+ * otherwise. This class is not thread safe.
+ */
+
+public class CompactBitmap {
+
+    private static final int ARRAY_CONTAINER_MAX_SIZE = 4096;
+    private static final int BITMAP_CONTAINER_WORDS = 1024;
+    private static final int BITMAP_CONTAINER_BYTES = BITMAP_CONTAINER_WORDS * Long.BYTES;
+    private static final int CONTAINER_HEADER_BYTES = 5;
+    private static final byte ARRAY = 0;
+    private static final byte BITMAP = 1;
+    private static final byte RUNS = 2;
+
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size;
+
+    /**
+     * Adds value to the set
+     *
+     * @param value non-negative int
+     * @return true if value was not present before
+     */
+
+    public boolean add(int value) {
+        char key = (char) (value >>> 16);
+        int index = Arrays.binarySearch(keys, 0, size, key);
+
+        if (index < 0) {
+            index = -index - 1;
+            insertingContainer(index, key, new ArrayContainer());
+        }
+
+        int cardinality = containers[index].cardinality;
+        containers[index] = containers[index].add((char) value);
+        return containers[index].cardinality != cardinality;
+    }
+
+    /**
+     * Removes value from the set
+     *
+     * @param value non-negative int
+     * @return true if value was present
+     */
+
+    public boolean remove(int value) {
+        int index = Arrays.binarySearch(keys, 0, size, (char) (value >>> 16));
+        if (index < 0)
+            return false;
+
+        int cardinality = containers[index].cardinality;
+        containers[index] = containers[index].remove((char) value);
+        boolean removed = containers[index].cardinality != cardinality;
+
+        if (containers[index].cardinality == 0)
+            removingContainer(index);
+
+        return removed;
+    }
+
+    public boolean contains(int value) {
+        int index = Arrays.binarySearch(keys, 0, size, (char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++)
+            cardinality += containers[i].cardinality;
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Calls consumer with every value in ascending order
+     *
+     * @param consumer of values
+     */
+
+    public void forEach(IntConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            int high = keys[i] << 16;
+            containers[i].forEach(low -> consumer.accept(high | low));
+        }
+    }
+
+    public int serializedSizeInBytes() {
+        int bytes = Integer.BYTES;
+        for (int i = 0; i < size; i++)
+            bytes += CONTAINER_HEADER_BYTES + containers[i].serializedSize();
+        return bytes;
+    }
+
+    /**
+     * Writes the set into buffer
+     *
+     * @param buffer with at least serializedSizeInBytes() remaining
+     */
+
+    public void serialize(ByteBuffer buffer) {
+        buffer.putInt(size);
+        for (int i = 0; i < size; i++) {
+            buffer.putChar(keys[i]);
+            containers[i].serialize(buffer);
+        }
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(serializedSizeInBytes());
+        serialize(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Reads set written by serialize
+     *
+     * @param buffer positioned at the start of the set, it is moved past the set
+     * @return set
+     */
+
+    public static CompactBitmap deserialize(ByteBuffer buffer) {
+        CompactBitmap bitmap = new CompactBitmap();
+        int containerCount = buffer.getInt();
+
+        for (int i = 0; i < containerCount; i++) {
+            int high = buffer.getChar() << 16;
+            byte kind = buffer.get();
+            int count = buffer.getChar() + 1;
+
+            if (kind == BITMAP) {
+                for (int word = 0; word < BITMAP_CONTAINER_WORDS; word++) {
+                    long bits = buffer.getLong();
+                    while (bits != 0) {
+                        bitmap.add(high | (word << 6) | Long.numberOfTrailingZeros(bits));
+                        bits &= bits - 1;
+                    }
+                }
+            } else if (kind == RUNS) {
+                for (int run = 0; run < count; run++) {
+                    int start = buffer.getChar();
+                    int end = start + buffer.getChar();
+                    for (int low = start; low <= end; low++)
+                        bitmap.add(high | low);
+                }
+            } else {
+                for (int value = 0; value < count; value++)
+                    bitmap.add(high | buffer.getChar());
+            }
+        }
+        return bitmap;
+    }
+
+    private void insertingContainer(int index, char key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        size++;
+    }
+
+    private void removingContainer(int index) {
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+        containers[--size] = null;
+    }
+
+    /**
+     * Lower 16 bits of values which share the same upper 16 bits.
+     * Adding or removing may return a container of the other kind
+     */
+
+    private abstract static class Container {
+        int cardinality;
+
+        abstract Container add(char value);
+
+        abstract Container remove(char value);
+
+        abstract boolean contains(char value);
+
+        abstract void forEach(IntConsumer consumer);
+
+        char[] toArray() {
+            char[] values = new char[cardinality];
+            int[] filled = new int[1];
+            forEach(value -> values[filled[0]++] = (char) value);
+            return values;
+        }
+
+        int serializedSize() {
+            return Math.min(Math.min(cardinality, countingRuns(toArray()) * 2) * Character.BYTES, BITMAP_CONTAINER_BYTES);
+        }
+
+        void serialize(ByteBuffer buffer) {
+            char[] values = toArray();
+            int runs = countingRuns(values);
+
+            if (runs * 2 <= cardinality && runs * 2 * Character.BYTES < BITMAP_CONTAINER_BYTES) {
+                buffer.put(RUNS).putChar((char) (runs - 1));
+                int start = 0;
+                for (int i = 1; i <= values.length; i++) {
+                    if (i == values.length || values[i] != values[i - 1] + 1) {
+                        buffer.putChar(values[start]).putChar((char) (values[i - 1] - values[start]));
+                        start = i;
+                    }
+                }
+
+            } else if (cardinality * Character.BYTES < BITMAP_CONTAINER_BYTES) {
+                buffer.put(ARRAY).putChar((char) (cardinality - 1));
+                for (char value : values)
+                    buffer.putChar(value);
+
+            } else {
+                buffer.put(BITMAP).putChar((char) (cardinality - 1));
+                long[] words = new long[BITMAP_CONTAINER_WORDS];
+                for (char value : values)
+                    words[value >>> 6] |= 1L << value;
+                for (long word : words)
+                    buffer.putLong(word);
+            }
+        }
+
+        private static int countingRuns(char[] values) {
+            int runs = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (i == 0 || values[i] != values[i - 1] + 1)
+                    runs++;
+            }
+            return runs;
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+        private char[] values = new char[4];
+
+        @Override
+        Container add(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0)
+                return this;
+
+            if (cardinality == ARRAY_CONTAINER_MAX_SIZE)
+                return new BitmapContainer(this).add(value);
+
+            index = -index - 1;
+            if (cardinality == values.length)
+                values = Arrays.copyOf(values, Math.min(cardinality * 2, ARRAY_CONTAINER_MAX_SIZE));
+
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index < 0)
+                return this;
+
+            System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+            cardinality--;
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        void forEach(IntConsumer consumer) {
+            for (int i = 0; i < cardinality; i++)
+                consumer.accept(values[i]);
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words = new long[BITMAP_CONTAINER_WORDS];
+
+        BitmapContainer(ArrayContainer arrayContainer) {
+            arrayContainer.forEach(value -> words[value >>> 6] |= 1L << value);
+            cardinality = arrayContainer.cardinality;
+        }
+
+        @Override
+        Container add(char value) {
+            long before = words[value >>> 6];
+            words[value >>> 6] = before | 1L << value;
+            if (before != words[value >>> 6])
+                cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            long before = words[value >>> 6];
+            words[value >>> 6] = before & ~(1L << value);
+            if (before == words[value >>> 6])
+                return this;
+
+            cardinality--;
+            if (cardinality > ARRAY_CONTAINER_MAX_SIZE / 2)
+                return this;
+
+            ArrayContainer arrayContainer = new ArrayContainer();
+            forEach(remaining -> arrayContainer.add((char) remaining));
+            return arrayContainer;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & 1L << value) != 0;
+        }
+
+        @Override
+        void forEach(IntConsumer consumer) {
+            for (int word = 0; word < BITMAP_CONTAINER_WORDS; word++) {
+                long bits = words[word];
+                while (bits != 0) {
+                    consumer.accept((word << 6) | Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+}
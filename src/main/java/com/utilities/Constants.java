@@ -19,9 +19,138 @@ public class Constants {
     public static final int END_OF_MESSAGE_LENGTH_EXCLUSIVE = 18;
     public static final int START_OF_MESSAGE_INCLUSIVE = 18;
     public static final String MESSAGE_WHEN_DESTINATION_ID_NOT_PRESENT = "Please specify correct Id. User with this ID not present";
+    public static final String MESSAGE_WHEN_SESSION_NOT_RESUMED = "Session can not be resumed. Please login";
 
 
     public static final int STAGE_DOESNT_EXEC_SUCCESSFULLY = -1;
     public static final int BYTE_ARRAY_SIZE_FOR_INT = 4;
     public static final int BYTE_ARRAY_SIZE_FOR_MESSAGE_TYPE = 2;
+
+    public static final boolean DEFAULT_COMPRESSION_ENABLED = false;
+    public static final String DEFAULT_COMPRESSION_CODEC = "deflate";
+    public static final String CODEC_LIST_DELIMITER = "[,\\s]+";
+    public static final int DEFAULT_COMPRESSION_THRESHOLD_BYTES = 1024;
+    public static final int DEFAULT_MAX_DECOMPRESSED_MESSAGE_BYTES = 16 * 1024 * 1024;
+
+    public static final int READ_BUFFER_SIZE = 256 * 256;
+    public static final boolean DEFAULT_CUT_THROUGH_ENABLED = false;
+    public static final int DEFAULT_CUT_THROUGH_THRESHOLD_BYTES = READ_BUFFER_SIZE;
+    public static final long DEFAULT_CUT_THROUGH_IDLE_TIMEOUT_MILLIS = 10000;
+    public static final long DEFAULT_OUTBOUND_MAX_QUEUED_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+    public static final int CLUSTER_DISABLED = -1;
+    public static final int DEFAULT_CLIENT_ID_RANGE_SIZE = 1000000;
+    public static final int DEFAULT_LINK_BATCH_SIZE = 256;
+    public static final int LINK_RECONNECT_DELAY_MILLIS = 500;
+    public static final int LINK_MESSAGE_HEADER_SIZE = 5;
+    public static final String LINK_MAC_ALGORITHM = "HmacSHA256";
+    public static final int LINK_CHALLENGE_BYTES = 32;
+
+    public static final int SHARDING_DISABLED = 0;
+    public static final int DEFAULT_SHARD_LINK_BASE_PORT = 9700;
+    public static final String SO_REUSEPORT_OPTION_NAME = "SO_REUSEPORT";
+
+    public static final String DEFAULT_SELECT_STRATEGY = "blocking";
+    public static final int DEFAULT_SELECT_SPIN_ITERATIONS = 1000;
+    public static final int DEFAULT_SELECT_YIELD_ITERATIONS = 10;
+    public static final long DEFAULT_SELECT_TIMEOUT_MILLIS = 1;
+    public static final boolean DEFAULT_SELECT_OPTIMIZED_KEYS = false;
+
+    public static final long RATE_LIMIT_DISABLED = 0;
+    public static final String RATE_LIMIT_ACTION_DROP = "drop";
+    public static final String RATE_LIMIT_ACTION_PAUSE = "pause";
+    public static final long DEFAULT_RATE_LIMIT_RESUME_CHECK_MILLIS = 10;
+    public static final int DEFAULT_METRICS_LOG_INTERVAL_SECONDS = 0;
+
+    public static final int DEFAULT_MAX_CONTROL_BURST = 16;
+
+    public static final boolean DEFAULT_RECEIPTS_ENABLED = false;
+    public static final int DEFAULT_RECEIPT_BATCH_SIZE = 32;
+    public static final int DEFAULT_RECEIPT_FLUSH_MILLIS = 5;
+    public static final int RECEIPT_ENTRY_SIZE = 24;
+
+    public static final long DEADLINE_DISABLED = 0;
+    public static final int DEADLINE_PREFIX_SIZE = 5;
+    public static final int DEADLINE_NOTICE_REQUESTED = 1;
+    public static final int EXPIRED_NOTICE_SIZE = 8;
+
+    public static final long ADMISSION_DISABLED = 0;
+    public static final long DEFAULT_ADMISSION_INTERVAL_MILLIS = 100;
+    public static final String ADMISSION_ACTION_DEFER = "defer";
+    public static final String ADMISSION_ACTION_REJECT = "reject";
+    public static final boolean DEFAULT_ADMISSION_SHED_HEAVY_SENDERS = false;
+    public static final int DEFAULT_ADMISSION_SHED_SHARE_FACTOR = 1;
+
+    public static final int CAPTURE_FILE_MAGIC = 0x43434150;
+    public static final int CAPTURE_FILE_VERSION = 1;
+    public static final int CAPTURE_FILE_HEADER_SIZE = 16;
+    public static final int CAPTURE_RECORD_HEADER_SIZE = 16;
+    public static final int CAPTURE_CONNECTION_OPENED = -1;
+    public static final int CAPTURE_CONNECTION_CLOSED = -2;
+    public static final int DEFAULT_CAPTURE_REGION_BYTES = 64 * 1024 * 1024;
+
+    public static final int SNAPSHOT_FILE_MAGIC = 0x43534e50;
+    public static final int SNAPSHOT_FILE_VERSION = 1;
+    public static final int SNAPSHOT_FILE_HEADER_SIZE = 28;
+    public static final int SNAPSHOT_SESSION_ENTRY_SIZE = 12;
+    public static final int SNAPSHOT_ACCEPTS_COMPRESSION = 1;
+    public static final String SNAPSHOT_PARTIAL_SUFFIX = ".partial";
+    public static final long DEFAULT_SNAPSHOT_DRAIN_MILLIS = 2000;
+    public static final int DEFAULT_SNAPSHOT_RESUME_WINDOW_SECONDS = 5 * 60;
+
+    public static final int DEFAULT_PRESENCE_FLUSH_MILLIS = 100;
+
+    public static final String TOPIC_SEPARATOR = "\n";
+    public static final int TOPIC_DESTINATION_ID = 0;
+    public static final int DEFAULT_TOPIC_MATCH_CACHE_SIZE = 100000;
+
+    public static final byte EPHEMERAL_KEY_SEPARATOR = '\n';
+
+    public static final String FILTER_ACTION_BLOCK = "block";
+    public static final String FILTER_ACTION_REDACT = "redact";
+    public static final String FILTER_ACTION_FLAG = "flag";
+    public static final String FILTER_COMMENT_PREFIX = "#";
+    public static final byte FILTER_REDACTION_BYTE = '*';
+    public static final int DEFAULT_FILTER_RELOAD_SECONDS = 5;
+    public static final boolean DEFAULT_FILTER_IGNORE_CASE = true;
+
+    public static final boolean DEFAULT_FILES_ENABLED = false;
+    public static final String DEFAULT_FILES_SPOOL_DIRECTORY = System.getProperty("java.io.tmpdir") + "/chat-spool";
+    public static final long DEFAULT_FILES_MAX_FILE_BYTES = 1024L * 1024 * 1024;
+    public static final int DEFAULT_FILES_CHUNK_BYTES = 64 * 1024;
+    public static final long DEFAULT_FILES_BANDWIDTH_BYTES_PER_SECOND = 0;
+    public static final int DEFAULT_FILES_IDLE_TIMEOUT_SECONDS = 10 * 60;
+    public static final int FILE_TRANSFER_THREADS = 2;
+    public static final int FILE_SPOOL_SWEEP_SECONDS = 30;
+    public static final int FILE_CHUNK_RETRY_MILLIS = 100;
+    public static final String FILE_SPOOL_SUFFIX = ".spool";
+
+    public static final int DEFAULT_FAIRNESS_FRAME_BUDGET = 64;
+    public static final boolean DEFAULT_LEAN_CONNECTIONS = false;
+    public static final boolean DEFAULT_RECEIVE_ADAPTIVE = false;
+    public static final String DEFAULT_RECEIVE_SIZE_CLASSES = "512,2048,8192,32768,65536";
+    public static final int DEFAULT_RECEIVE_SOCKET_BUFFER_FACTOR = 4;
+
+    public static final boolean DEFAULT_TLS_ENABLED = false;
+    public static final String DEFAULT_TLS_KEY_STORE_TYPE = "PKCS12";
+    public static final String DEFAULT_TLS_PROTOCOL = "TLSv1.2";
+    public static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 20000;
+    public static final int DEFAULT_TLS_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+    public static final int DEFAULT_TLS_TASK_THREADS = 2;
+    public static final int DEFAULT_TLS_POOLED_BUFFERS = 1024;
+
+    public static final int WEBSOCKET_DISABLED = 0;
+    public static final int DEFAULT_WEBSOCKET_MAX_HANDSHAKE_BYTES = 8192;
+
+    public static final int DEFAULT_CLIENT_BATCH_BYTES = 64 * 1024;
+    public static final long DEFAULT_CLIENT_LOGIN_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_CLIENT_POOL_SIZE = 4;
+    public static final int CLIENT_RECEIVE_BUFFER_BYTES = 16 * 1024;
+
+    public static final boolean DEFAULT_HISTORY_ENABLED = false;
+    public static final long DEFAULT_HISTORY_BUDGET_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_HISTORY_CONVERSATION_BYTES = 256 * 1024;
+    public static final int DEFAULT_HISTORY_MESSAGES_PER_CONVERSATION = 100;
+    public static final int DEFAULT_HISTORY_PAGE_SIZE = 20;
 }
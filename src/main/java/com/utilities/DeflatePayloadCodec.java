@@ -0,0 +1,73 @@
+package com.utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Payload codec backed by the JDK Deflater and Inflater. Creating
+ * those is expensive because they hold native zlib state, so every
+ * thread keeps its own instance and resets it between messages.
+ */
+
+public class DeflatePayloadCodec implements PayloadCodec {
+
+    private static final int SCRATCH_BUFFER_SIZE = 8 * 1024;
+
+    private final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+    private final ThreadLocal<byte[]> scratchBuffer = ThreadLocal.withInitial(() -> new byte[SCRATCH_BUFFER_SIZE]);
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public byte[] compress(byte[] payload) {
+        Deflater compressor = deflater.get();
+        byte[] scratch = scratchBuffer.get();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(payload.length / 2 + 16);
+
+        compressor.reset();
+        compressor.setInput(payload);
+        compressor.finish();
+
+        while (!compressor.finished()) {
+            int count = compressor.deflate(scratch);
+            compressed.write(scratch, 0, count);
+        }
+
+        return compressed.toByteArray();
+    }
+
+    @Override
+    public byte[] decompress(byte[] compressedPayload, int maxLength) throws IOException {
+        Inflater decompressor = inflater.get();
+        byte[] scratch = scratchBuffer.get();
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream(compressedPayload.length * 2);
+
+        decompressor.reset();
+        decompressor.setInput(compressedPayload);
+
+        try {
+            while (!decompressor.finished()) {
+                int count = decompressor.inflate(scratch);
+
+                if (count == 0 && (decompressor.needsInput() || decompressor.needsDictionary()))
+                    throw new IOException("Compressed payload is truncated");
+
+                if (decompressed.size() + count > maxLength)
+                    throw new IOException("Decompressed payload exceeds " + maxLength + " bytes");
+
+                decompressed.write(scratch, 0, count);
+            }
+        } catch (DataFormatException exception) {
+            throw new IOException("Compressed payload is corrupt", exception);
+        }
+
+        return decompressed.toByteArray();
+    }
+}
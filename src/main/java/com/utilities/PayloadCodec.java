@@ -0,0 +1,41 @@
+package com.utilities;
+
+import java.io.IOException;
+
+/**
+ * Codec used to compress and decompress message payloads of
+ * COMPRESSED_DATA frames. Implementations must be safe to call
+ * from several threads at the same time.
+ */
+
+public interface PayloadCodec {
+
+    /**
+     * Name of the codec. Clients advertise the codecs they
+     * understand with this name in their login message
+     *
+     * @return codec name
+     */
+
+    String getName();
+
+    /**
+     * Compress the given payload
+     *
+     * @param payload raw message bytes
+     * @return compressed bytes
+     */
+
+    byte[] compress(byte[] payload);
+
+    /**
+     * Decompress the given payload
+     *
+     * @param compressedPayload bytes produced by compress
+     * @param maxLength upper bound of the decompressed size
+     * @return raw message bytes
+     * @throws IOException if payload is corrupt or bigger than maxLength
+     */
+
+    byte[] decompress(byte[] compressedPayload, int maxLength) throws IOException;
+}
@@ -0,0 +1,51 @@
+package com.utilities;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of payload codecs known to the server. Deflate is
+ * always available, faster codecs can be plugged in by calling
+ * register before the server starts.
+ */
+
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class PayloadCodecs {
+
+    private static final Map<String, PayloadCodec> codecs = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflatePayloadCodec());
+    }
+
+    /**
+     * Make a codec available under its name
+     *
+     * @param codec to register
+     */
+
+    public static void register(PayloadCodec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    /**
+     * Returns the codec selected through configuration. If the
+     * configured name is unknown we fall back to deflate
+     *
+     * @return codec
+     */
+
+    public static PayloadCodec getConfiguredCodec() {
+        PayloadCodec codec = codecs.get(ServerConfiguration.COMPRESSION_CODEC);
+        if (codec == null) {
+            log.error("Unknown compression codec {}, using deflate", ServerConfiguration.COMPRESSION_CODEC);
+            codec = codecs.get(Constants.DEFAULT_COMPRESSION_CODEC);
+        }
+        return codec;
+    }
+}
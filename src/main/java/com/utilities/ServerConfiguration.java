@@ -0,0 +1,132 @@
+package com.utilities;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+/**
+ * This class holds the tunable settings of the server. Every
+ * setting is read once from a JVM system property, for example
+ * -Dchat.compression.enabled=true, and falls back to the default
+ * value defined in Constants when the property is not given.
+ */
+
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class ServerConfiguration {
+
+    public static final boolean COMPRESSION_ENABLED = Boolean.parseBoolean(
+            System.getProperty("chat.compression.enabled", Boolean.toString(Constants.DEFAULT_COMPRESSION_ENABLED)));
+    public static final String COMPRESSION_CODEC = System.getProperty("chat.compression.codec", Constants.DEFAULT_COMPRESSION_CODEC);
+    public static final int COMPRESSION_THRESHOLD_BYTES = Integer.getInteger("chat.compression.threshold", Constants.DEFAULT_COMPRESSION_THRESHOLD_BYTES);
+    public static final int MAX_DECOMPRESSED_MESSAGE_BYTES = Integer.getInteger("chat.compression.maxDecompressedBytes", Constants.DEFAULT_MAX_DECOMPRESSED_MESSAGE_BYTES);
+
+    public static final boolean CUT_THROUGH_ENABLED = Boolean.parseBoolean(
+            System.getProperty("chat.cutThrough.enabled", Boolean.toString(Constants.DEFAULT_CUT_THROUGH_ENABLED)));
+    public static final int CUT_THROUGH_THRESHOLD_BYTES = Integer.getInteger("chat.cutThrough.threshold", Constants.DEFAULT_CUT_THROUGH_THRESHOLD_BYTES);
+    public static final long CUT_THROUGH_IDLE_TIMEOUT_MILLIS = Math.max(1,
+            Long.getLong("chat.cutThrough.idleTimeoutMillis", Constants.DEFAULT_CUT_THROUGH_IDLE_TIMEOUT_MILLIS));
+    public static final long OUTBOUND_MAX_QUEUED_BYTES = Long.getLong("chat.outbound.maxQueuedBytes", Constants.DEFAULT_OUTBOUND_MAX_QUEUED_BYTES);
+    public static final int MAX_FRAME_BYTES = Integer.getInteger("chat.maxFrameBytes", Constants.DEFAULT_MAX_FRAME_BYTES);
+
+    public static final int CLUSTER_NODE_ID = Integer.getInteger("chat.cluster.nodeId", Constants.CLUSTER_DISABLED);
+    public static final String CLUSTER_NODES = System.getProperty("chat.cluster.nodes", "");
+    public static final int CLIENT_ID_RANGE_SIZE = Integer.getInteger("chat.cluster.idRangeSize", Constants.DEFAULT_CLIENT_ID_RANGE_SIZE);
+    public static final int LINK_BATCH_SIZE = Integer.getInteger("chat.cluster.linkBatchSize", Constants.DEFAULT_LINK_BATCH_SIZE);
+    public static final String CLUSTER_SECRET = System.getProperty("chat.cluster.secret", "");
+
+    public static final int SHARD_COUNT = Integer.getInteger("chat.shard.count", Constants.SHARDING_DISABLED);
+    public static final int SHARD_INDEX = Integer.getInteger("chat.shard.index", 0);
+    public static final int SHARD_LINK_BASE_PORT = Integer.getInteger("chat.shard.linkBasePort", Constants.DEFAULT_SHARD_LINK_BASE_PORT);
+
+    public static final String SELECT_STRATEGY = System.getProperty("chat.select.strategy", Constants.DEFAULT_SELECT_STRATEGY);
+    public static final int SELECT_SPIN_ITERATIONS = Integer.getInteger("chat.select.spinIterations", Constants.DEFAULT_SELECT_SPIN_ITERATIONS);
+    public static final int SELECT_YIELD_ITERATIONS = Integer.getInteger("chat.select.yieldIterations", Constants.DEFAULT_SELECT_YIELD_ITERATIONS);
+    public static final long SELECT_TIMEOUT_MILLIS = Long.getLong("chat.select.timeoutMillis", Constants.DEFAULT_SELECT_TIMEOUT_MILLIS);
+    public static final boolean SELECT_OPTIMIZED_KEYS = Boolean.parseBoolean(
+            System.getProperty("chat.select.optimizedKeys", Boolean.toString(Constants.DEFAULT_SELECT_OPTIMIZED_KEYS)));
+
+    public static final long RATE_LIMIT_MESSAGES_PER_SECOND = Long.getLong("chat.rateLimit.messagesPerSecond", Constants.RATE_LIMIT_DISABLED);
+    public static final long RATE_LIMIT_BYTES_PER_SECOND = Long.getLong("chat.rateLimit.bytesPerSecond", Constants.RATE_LIMIT_DISABLED);
+    public static final String RATE_LIMIT_ACTION = System.getProperty("chat.rateLimit.action", Constants.RATE_LIMIT_ACTION_DROP);
+    public static final long RATE_LIMIT_RESUME_CHECK_MILLIS = Long.getLong("chat.rateLimit.resumeCheckMillis", Constants.DEFAULT_RATE_LIMIT_RESUME_CHECK_MILLIS);
+
+    public static final int FAIRNESS_READ_BUDGET_BYTES = Math.min(Constants.READ_BUFFER_SIZE,
+            Integer.getInteger("chat.fairness.readBudgetBytes", Constants.READ_BUFFER_SIZE));
+    public static final int FAIRNESS_FRAME_BUDGET = Math.max(1,
+            Integer.getInteger("chat.fairness.frameBudget", Constants.DEFAULT_FAIRNESS_FRAME_BUDGET));
+    public static final boolean LEAN_CONNECTIONS = Boolean.parseBoolean(
+            System.getProperty("chat.connections.lean", Boolean.toString(Constants.DEFAULT_LEAN_CONNECTIONS)));
+    public static final boolean RECEIVE_ADAPTIVE = Boolean.parseBoolean(
+            System.getProperty("chat.receive.adaptive", Boolean.toString(Constants.DEFAULT_RECEIVE_ADAPTIVE)));
+    public static final String RECEIVE_SIZE_CLASSES = System.getProperty("chat.receive.sizeClasses", Constants.DEFAULT_RECEIVE_SIZE_CLASSES);
+    public static final int RECEIVE_SOCKET_BUFFER_FACTOR = Integer.getInteger("chat.receive.socketBufferFactor", Constants.DEFAULT_RECEIVE_SOCKET_BUFFER_FACTOR);
+
+    public static final boolean TLS_ENABLED = Boolean.parseBoolean(
+            System.getProperty("chat.tls.enabled", Boolean.toString(Constants.DEFAULT_TLS_ENABLED)));
+    public static final String TLS_KEY_STORE = System.getProperty("chat.tls.keyStore", "");
+    public static final String TLS_KEY_STORE_PASSWORD = System.getProperty("chat.tls.keyStorePassword", "");
+    public static final String TLS_KEY_STORE_TYPE = System.getProperty("chat.tls.keyStoreType", Constants.DEFAULT_TLS_KEY_STORE_TYPE);
+    public static final String TLS_PROTOCOL = System.getProperty("chat.tls.protocol", Constants.DEFAULT_TLS_PROTOCOL);
+    public static final int TLS_SESSION_CACHE_SIZE = Integer.getInteger("chat.tls.sessionCacheSize", Constants.DEFAULT_TLS_SESSION_CACHE_SIZE);
+    public static final int TLS_SESSION_TIMEOUT_SECONDS = Integer.getInteger("chat.tls.sessionTimeoutSeconds", Constants.DEFAULT_TLS_SESSION_TIMEOUT_SECONDS);
+    public static final int TLS_TASK_THREADS = Integer.getInteger("chat.tls.taskThreads", Constants.DEFAULT_TLS_TASK_THREADS);
+    public static final int TLS_POOLED_BUFFERS = Integer.getInteger("chat.tls.pooledBuffers", Constants.DEFAULT_TLS_POOLED_BUFFERS);
+
+    public static final int WEBSOCKET_PORT = Integer.getInteger("chat.websocket.port", Constants.WEBSOCKET_DISABLED);
+    public static final int WEBSOCKET_MAX_HANDSHAKE_BYTES = Integer.getInteger("chat.websocket.maxHandshakeBytes", Constants.DEFAULT_WEBSOCKET_MAX_HANDSHAKE_BYTES);
+
+    public static final int MAX_CONTROL_BURST = Integer.getInteger("chat.lanes.maxControlBurst", Constants.DEFAULT_MAX_CONTROL_BURST);
+
+    public static final boolean RECEIPTS_ENABLED = Boolean.parseBoolean(
+            System.getProperty("chat.receipts.enabled", Boolean.toString(Constants.DEFAULT_RECEIPTS_ENABLED)));
+    public static final int RECEIPT_BATCH_SIZE = Integer.getInteger("chat.receipts.batchSize", Constants.DEFAULT_RECEIPT_BATCH_SIZE);
+    public static final int RECEIPT_FLUSH_MILLIS = Integer.getInteger("chat.receipts.flushMillis", Constants.DEFAULT_RECEIPT_FLUSH_MILLIS);
+
+    public static final long DEADLINE_MILLIS = Long.getLong("chat.deadline.millis", Constants.DEADLINE_DISABLED);
+
+    public static final long ADMISSION_TARGET_MILLIS = Long.getLong("chat.admission.targetMillis", Constants.ADMISSION_DISABLED);
+    public static final long ADMISSION_INTERVAL_MILLIS = Math.max(1,
+            Long.getLong("chat.admission.intervalMillis", Constants.DEFAULT_ADMISSION_INTERVAL_MILLIS));
+    public static final String ADMISSION_CONNECTION_ACTION = System.getProperty("chat.admission.connectionAction", Constants.ADMISSION_ACTION_DEFER);
+    public static final boolean ADMISSION_SHED_HEAVY_SENDERS = Boolean.parseBoolean(
+            System.getProperty("chat.admission.shedHeavySenders", Boolean.toString(Constants.DEFAULT_ADMISSION_SHED_HEAVY_SENDERS)));
+    public static final int ADMISSION_SHED_SHARE_FACTOR = Integer.getInteger("chat.admission.shedShareFactor", Constants.DEFAULT_ADMISSION_SHED_SHARE_FACTOR);
+
+    public static final String CAPTURE_FILE = System.getProperty("chat.capture.file", "");
+    public static final int CAPTURE_REGION_BYTES = Integer.getInteger("chat.capture.regionBytes", Constants.DEFAULT_CAPTURE_REGION_BYTES);
+
+    public static final String SNAPSHOT_FILE = System.getProperty("chat.snapshot.file", "");
+    public static final long SNAPSHOT_DRAIN_MILLIS = Long.getLong("chat.snapshot.drainMillis", Constants.DEFAULT_SNAPSHOT_DRAIN_MILLIS);
+    public static final int SNAPSHOT_RESUME_WINDOW_SECONDS = Integer.getInteger("chat.snapshot.resumeWindowSeconds", Constants.DEFAULT_SNAPSHOT_RESUME_WINDOW_SECONDS);
+
+    public static final int PRESENCE_FLUSH_MILLIS = Integer.getInteger("chat.presence.flushMillis", Constants.DEFAULT_PRESENCE_FLUSH_MILLIS);
+
+    public static final String FILTER_FILE = System.getProperty("chat.filter.file", "");
+    public static final int FILTER_RELOAD_SECONDS = Math.max(1,
+            Integer.getInteger("chat.filter.reloadSeconds", Constants.DEFAULT_FILTER_RELOAD_SECONDS));
+    public static final boolean FILTER_IGNORE_CASE = Boolean.parseBoolean(
+            System.getProperty("chat.filter.ignoreCase", Boolean.toString(Constants.DEFAULT_FILTER_IGNORE_CASE)));
+
+    public static final int TOPIC_MATCH_CACHE_SIZE = Integer.getInteger("chat.topics.matchCacheSize", Constants.DEFAULT_TOPIC_MATCH_CACHE_SIZE);
+
+    public static final boolean FILES_ENABLED = Boolean.parseBoolean(
+            System.getProperty("chat.files.enabled", Boolean.toString(Constants.DEFAULT_FILES_ENABLED)));
+    public static final String FILES_SPOOL_DIRECTORY = System.getProperty("chat.files.spoolDirectory", Constants.DEFAULT_FILES_SPOOL_DIRECTORY);
+    public static final long FILES_MAX_FILE_BYTES = Long.getLong("chat.files.maxFileBytes", Constants.DEFAULT_FILES_MAX_FILE_BYTES);
+    public static final int FILES_CHUNK_BYTES = Integer.getInteger("chat.files.chunkBytes", Constants.DEFAULT_FILES_CHUNK_BYTES);
+    public static final long FILES_BANDWIDTH_BYTES_PER_SECOND = Long.getLong("chat.files.bandwidthBytesPerSecond", Constants.DEFAULT_FILES_BANDWIDTH_BYTES_PER_SECOND);
+    public static final int FILES_IDLE_TIMEOUT_SECONDS = Integer.getInteger("chat.files.idleTimeoutSeconds", Constants.DEFAULT_FILES_IDLE_TIMEOUT_SECONDS);
+
+    public static final boolean HISTORY_ENABLED = Boolean.parseBoolean(
+            System.getProperty("chat.history.enabled", Boolean.toString(Constants.DEFAULT_HISTORY_ENABLED)));
+    public static final long HISTORY_BUDGET_BYTES = Long.getLong("chat.history.budgetBytes", Constants.DEFAULT_HISTORY_BUDGET_BYTES);
+    public static final int HISTORY_CONVERSATION_BYTES = Integer.getInteger("chat.history.conversationBytes", Constants.DEFAULT_HISTORY_CONVERSATION_BYTES);
+    public static final int HISTORY_MESSAGES_PER_CONVERSATION = Integer.getInteger("chat.history.messagesPerConversation", Constants.DEFAULT_HISTORY_MESSAGES_PER_CONVERSATION);
+    public static final int HISTORY_PAGE_SIZE = Integer.getInteger("chat.history.pageSize", Constants.DEFAULT_HISTORY_PAGE_SIZE);
+
+    public static final int CLIENT_BATCH_BYTES = Integer.getInteger("chat.client.batchBytes", Constants.DEFAULT_CLIENT_BATCH_BYTES);
+    public static final long CLIENT_LOGIN_TIMEOUT_MILLIS = Long.getLong("chat.client.loginTimeoutMillis", Constants.DEFAULT_CLIENT_LOGIN_TIMEOUT_MILLIS);
+    public static final int CLIENT_POOL_SIZE = Integer.getInteger("chat.client.poolSize", Constants.DEFAULT_CLIENT_POOL_SIZE);
+
+    public static final int METRICS_LOG_INTERVAL_SECONDS = Integer.getInteger("chat.metrics.logIntervalSeconds", Constants.DEFAULT_METRICS_LOG_INTERVAL_SECONDS);
+
+}
@@ -0,0 +1,211 @@
+package com.utilities;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscriptions to hierarchical topics like team.eng.alerts. Levels of
+ * a topic are separated by dots. In a subscription filter * matches
+ * exactly one level and # matches any number of levels, including
+ * none, so team.# matches team as well as team.eng.alerts. # may only
+ * be the last level of a filter, so a topic is matched in time linear
+ * in its levels however many wildcards a filter has.
+ * <p>
+ * Filters are kept in a trie with one node per level. Trie can be
+ * changed and searched from many threads at once. Results of matching
+ * are cached per topic, so matching a topic which was seen before is
+ * one hash lookup. A change of subscriptions removes only the cached
+ * topics which the changed filter matches.
+ */
+
+public class SubscriptionTrie {
+
+    public static final String SINGLE_LEVEL_WILDCARD = "*";
+    public static final String MULTI_LEVEL_WILDCARD = "#";
+    private static final String LEVEL_SEPARATOR = "\\.";
+    private static final int[] NO_SUBSCRIBERS = new int[0];
+
+    private final Node root = new Node();
+    private final Map<String, int[]> matchCache = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final int maxCachedTopics;
+
+    public SubscriptionTrie(int maxCachedTopics) {
+        this.maxCachedTopics = maxCachedTopics;
+    }
+
+    /**
+     * Subscribes to topics matched by the filter
+     *
+     * @param filter topic filter, may contain wildcards
+     * @param subscriberId id of the subscriber
+     * @return true if subscription did not exist before
+     */
+
+    public boolean subscribe(String filter, int subscriberId) {
+        Node node = root;
+        for (String level : filter.split(LEVEL_SEPARATOR))
+            node = node.children.computeIfAbsent(level, key -> new Node());
+
+        boolean added = node.subscribers.add(subscriberId);
+        if (added)
+            invalidating(filter);
+        return added;
+    }
+
+    /**
+     * Ends subscription. Empty nodes are left in the trie, they are
+     * reused when somebody subscribes to the same filter again
+     *
+     * @param filter topic filter used to subscribe
+     * @param subscriberId id of the subscriber
+     * @return true if subscription existed
+     */
+
+    public boolean unsubscribe(String filter, int subscriberId) {
+        Node node = root;
+        for (String level : filter.split(LEVEL_SEPARATOR)) {
+            node = node.children.get(level);
+            if (node == null)
+                return false;
+        }
+
+        boolean removed = node.subscribers.remove(subscriberId);
+        if (removed)
+            invalidating(filter);
+        return removed;
+    }
+
+    /**
+     * Finds subscribers of the topic. Each subscriber is returned once
+     * even if several of its filters match
+     *
+     * @param topic without wildcards
+     * @return ids of subscribers, must not be changed by the caller
+     */
+
+    public int[] match(String topic) {
+        int[] subscribers = matchCache.get(topic);
+        if (subscribers != null)
+            return subscribers;
+
+        long generationBeforeMatch = generation.get();
+        Set<Integer> found = new LinkedHashSet<>();
+        collecting(root, topic.split(LEVEL_SEPARATOR), 0, found);
+
+        subscribers = found.isEmpty() ? NO_SUBSCRIBERS : found.stream().mapToInt(Integer::intValue).toArray();
+        caching(topic, subscribers, generationBeforeMatch);
+        return subscribers;
+    }
+
+    /**
+     * Tells if topic filter matches the topic
+     *
+     * @param filter valid topic filter, may contain wildcards
+     * @param topic without wildcards
+     * @return true if filter matches
+     */
+
+    public static boolean matches(String filter, String topic) {
+        return matching(filter.split(LEVEL_SEPARATOR), 0, topic.split(LEVEL_SEPARATOR), 0);
+    }
+
+    public static boolean isValidTopic(String topic) {
+        return isValidFilter(topic) && !topic.contains(SINGLE_LEVEL_WILDCARD) && !topic.contains(MULTI_LEVEL_WILDCARD);
+    }
+
+    /**
+     * Filter is valid if no level is empty, wildcards take whole
+     * levels and # is the last level
+     *
+     * @param filter topic filter
+     * @return true if valid
+     */
+
+    public static boolean isValidFilter(String filter) {
+        if (filter == null || filter.isEmpty() || filter.startsWith(".") || filter.endsWith("."))
+            return false;
+
+        String[] levels = filter.split(LEVEL_SEPARATOR);
+        for (int index = 0; index < levels.length; index++) {
+            String level = levels[index];
+            if (level.isEmpty())
+                return false;
+            if (level.length() > 1 && (level.contains(SINGLE_LEVEL_WILDCARD) || level.contains(MULTI_LEVEL_WILDCARD)))
+                return false;
+            if (level.equals(MULTI_LEVEL_WILDCARD) && index != levels.length - 1)
+                return false;
+        }
+        return true;
+    }
+
+    private void collecting(Node node, String[] levels, int index, Set<Integer> found) {
+        Node anyLevels = node.children.get(MULTI_LEVEL_WILDCARD);
+        if (anyLevels != null)
+            found.addAll(anyLevels.subscribers);
+
+        if (index == levels.length) {
+            found.addAll(node.subscribers);
+            return;
+        }
+
+        Node exact = node.children.get(levels[index]);
+        if (exact != null)
+            collecting(exact, levels, index + 1, found);
+
+        Node oneLevel = node.children.get(SINGLE_LEVEL_WILDCARD);
+        if (oneLevel != null)
+            collecting(oneLevel, levels, index + 1, found);
+    }
+
+    private static boolean matching(String[] filter, int filterIndex, String[] topic, int topicIndex) {
+        if (filterIndex == filter.length)
+            return topicIndex == topic.length;
+
+        if (filter[filterIndex].equals(MULTI_LEVEL_WILDCARD))
+            return true;
+
+        return topicIndex < topic.length &&
+                (filter[filterIndex].equals(SINGLE_LEVEL_WILDCARD) || filter[filterIndex].equals(topic[topicIndex])) &&
+                matching(filter, filterIndex + 1, topic, topicIndex + 1);
+    }
+
+    /**
+     * Result is kept only if no subscription changed while it was
+     * computed. A change which slips in between the check and the put
+     * is caught by checking again after the put
+     */
+
+    private void caching(String topic, int[] subscribers, long generationBeforeMatch) {
+        if (generation.get() != generationBeforeMatch)
+            return;
+
+        if (matchCache.size() >= maxCachedTopics)
+            matchCache.clear();
+
+        matchCache.put(topic, subscribers);
+        if (generation.get() != generationBeforeMatch)
+            matchCache.remove(topic, subscribers);
+    }
+
+    private void invalidating(String filter) {
+        generation.incrementAndGet();
+
+        List<String> staleTopics = new ArrayList<>();
+        for (String topic : matchCache.keySet())
+            if (matches(filter, topic))
+                staleTopics.add(topic);
+
+        staleTopics.forEach(matchCache::remove);
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+        private final Set<Integer> subscribers = ConcurrentHashMap.newKeySet();
+    }
+}
@@ -0,0 +1,162 @@
+package com.servercore;
+
+import com.utilities.Constants;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Server runs in this JVM, its clients in a process of their own, so
+ * heap of this JVM only grows by what the server keeps for every
+ * connection. Connections get their id and stay idle. Same number of
+ * connections is opened and closed once before, so classes are loaded
+ * and tables of the server have grown already when heap is measured.
+ */
+
+public class IdleConnectionFootprintTest {
+
+    private static final int CONNECTIONS = 500;
+    private static final long MAX_HEAP_BYTES_PER_CONNECTION = 2048;
+    private static final String CLIENTS_READY = "ready";
+    private static final long WAIT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static int port;
+
+    @BeforeClass
+    public static void startingServer() throws Exception {
+        try (ServerSocket freePort = new ServerSocket(0)) {
+            port = freePort.getLocalPort();
+        }
+
+        Thread server = new Thread(() -> new InternalCore(port).startListeningRequests(), "footprint-server");
+        server.setDaemon(true);
+        server.start();
+
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (true) {
+            try (SocketChannel probe = SocketChannel.open(serverAddress())) {
+                break;
+            } catch (IOException exception) {
+                assertTrue("Server did not start listening", System.currentTimeMillis() < deadline);
+                Thread.sleep(50);
+            }
+        }
+
+        Process warmUp = openingClients(CONNECTIONS);
+        warmUp.destroy();
+        warmUp.waitFor();
+        awaitingOpenSessions(0);
+    }
+
+    @AfterClass
+    public static void checkingNothingIsLeft() throws InterruptedException {
+        awaitingOpenSessions(0);
+    }
+
+    @Test
+    public void idleConnectionsStayUnderTwoKilobytesOfHeap() throws Exception {
+        long heapBefore = usedHeapAfterGc();
+        Process clients = openingClients(CONNECTIONS);
+
+        try {
+            awaitingOpenSessions(CONNECTIONS);
+            long heapPerConnection = (usedHeapAfterGc() - heapBefore) / CONNECTIONS;
+
+            assertTrue("Idle connection holds " + heapPerConnection + " bytes of heap",
+                    heapPerConnection <= MAX_HEAP_BYTES_PER_CONNECTION);
+            for (ConnectionSession session : ConnectionSession.openSessions())
+                assertEquals("Idle connection holds buffers", 0, session.bufferedBytes());
+        } finally {
+            clients.destroy();
+            clients.waitFor();
+        }
+    }
+
+    /**
+     * Opens connections from a process of their own and returns once
+     * every connection got its id
+     */
+
+    private static Process openingClients(int connections) throws IOException {
+        String java = System.getProperty("java.home") + "/bin/java";
+        Process clients = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                IdleConnectionFootprintTest.class.getName(), String.valueOf(port), String.valueOf(connections))
+                .redirectErrorStream(true).start();
+
+        BufferedReader output = new BufferedReader(new InputStreamReader(clients.getInputStream()));
+        assertEquals("Clients could not connect", CLIENTS_READY, output.readLine());
+        return clients;
+    }
+
+    private static void awaitingOpenSessions(int sessions) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (ConnectionSession.openSessions().size() != sessions) {
+            assertTrue("Server has " + ConnectionSession.openSessions().size() + " sessions instead of " + sessions,
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+
+    private static InetSocketAddress serverAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Client process: opens connections, reads the id frame of each
+     * and keeps them open until it is destroyed
+     *
+     * @param args port of the server and number of connections
+     * @throws IOException if a connection fails
+     */
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        port = Integer.parseInt(args[0]);
+        List<SocketChannel> connections = new ArrayList<>();
+
+        for (int i = 0; i < Integer.parseInt(args[1]); i++) {
+            SocketChannel connection = SocketChannel.open(serverAddress());
+            ByteBuffer header = readingFully(connection, ByteBuffer.allocate(Constants.START_OF_MESSAGE_INCLUSIVE));
+            readingFully(connection, ByteBuffer.allocate(header.getInt(Constants.START_OF_MESSAGE_LENGTH_INCLUSIVE)));
+            connections.add(connection);
+        }
+
+        System.out.println(CLIENTS_READY);
+        System.out.flush();
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    private static ByteBuffer readingFully(SocketChannel connection, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            if (connection.read(buffer) == -1)
+                throw new EOFException("Server closed connection");
+        buffer.flip();
+        return buffer;
+    }
+}